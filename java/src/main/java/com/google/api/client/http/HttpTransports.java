@@ -0,0 +1,21 @@
+package com.google.api.client.http;
+
+import java.io.IOException;
+
+/**
+ * Builds low-level requests with any transport, for transports that wrap another one.
+ *
+ * {@link HttpTransport#buildRequest} is protected, so only the library's own package and
+ * subclasses may call it, and a subclass only on itself. Living in that package, this class can
+ * call it on the wrapped transport directly.
+ */
+public final class HttpTransports {
+
+  private HttpTransports() {}
+
+  /** Builds a low-level request with the transport, as an HttpRequest does to execute itself. */
+  public static LowLevelHttpRequest buildRequest(HttpTransport transport, String method,
+      String url) throws IOException {
+    return transport.buildRequest(method, url);
+  }
+}
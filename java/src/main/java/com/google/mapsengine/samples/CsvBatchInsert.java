@@ -3,17 +3,10 @@ package com.google.mapsengine.samples;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.mapsengine.MapsEngine;
 import com.google.api.services.mapsengine.MapsEngineScopes;
 import com.google.api.services.mapsengine.model.Datasource;
 import com.google.api.services.mapsengine.model.DisplayRule;
-import com.google.api.services.mapsengine.model.Feature;
-import com.google.api.services.mapsengine.model.FeaturesBatchInsertRequest;
 import com.google.api.services.mapsengine.model.IconStyle;
 import com.google.api.services.mapsengine.model.Layer;
 import com.google.api.services.mapsengine.model.Map;
@@ -26,22 +19,28 @@ import com.google.api.services.mapsengine.model.Table;
 import com.google.api.services.mapsengine.model.TableColumn;
 import com.google.api.services.mapsengine.model.VectorStyle;
 import com.google.api.services.mapsengine.model.ZoomLevels;
-import com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer;
-import com.google.maps.clients.HttpRequestInitializerPipeline;
-import com.google.maps.clients.mapsengine.geojson.Point;
 import com.google.mapsengine.samples.auth.Utils;
-
-import au.com.bytecode.opencsv.CSVReader;
+import com.google.mapsengine.samples.batch.BatchSink;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+import com.google.mapsengine.samples.batch.ParallelBatchSink;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.clients.ProcessingWaiter;
+import com.google.mapsengine.samples.clients.StreamingFeatureClient;
+import com.google.mapsengine.samples.csv.ColumnType;
+import com.google.mapsengine.samples.csv.CsvSegment;
+import com.google.mapsengine.samples.csv.FeatureColumns;
+import com.google.mapsengine.samples.csv.MappedCsvReader;
+import com.google.mapsengine.samples.csv.ParallelCsvReader;
+import com.google.mapsengine.samples.csv.RowConverter;
+import com.google.mapsengine.samples.csv.SchemaInferrer;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Demonstrate uploading local CSV file into a new Maps Engine table,
@@ -56,9 +55,26 @@ import java.util.List;
  *  - Column names are taken from the first row in the file.
  *  - The first column is used as the ID column
  *  - There must be a "lat" column and a "lng" column, which are used to generate a Point
- *  - Column types are inferred by the first row of data (2nd row in the file)
- *    - If the value can be parsed as an integer, the column becomes an integer type
+ *  - Column types are inferred from every row of data, or from a random sample of --sample=N
+ *    rows. A column takes the first of these types that all of its non-empty values match:
+ *    - integer
+ *    - double
+ *    - boolean (true or false), which is stored as a string as Maps Engine has no boolean type
+ *    - datetime, for ISO 8601 dates and date-times
  *    - Otherwise the column is a string
+ *  - The first column is always a string
+ *
+ * Rows are streamed from the file and sent in batches sized to fit the API request limits, so files
+ * of any size can be inserted without holding them in memory. While waiting to be sent, the parsed
+ * rows are held in a compact columnar buffer, and each batch is written from that buffer straight
+ * into its request body as it is sent. Batches are sent by a pool of worker threads, and the
+ * requests are throttled back whenever the API reports that we are rate limited. The file is
+ * memory-mapped and parsed in place, so numeric columns never pass through a String, and it is
+ * split into segments that are parsed on every available core.
+ *
+ * Segments are inserted as soon as they have been parsed, so rows may be inserted out of file
+ * order. Pass --ordered to insert them in file order instead; with a single worker the rows are
+ * then inserted in exactly the order of the file.
  */
 public class CsvBatchInsert {
 
@@ -68,25 +84,59 @@ public class CsvBatchInsert {
   private static final String LAT_COLUMN_NAME = "lat";
   private static final String LNG_COLUMN_NAME = "lng";
   private static final int NOT_SEEN = -1;
+  private static final int DEFAULT_WORKERS = 4;
+  private static final String ORDERED_FLAG = "--ordered";
+  private static final String SAMPLE_FLAG = "--sample=";
 
-  private final List<Feature> tableData = new ArrayList<Feature>();
-  private Schema schema;
-  private MapsEngine engine;
+  /** Number of batches, per worker, that may wait to be sent before the CSV reader blocks. */
+  private static final int QUEUED_BATCHES_PER_WORKER = 2;
 
-  private final HttpTransport httpTransport = new NetHttpTransport();
-  private final JsonFactory jsonFactory = new GsonFactory();
+  private CsvSchema csvSchema;
+  private MapsEngine engine;
+  private ProcessingWaiter waiter;
+  private StreamingFeatureClient featureClient;
+  private Table table;
+  private boolean ordered;
+  private int sampleSize;
+  private long featureCount;
+  private long batchCount;
+
+  private final MapsEngineClients clients = new MapsEngineClients();
+  private final ForkJoinPool parsers =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
   public static void main(String[] args) {
-    if (args.length < 2) {
-      System.err.println("Usage: java ... CsvBatchInsert myfile.csv projectId");
+    CsvBatchInsert batchInsert = new CsvBatchInsert();
+    List<String> positional = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.equals(ORDERED_FLAG)) {
+        batchInsert.ordered = true;
+      } else if (arg.startsWith(SAMPLE_FLAG)) {
+        batchInsert.sampleSize = Integer.parseInt(arg.substring(SAMPLE_FLAG.length()));
+      } else if (!batchInsert.clients.parseFlag(arg)) {
+        positional.add(arg);
+      }
+    }
+
+    if (positional.size() < 2) {
+      System.err.println("Usage: java ... CsvBatchInsert [--ordered] [--sample=N] "
+          + "[--transport=net|apache] [--no-gzip] myfile.csv projectId [workers]");
       System.err.println(" myfile.csv is the path to the CSV file to upload");
       System.err.println(" projectId is the numerical ID of the project in which to create the "
           + "new table");
+      System.err.println(" workers is the number of batch inserts to run concurrently, "
+          + "defaults to " + DEFAULT_WORKERS);
+      System.err.println(" --ordered inserts rows in the order they appear in the file");
+      System.err.println(" --sample infers column types from N random rows rather than all of "
+          + "them");
+      MapsEngineClients.printUsage();
       System.exit(1);
     }
 
     try {
-      new CsvBatchInsert().run(args[0], args[1]);
+      int workers =
+          positional.size() > 2 ? Integer.parseInt(positional.get(2)) : DEFAULT_WORKERS;
+      batchInsert.run(positional.get(0), positional.get(1), workers);
     } catch (Exception ex) {
       System.err.println("An unexpected error occurred!");
       ex.printStackTrace(System.err);
@@ -94,31 +144,47 @@ public class CsvBatchInsert {
     }
   }
 
-  public void run(String fileName, String projectId) throws IOException {
-    System.out.println("Loading CSV data from " + fileName);
-    loadCsvData(fileName);
+  public void run(String fileName, String projectId, int workers) throws IOException {
+    System.out.println("Inferring the table schema from " + fileName);
+    csvSchema = readSchema(fileName);
 
     System.out.println("Authorizing. If this takes a while, check your browser.");
-    Credential credential = Utils.authorizeUser(httpTransport, jsonFactory, SCOPES);
+    // Keep a connection alive for each worker.
+    clients.setMaxConnections(workers);
+    Credential credential =
+        Utils.authorizeUser(clients.getTransport(), clients.getJsonFactory(), SCOPES);
     System.out.println("Authorization successful!");
 
-    // Set up the required initializers to 1) authenticate the request and 2) back off if we
-    // start hitting the server too quickly.
-    HttpRequestInitializer requestInitializers = new HttpRequestInitializerPipeline(
-        Arrays.asList(credential, new BackOffWhenRateLimitedRequestInitializer()));
+    // The batch inserts are sent from a pool of workers, with a bounded queue between the CSV
+    // reader and the workers.
+    ParallelBatchSink<FeatureColumns.Batch> inserter = new ParallelBatchSink<FeatureColumns.Batch>(
+        new BatchSink<FeatureColumns.Batch>() {
+          @Override
+          public void send(FeatureColumns.Batch batch) throws IOException {
+            insertData(table, batch);
+          }
+        }, workers, workers * QUEUED_BATCHES_PER_WORKER);
 
-    // The MapsEngine object will be used to perform the requests.
-    engine = new MapsEngine.Builder(httpTransport, jsonFactory, requestInitializers)
-        .setApplicationName(APPLICATION_NAME)
-        .build();
+    // The MapsEngine object will be used to perform the requests. Its requests are authenticated,
+    // back off if we start hitting the server too quickly, and reduce the number of concurrent
+    // requests, and the rate at which they are sent, when that happens.
+    engine = clients.newClient(credential, APPLICATION_NAME);
+    waiter = new ProcessingWaiter(engine);
+    featureClient = new StreamingFeatureClient(engine);
 
     System.out.println("Creating an empty table in Maps Engine, under project ID " + projectId);
-    Table table = createTable(fileName, schema, projectId);
+    table = createTable(fileName, csvSchema.tableSchema, projectId);
     System.out.println("Table created, ID is: " + table.getId());
 
-    System.out.println("Starting the batch insert operation.");
-    insertData(table, tableData);
-    System.out.println("Done. Inserted " + tableData.size() + " rows.");
+    System.out.println("Starting the batch insert operation, using " + workers + " workers.");
+    try {
+      loadCsvData(fileName, inserter);
+    } finally {
+      // Wait for the queued batches to finish, re-throwing any failure.
+      inserter.close();
+    }
+    System.out.println("Done. Inserted " + featureCount + " rows in " + batchCount
+        + " batches.");
 
     System.out.println("Creating a new layer.");
     Layer layer = createLayer(table);
@@ -141,72 +207,145 @@ public class CsvBatchInsert {
     System.out.println(" done.");
     System.out.println("Publishing complete. You can view the map here: "
         + String.format("https://mapsengine.google.com/%s/mapview/?authuser=0", map.getId()));
+    waiter.shutdown();
+    parsers.shutdown();
+    clients.shutdown();
 
   }
 
   /** Defines a mapping between a Maps Engine table schema and our equivalent CSV model. */
   private static class CsvSchema {
     Schema tableSchema;
-    java.util.Map<Integer, String> columnIndexToName;
+    RowConverter rowConverter;
     int latIndex;
     int lngIndex;
   }
 
-  /** Open the file described and load its data. */
-  private void loadCsvData(String fileName) throws IOException {
-    File inputFile = new File(fileName);
-    if (!inputFile.exists()) {
-      System.err.println("File " + fileName + " does not exist!");
-      System.exit(1);
+  /** Open the file described and generate the table schema from its header and data rows. */
+  private CsvSchema readSchema(String fileName) throws IOException {
+    String[] columns;
+    MappedCsvReader reader = openCsv(fileName);
+    try {
+      columns = reader.next() ? reader.getStrings() : null;
+    } finally {
+      reader.close();
     }
 
-    try {
-      CSVReader reader = new CSVReader(new FileReader(inputFile));
-      String[] columns = reader.readNext();
-      String[] line = reader.readNext();
-      CsvSchema csvSchema = generateSchema(columns, line);
-      schema = csvSchema.tableSchema;
-
-      while (line != null) {
-        java.util.Map<String, Object> properties = new HashMap<String, Object>(line.length);
-        for (int i = 0; i < line.length; i++) {
-          if (i != csvSchema.latIndex && i != csvSchema.lngIndex) {
-            // Put: [ column name, row value ]
-            properties.put(csvSchema.columnIndexToName.get(i), line[i]);
+    SchemaInferrer inferrer = columns == null ? null : inferTypes(fileName, columns.length);
+    if (inferrer == null || inferrer.getRowCount() == 0) {
+      throw new IllegalArgumentException("CSV file requires a header row and at least one row"
+          + " of data.");
+    }
+    return generateSchema(columns, inferrer.getTypes());
+  }
+
+  /** Runs every data row, or a sample of them, through type inference in a single pass. */
+  private SchemaInferrer inferTypes(String fileName, int columns) throws IOException {
+    final SchemaInferrer inferrer = new SchemaInferrer(columns, sampleSize, null);
+    new ParallelCsvReader(new File(fileName), parsers).read(
+        new ParallelCsvReader.SegmentParser<SchemaInferrer>() {
+          @Override
+          public SchemaInferrer parse(CsvSegment segment, MappedCsvReader reader)
+              throws IOException {
+            SchemaInferrer partial = inferrer.newPartial();
+            if (segment.start == 0) {
+              // Skip the header row.
+              reader.next();
+            }
+            while (reader.next()) {
+              partial.observe(reader);
+            }
+            return partial;
           }
-        }
-        // Create the Geometry for this row.
-        Point geometry = new Point(Double.parseDouble(line[csvSchema.latIndex]),
-            Double.parseDouble(line[csvSchema.lngIndex]));
+        },
+        new ParallelCsvReader.ResultHandler<SchemaInferrer>() {
+          @Override
+          public void handle(SchemaInferrer partial) {
+            inferrer.merge(partial);
+          }
+        }, false);
+    return inferrer;
+  }
+
+  /**
+   * Open the file described, parse its data rows on all available cores and hand the resulting
+   * batches to the inserter.
+   */
+  private void loadCsvData(String fileName, final BatchSink<FeatureColumns.Batch> inserter)
+      throws IOException {
+    new ParallelCsvReader(new File(fileName), parsers).read(
+        new ParallelCsvReader.SegmentParser<FeatureColumns>() {
+          @Override
+          public FeatureColumns parse(CsvSegment segment, MappedCsvReader reader)
+              throws IOException {
+            return parseSegment(segment, reader);
+          }
+        },
+        new ParallelCsvReader.ResultHandler<FeatureColumns>() {
+          @Override
+          public void handle(FeatureColumns parsed) throws IOException {
+            List<FeatureColumns.Batch> batches = parsed.getBatches();
+            for (FeatureColumns.Batch batch : batches) {
+              inserter.send(batch);
+            }
+            featureCount += parsed.size();
+            batchCount += batches.size();
+          }
+        }, ordered);
+  }
 
-        // Convert the Geometry into a Feature by adding properties.  Then save it.
-        tableData.add(geometry.asFeature(properties));
+  /**
+   * Parses the rows of one segment into a columnar buffer, divided into batches. The batches are
+   * cut here, on the parsing thread, so a batch never spans two segments.
+   */
+  private FeatureColumns parseSegment(CsvSegment segment, MappedCsvReader reader)
+      throws IOException {
+    FeatureColumns parsed = csvSchema.rowConverter.newColumns(csvSchema.latIndex,
+        csvSchema.lngIndex, FeatureBatcher.MAX_FEATURES_PER_REQUEST,
+        FeatureBatcher.MAX_BYTES_PER_REQUEST);
+
+    if (segment.start == 0) {
+      // Skip the header row, it has already been used to generate the schema.
+      reader.next();
+    }
 
-        line = reader.readNext();
-      }
+    while (reader.next()) {
+      // Store the row's coordinates, and its values converted to the types in the schema. Empty
+      // values of typed columns are left out.
+      parsed.add(reader);
+    }
+    parsed.flush();
+    return parsed;
+  }
 
-    } catch (FileNotFoundException e) {
-      // This should be guarded by the File.exists() checks above.
-      AssertionError newEx = new AssertionError("File not found should already be handled");
-      newEx.initCause(e);
-      throw newEx;
+  /** Opens a CSV reader over the given file, exiting if it does not exist. */
+  private static MappedCsvReader openCsv(String fileName) throws IOException {
+    File inputFile = new File(fileName);
+    if (!inputFile.exists()) {
+      System.err.println("File " + fileName + " does not exist!");
+      System.exit(1);
     }
+    return new MappedCsvReader(inputFile);
   }
 
   /**
-   * Generate the table schema from the header and first data row of the CSV input.
+   * Generate the table schema from the header and inferred column types of the CSV input.
    * @param csvHeaderLine  The fields representing the header row of the CSV file.
-   * @param firstRow  The fields representing the first data row of the CSV file.
+   * @param types  The type inferred for each column from the data rows.
    */
-  private static CsvSchema generateSchema(String[] csvHeaderLine, String[] firstRow) {
+  private static CsvSchema generateSchema(String[] csvHeaderLine, ColumnType[] types) {
     if (csvHeaderLine.length < 3) {
       throw new IllegalArgumentException("CSV header requires at least 3 fields: an ID column,"
           + " a lat column and a lng column.");
     }
 
     CsvSchema csvSchema = new CsvSchema();
-    csvSchema.columnIndexToName = new HashMap<Integer, String>(csvHeaderLine.length);
+    csvSchema.latIndex = NOT_SEEN;
+    csvSchema.lngIndex = NOT_SEEN;
     List<TableColumn> columns = new ArrayList<TableColumn>();
+    List<String> propertyNames = new ArrayList<String>();
+    List<Integer> propertyColumns = new ArrayList<Integer>();
+    List<ColumnType> propertyTypes = new ArrayList<ColumnType>();
 
     // The geometry column must be first.  We only handle points in this sample.
     columns.add(new TableColumn().setName("geometry").setType("points"));
@@ -222,27 +361,17 @@ public class CsvBatchInsert {
       } else if (LNG_COLUMN_NAME.equals(columnName)) {
         csvSchema.lngIndex = i;
       } else {
-        // Infer the column type: if it looks like an integer, make it so. Default to string.
-        boolean isInteger = false;
-        try {
-          Integer.parseInt(firstRow[i]);
-          isInteger = true;
-        } catch (NumberFormatException ex) {
-          // Do nothing, isInteger should already be false.
-        }
-
         TableColumn col = new TableColumn();
         col.setName(columnName);
 
         // The first (ID) column must be a string, even if it's numeric.
-        if (isInteger && i != 0) {
-          col.setType("integer");
-        } else {
-          col.setType("string");
-        }
+        ColumnType type = i == 0 ? ColumnType.STRING : types[i];
+        col.setType(type.getTableColumnType());
 
         columns.add(col);
-        csvSchema.columnIndexToName.put(i, columnName);
+        propertyNames.add(columnName);
+        propertyColumns.add(i);
+        propertyTypes.add(type);
       }
     }
 
@@ -256,6 +385,7 @@ public class CsvBatchInsert {
     // Set the first column in the file as the ID column.
     schema.setPrimaryKey(csvHeaderLine[0]);
     csvSchema.tableSchema = schema;
+    csvSchema.rowConverter = new RowConverter(propertyNames, propertyColumns, propertyTypes);
     return csvSchema;
   }
 
@@ -269,11 +399,12 @@ public class CsvBatchInsert {
     return engine.tables().create(newTable).execute();
   }
 
-  /** Performs a batch insert of data into the table. */
-  private void insertData(Table table, List<Feature> features) throws IOException {
-    FeaturesBatchInsertRequest payload = new FeaturesBatchInsertRequest()
-        .setFeatures(features);
-    engine.tables().features().batchInsert(table.getId(), payload).execute();
+  /**
+   * Performs a batch insert of data into the table. The features are written to the request body
+   * straight from the columnar buffer as it is sent.
+   */
+  private void insertData(Table table, FeatureColumns.Batch batch) throws IOException {
+    featureClient.batchInsert(table.getId(), batch);
   }
 
   /** Creates a layer using the table provided. */
@@ -322,18 +453,8 @@ public class CsvBatchInsert {
       }
     }
 
-    while (!"complete".equals(layer.getProcessingStatus())) {
-      // This is safe to run in a while loop as it executes synchronously and we have used a
-      // BackOffWhenRateLimitedRequestInitializer when creating the engine.
-      try {
-        layer = engine.layers().get(layer.getId()).execute();
-        System.out.print(".");
-      } catch (IOException ex) {
-        // If we lose network connectivity here, it's safe to blindly retry.
-        System.out.print("?");
-      }
-    }
-    return layer;
+    // Poll, backing off between checks, until processing has completed.
+    return waiter.waitForLayer(layer.getId()).await();
   }
 
   /** Publish the given Layer */
@@ -363,16 +484,10 @@ public class CsvBatchInsert {
 
   /** Mark the provided map as "published", making it visible. */
   private PublishResponse publishMap(Map map) throws IOException {
-    while (true) {
-      try {
-        System.out.print(".");
-        // Initially the map will be in a 'processing' state and will return '400 Bad Request'
-        // while processing is happening. Keep trying until it works.
-        return engine.maps().publish(map.getId()).execute();
-      } catch (GoogleJsonResponseException ex) {
-        // Silently ignore the expected error.
-      }
-    }
+    // Initially the map will be in a 'processing' state and will return '400 Bad Request'
+    // while processing is happening. Wait until it's ready.
+    waiter.waitForMap(map.getId()).await();
+    return engine.maps().publish(map.getId()).execute();
   }
 
 }
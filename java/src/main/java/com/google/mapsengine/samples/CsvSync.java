@@ -0,0 +1,127 @@
+package com.google.mapsengine.samples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.MapsEngineScopes;
+import com.google.mapsengine.samples.auth.Utils;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.sync.TableSync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Demonstrate keeping a Maps Engine table up to date with a local CSV file, by sending only the
+ * rows that have changed since the table was last updated.
+ *
+ * The table's features are compared with the rows of the file by primary key: rows that aren't
+ * in the table are inserted, rows whose point or properties differ are patched, and features
+ * that aren't in the file are deleted. Rows are compared by hashes of their contents, so neither
+ * the table nor the file is held in memory. See {@link TableSync} for how.
+ *
+ * The hashes of the table's rows are kept in ~/.credentials/mapsengine-sync-TABLEID.index once a
+ * sync has finished, so the next sync of the table only needs to read the file. Edits made with
+ * the UpdateData tutorial update the index too. If the table has been changed some other way
+ * since, pass --rebuildIndex to download it again.
+ *
+ * The file must have the layout of the file the table was created from with the
+ * {@link CsvBatchInsert} sample: a "lat" and a "lng" column, and a column for each of the table's
+ * properties. You'll need the same credentials set up as for that sample.
+ */
+public class CsvSync {
+
+  private static final String APPLICATION_NAME = "Google/MapsEngineCsvSync-1.0";
+  private static final Collection<String> SCOPES = Arrays.asList(MapsEngineScopes.MAPSENGINE);
+  private static final int DEFAULT_WORKERS = 4;
+  private static final String DRY_RUN_FLAG = "--dryRun";
+  private static final String INDEX_FLAG = "--index=";
+  private static final String REBUILD_INDEX_FLAG = "--rebuildIndex";
+
+  private boolean dryRun;
+  private File indexFile;
+  private boolean rebuildIndex;
+
+  private final MapsEngineClients clients = new MapsEngineClients();
+  private final ForkJoinPool parsers =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  public static void main(String[] args) {
+    CsvSync sync = new CsvSync();
+    List<String> positional = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.equals(DRY_RUN_FLAG)) {
+        sync.dryRun = true;
+      } else if (arg.startsWith(INDEX_FLAG)) {
+        sync.indexFile = new File(arg.substring(INDEX_FLAG.length()));
+      } else if (arg.equals(REBUILD_INDEX_FLAG)) {
+        sync.rebuildIndex = true;
+      } else if (!sync.clients.parseFlag(arg)) {
+        positional.add(arg);
+      }
+    }
+
+    if (positional.size() < 2) {
+      System.err.println("Usage: java ... CsvSync [--dryRun] [--index=FILE] [--rebuildIndex] "
+          + "[--transport=net|apache] [--no-gzip] myfile.csv tableId [workers]");
+      System.err.println(" myfile.csv is the path to the CSV file holding the table's new rows");
+      System.err.println(" tableId is the ID of the table to update");
+      System.err.println(" workers is the number of batch requests to run concurrently, "
+          + "defaults to " + DEFAULT_WORKERS);
+      System.err.println(" --dryRun counts the changes without sending them");
+      System.err.println(" --index keeps the hashes of the table's rows in FILE, defaults to "
+          + "~/.credentials/mapsengine-sync-tableId.index");
+      System.err.println(" --rebuildIndex downloads the table to build the index, even if one "
+          + "exists");
+      MapsEngineClients.printUsage();
+      System.exit(1);
+    }
+
+    try {
+      int workers =
+          positional.size() > 2 ? Integer.parseInt(positional.get(2)) : DEFAULT_WORKERS;
+      sync.run(positional.get(0), positional.get(1), workers);
+    } catch (Exception ex) {
+      System.err.println("An unexpected error occurred!");
+      ex.printStackTrace(System.err);
+      System.exit(1);
+    }
+  }
+
+  public void run(String fileName, String tableId, int workers) throws IOException {
+    File csvFile = new File(fileName);
+    if (!csvFile.exists()) {
+      System.err.println("File " + fileName + " does not exist!");
+      System.exit(1);
+    }
+
+    System.out.println("Authorizing. If this takes a while, check your browser.");
+    // Keep a connection alive for each worker.
+    clients.setMaxConnections(workers);
+    Credential credential =
+        Utils.authorizeUser(clients.getTransport(), clients.getJsonFactory(), SCOPES);
+    System.out.println("Authorization successful!");
+    MapsEngine engine = clients.newClient(credential, APPLICATION_NAME);
+
+    System.out.println("Comparing " + fileName + " with table " + tableId
+        + (dryRun ? ", without changing the table." : ", using " + workers + " workers."));
+    if (indexFile == null) {
+      indexFile = TableSync.defaultIndexFile(tableId);
+    }
+    TableSync sync = new TableSync(engine, tableId, csvFile, parsers)
+        .setWorkers(workers)
+        .setDryRun(dryRun)
+        .setIndexFile(indexFile)
+        .setRebuildIndex(rebuildIndex);
+    sync.run();
+    System.out.println(String.format("Done. %s %d rows, patched %d and deleted %d. %d rows were "
+        + "unchanged.", dryRun ? "Would have inserted" : "Inserted", sync.getInsertCount(),
+        sync.getPatchCount(), sync.getDeleteCount(), sync.getUnchangedCount()));
+    parsers.shutdown();
+    clients.shutdown();
+  }
+}
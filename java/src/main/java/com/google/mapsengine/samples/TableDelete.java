@@ -1,49 +1,82 @@
 package com.google.mapsengine.samples;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.mapsengine.MapsEngine;
 import com.google.api.services.mapsengine.MapsEngineScopes;
-import com.google.api.services.mapsengine.model.Asset;
-import com.google.api.services.mapsengine.model.Map;
-import com.google.api.services.mapsengine.model.MapFolder;
-import com.google.api.services.mapsengine.model.MapItem;
-import com.google.api.services.mapsengine.model.MapLayer;
-import com.google.api.services.mapsengine.model.Parent;
-import com.google.api.services.mapsengine.model.ParentsListResponse;
-import com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer;
-import com.google.maps.clients.HttpRequestInitializerPipeline;
+import com.google.api.services.mapsengine.model.Table;
+import com.google.api.services.mapsengine.model.TablesListResponse;
 import com.google.mapsengine.samples.auth.Utils;
-
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.deletion.DeletionJournal;
+import com.google.mapsengine.samples.deletion.DeletionPlan;
+import com.google.mapsengine.samples.deletion.DeletionPlan.AssetType;
+import com.google.mapsengine.samples.deletion.DeletionPlanner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Demonstrate the DELETE actions and the parents endpoints.
  *
- * Specify the asset ID of a table on the command-line to delete it forcibly,
- * removing any layers and maps that depend on it and clearing out assets that would be left
- * unused after deletion. The app will NOT prompt for confirmation before deleting.
+ * Specify the asset IDs of one or more tables on the command-line to delete them forcibly,
+ * removing any layers and maps that depend on them and clearing out assets that would be left
+ * unused after deletion. The tables can also be read from a file, one ID per line, or found by
+ * listing a project's tables. The app will NOT prompt for confirmation before deleting; run it with
+ * --dryRun first to see what would be deleted.
+ *
+ * Every dependent asset is found, and checked, before anything is deleted: if a layer or map is
+ * published, or a map holds layers that wouldn't be deleted, nothing is. Layers and maps shared by
+ * several of the tables are looked up and deleted once. The assets are found and then deleted by a
+ * pool of workers, each asset as soon as nothing depends on it any more.
+ *
+ * Each deleted asset is recorded in ~/.credentials/mapsengine-deletions.log, so if the run is
+ * interrupted, running the same command again skips the assets already deleted without looking
+ * them up again. The log is removed once everything has been deleted.
  */
 public class TableDelete {
   private static final String APPLICATION_NAME = "Google/MapsEngineTableDelete-1.0";
   private static final Collection<String> SCOPES = Arrays.asList(MapsEngineScopes.MAPSENGINE);
   private static final Logger LOG = Logger.getLogger(TableDelete.class.getName());
 
+  private static final File DEFAULT_CHECKPOINT = new File(System.getProperty("user.home"),
+      ".credentials/mapsengine-deletions.log");
+  private static final String TABLES_FLAG = "--tables=";
+  private static final String PROJECT_FLAG = "--project=";
+  private static final String MODIFIED_BEFORE_FLAG = "--modifiedBefore=";
+  private static final String CHECKPOINT_FLAG = "--checkpoint=";
+  private static final String WORKERS_FLAG = "--workers=";
+  private static final String DRY_RUN_FLAG = "--dryRun";
+
+  /** The default number of requests to have in flight at once. */
+  private static final int DEFAULT_WORKERS = 8;
+
   private MapsEngine engine;
 
-  private final HttpTransport httpTransport = new NetHttpTransport();
-  private final JsonFactory jsonFactory = new GsonFactory();
+  private final List<String> tableIds = new ArrayList<String>();
+  private File tablesFile;
+  private String projectId;
+  private DateTime modifiedBefore;
+  private File checkpoint = DEFAULT_CHECKPOINT;
+  private int workers = DEFAULT_WORKERS;
+  private boolean dryRun;
+
+  private final MapsEngineClients clients = new MapsEngineClients();
 
   public static void main(String[] args) {
     try {
@@ -55,162 +88,151 @@ public class TableDelete {
   }
 
   private void run(String[] args) throws IOException {
-    String tableId = parseArgs(args);
+    parseArgs(args);
+    clients.setMaxConnections(workers);
 
     // Log in
-    Credential credential = Utils.authorizeUser(httpTransport, jsonFactory, SCOPES);
-
-    // Set up automatic retry of failed requests.
-    HttpRequestInitializerPipeline initializers = new HttpRequestInitializerPipeline(credential,
-        new BackOffWhenRateLimitedRequestInitializer());
-
-    engine = new MapsEngine.Builder(httpTransport, jsonFactory, initializers)
-        .setApplicationName(APPLICATION_NAME)
-        .build();
-
-    if (!validateId(tableId)) {
-      throw new AssertionError("Provided ID is not a table, missing, "
-          + "invalid or you don't have access.");
-    }
+    Credential credential =
+        Utils.authorizeUser(clients.getTransport(), clients.getJsonFactory(), SCOPES);
 
-    LOG.info("Attempting to delete table ID: " + tableId);
-    deleteTable(tableId);
-  }
+    // Set up automatic retry of failed requests, slowing down when we are rate limited.
+    engine = clients.newClient(credential, APPLICATION_NAME);
 
-  private String parseArgs(String[] args) {
-    String tableId = "";
-    if (args.length != 1) {
-      System.err.println("Usage: java ... TableDelete tableId");
-      System.err.println(" tableId is the ID string of the table to delete.");
-      System.err.println(" WARNING: This will delete without further confirmation!");
-      System.err.println(" WARNING: This will delete the table specified as well as any "
-          + "layers or maps that use it!");
-      System.err.println(" This will not delete maps using other layers.");
-      System.exit(1);
-    } else {
-      tableId = args[0];
+    Set<String> ids = findTableIds();
+    if (ids.isEmpty()) {
+      System.out.println("No tables to delete.");
+      clients.shutdown();
+      return;
     }
-    return tableId;
-  }
 
-  /** Ensures the given ID belongs to a table and that the user can access it. */
-  private boolean validateId(String tableId) throws IOException {
+    DeletionJournal journal = new DeletionJournal(checkpoint);
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
     try {
-      Asset asset = engine.assets().get(tableId).execute();
-      return "table".equalsIgnoreCase(asset.getType());
-    } catch (GoogleJsonResponseException ex) {
-      // A "400 Bad Request" is thrown when the asset ID is missing or invalid
-      return false;
-    }
-  }
-
-  /** Deletes a table, including any layers displaying the table. */
-  private void deleteTable(String tableId) throws IOException {
-    LOG.info("Finding layers belonging to table.");
-    ParentsListResponse tableParents = engine.tables().parents().list(tableId).execute();
-    LOG.info("Layers retrieved.");
-
-    // Collect the layer IDs to ensure we can safely delete maps.
-    Set<String> allLayerIds = new HashSet<String>();
-    for (Parent tableParent : tableParents.getParents()) {
-      allLayerIds.add(tableParent.getId());
-    }
-
-    // We need to delete layers before we can delete the table.
-    deleteLayers(allLayerIds);
-
-    LOG.info("Deleting table.");
-    engine.tables().delete(tableId).execute();
-    LOG.info("Table deleted.");
-
-  }
-
-  /** Deletes the provided layers, including any maps where they are used. */
-  private void deleteLayers(Set<String> layerIds) throws IOException {
-    for (String layerId : layerIds) {
-      assertLayerIsNotPublished(layerId);
-
-      LOG.info("Layer ID: " + layerId + ", finding maps.");
-      ParentsListResponse layerParents = engine.layers().parents().list(layerId).execute();
-      // Delete each layer. Note that these operations are not transactional,
-      // so if a later operation fails, the earlier assets will still be deleted.
-      for (Parent layerParent : layerParents.getParents()) {
-        String mapId = layerParent.getId();
-        deleteMap(layerIds, mapId);
+      if (journal.size() > 0) {
+        System.out.println(String.format("Skipping %d asset(s) already deleted, as recorded in %s",
+            journal.size(), checkpoint));
       }
-
-      LOG.info("Deleting layer.");
-      engine.layers().delete(layerId).execute();
-      LOG.info("Layer deleted.");
+      LOG.info("Planning the deletion of " + ids.size() + " table(s).");
+      DeletionPlan plan = new DeletionPlanner(engine, executor).plan(ids, journal);
+      printPlan(plan);
+      if (dryRun) {
+        System.out.println("Dry run, nothing has been deleted.");
+      } else {
+        plan.execute(engine, executor, journal);
+        // Everything has gone, so there's nothing left to resume.
+        journal.clear();
+        System.out.println("Tables deleted.");
+      }
+    } finally {
+      executor.shutdown();
+      journal.close();
     }
+    clients.shutdown();
   }
 
-  // TODO(macd): Update this to edit the map, once available in the API.
-  /** Safely deletes a map, as long as all layers contained are scheduled for deletion. */
-  private void deleteMap(Set<String> layerIdsPendingDeletion, String mapId) throws IOException {
-    assertMapIsNotPublished(mapId);
-
-    LOG.info("Checking for other layers on this map (ID: " + mapId + ")");
-    Set<String> mapLayerIds = getLayerIdsFromMap(mapId);
-
-    // Determine if this map will still have layers once we perform our delete.
-    mapLayerIds.removeAll(layerIdsPendingDeletion);
-    if (mapLayerIds.size() == 0) {
-      // Map will not contain any more Layers when done, so delete it.
-      LOG.info("Deleting map.");
-      engine.maps().delete(mapId).execute();
-      LOG.info("Map deleted.");
-    } else {
-      // Map will contain Layers not scheduled for deletion, so we can't continue.
-      throw new IllegalStateException("Map " + mapId + " contains layers not scheduled for "
-          + "deletion. You will need to remove them before we can delete this map.");
+  /** Collects the IDs given on the command-line, in the tables file and in the project. */
+  private Set<String> findTableIds() throws IOException {
+    Set<String> ids = new LinkedHashSet<String>(tableIds);
+    if (tablesFile != null) {
+      ids.addAll(readTableIds(tablesFile));
+    }
+    if (projectId != null) {
+      ids.addAll(listTableIds(projectId, modifiedBefore));
     }
+    return ids;
   }
 
-  /** Ensures that a layer is not published. Useful to test before deleting. */
-  private void assertLayerIsNotPublished(String layerId) throws IOException {
-    boolean publishedVersionExists;
+  /** Reads one table ID per line, skipping blank lines and # comments. */
+  private static List<String> readTableIds(File file) throws IOException {
+    List<String> ids = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
     try {
-      engine.layers().get(layerId).setVersion("published").execute();
-      publishedVersionExists = true;
-    } catch (GoogleJsonResponseException ex) {
-      // The API failed to retrieve a published version.
-      publishedVersionExists = false;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          ids.add(line);
+        }
+      }
+    } finally {
+      reader.close();
     }
+    return ids;
+  }
 
-    if (publishedVersionExists) {
-      throw new AssertionError("Layer ID " + layerId + " is published, "
-          + "please un-publish before deleting.");
-    }
+  /** Lists the IDs of the project's tables, optionally only those last modified before a date. */
+  private List<String> listTableIds(String projectId, DateTime modifiedBefore)
+      throws IOException {
+    LOG.info("Listing the tables in project " + projectId);
+    List<String> ids = new ArrayList<String>();
+    String pageToken = null;
+    do {
+      MapsEngine.Tables.List list = engine.tables().list()
+          .setProjectId(projectId)
+          .setPageToken(pageToken);
+      if (modifiedBefore != null) {
+        list.setModifiedBefore(modifiedBefore);
+      }
+      TablesListResponse page = list.execute();
+      if (page.getTables() != null) {
+        for (Table table : page.getTables()) {
+          ids.add(table.getId());
+        }
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    return ids;
   }
 
-  /** Ensures that a map is not published. Useful to test before deleting. */
-  private void assertMapIsNotPublished(String mapId) throws IOException {
-    Map map = engine.maps().get(mapId).execute();
-    if (map.getVersions().contains("published")) {
-      throw new AssertionError("Map ID " + mapId + " is published, "
-          + "please un-publish before deleting.");
+  private static void printPlan(DeletionPlan plan) {
+    System.out.println(String.format("Deleting %d map(s), %d layer(s) and %d table(s):",
+        plan.count(AssetType.MAP), plan.count(AssetType.LAYER), plan.count(AssetType.TABLE)));
+    for (AssetType type : AssetType.values()) {
+      for (String id : plan.getIds(type)) {
+        System.out.println("  " + type.name().toLowerCase(Locale.ENGLISH) + " " + id);
+      }
     }
   }
 
-  /** Finds all layers attached to a map. */
-  private Set<String> getLayerIdsFromMap(String mapId) throws IOException {
-    // Retrieve the map.
-    Map map = engine.maps().get(mapId).execute();
-
-    // Find the layers
-    Set<String> layerIds = new HashSet<String>();
-    List<MapItem> mapContents = map.getContents();
-    while (mapContents != null && mapContents.size() > 0) {
-      MapItem item = mapContents.remove(0);
-      if (item instanceof MapLayer) {
-        layerIds.add(((MapLayer) item).getId());
-      } else if (item instanceof MapFolder) {
-        mapContents.addAll(((MapFolder) item).getContents());
+  private void parseArgs(String[] args) {
+    for (String arg : args) {
+      if (arg.startsWith(TABLES_FLAG)) {
+        tablesFile = new File(arg.substring(TABLES_FLAG.length()));
+      } else if (arg.startsWith(PROJECT_FLAG)) {
+        projectId = arg.substring(PROJECT_FLAG.length());
+      } else if (arg.startsWith(MODIFIED_BEFORE_FLAG)) {
+        modifiedBefore = DateTime.parseRfc3339(arg.substring(MODIFIED_BEFORE_FLAG.length()));
+      } else if (arg.startsWith(CHECKPOINT_FLAG)) {
+        checkpoint = new File(arg.substring(CHECKPOINT_FLAG.length()));
+      } else if (arg.startsWith(WORKERS_FLAG)) {
+        workers = Integer.parseInt(arg.substring(WORKERS_FLAG.length()));
+      } else if (arg.equals(DRY_RUN_FLAG)) {
+        dryRun = true;
+      } else if (!clients.parseFlag(arg)) {
+        tableIds.add(arg);
       }
-      // MapKmlLinks do not have IDs
     }
-
-    return layerIds;
+    if ((tableIds.isEmpty() && tablesFile == null && projectId == null)
+        || (modifiedBefore != null && projectId == null) || workers < 1) {
+      System.err.println("Usage: java ... TableDelete [--transport=net|apache] [--no-gzip] "
+          + "[--dryRun] [--tables=FILE] [--project=ID [--modifiedBefore=DATE]] "
+          + "[--checkpoint=FILE] [--workers=N] [tableId ...]");
+      System.err.println(" tableId is the ID string of a table to delete.");
+      System.err.println(" --tables reads more table IDs from a file, one per line.");
+      System.err.println(" --project deletes the tables in a project, with --modifiedBefore only "
+          + "those last modified before a date, such as 2014-01-31.");
+      System.err.println(" --dryRun lists the assets that would be deleted, without deleting "
+          + "them.");
+      System.err.println(" --checkpoint records the assets deleted so far, defaults to "
+          + DEFAULT_CHECKPOINT);
+      System.err.println(" --workers is the number of requests to send at once, defaults to "
+          + DEFAULT_WORKERS);
+      System.err.println(" WARNING: This will delete without further confirmation!");
+      System.err.println(" WARNING: This will delete the tables specified as well as any "
+          + "layers or maps that use them!");
+      System.err.println(" This will not delete maps using other layers.");
+      MapsEngineClients.printUsage();
+      System.exit(1);
+    }
   }
 }
@@ -0,0 +1,164 @@
+package com.google.mapsengine.samples;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.MapsEngineScopes;
+import com.google.api.services.mapsengine.model.Schema;
+import com.google.mapsengine.samples.auth.Utils;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.export.CsvFeatureWriter;
+import com.google.mapsengine.samples.export.FeatureWriter;
+import com.google.mapsengine.samples.export.GeoJsonFeatureWriter;
+import com.google.mapsengine.samples.export.NdjsonFeatureWriter;
+import com.google.mapsengine.samples.export.TableExporter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Demonstrate reading a table's features back, by exporting them to a local file.
+ *
+ * The features are written as newline-delimited GeoJSON, one feature per line, as a GeoJSON
+ * FeatureCollection, or as CSV. A CSV export of a table of points has the layout the
+ * {@link CsvBatchInsert} and {@link CsvSync} samples read. Features are written as their pages
+ * arrive, so the export holds only a few pages in memory, and several pages are requested at once.
+ * See {@link TableExporter} for how.
+ *
+ * The export is written to a file alongside the output file, with ".tmp" added to its name, and
+ * only replaces the output file once every feature has been written. A failed export is deleted,
+ * leaving any earlier export in place.
+ */
+public class TableExport {
+
+  private static final String APPLICATION_NAME = "Google/MapsEngineTableExport-1.0";
+  private static final Collection<String> SCOPES =
+      Arrays.asList(MapsEngineScopes.MAPSENGINE_READONLY);
+
+  private static final String FORMAT_FLAG = "--format=";
+  private static final String WORKERS_FLAG = "--workers=";
+  private static final String WHERE_FLAG = "--where=";
+
+  /** The default number of pages to request at once. */
+  private static final int DEFAULT_WORKERS = 4;
+
+  private enum Format {
+    NDJSON,
+    GEOJSON,
+    CSV
+  }
+
+  private Format format = Format.NDJSON;
+  private int workers = DEFAULT_WORKERS;
+  private String where;
+
+  private final MapsEngineClients clients = new MapsEngineClients();
+
+  public static void main(String[] args) {
+    TableExport export = new TableExport();
+    List<String> positional = new ArrayList<String>();
+    try {
+      for (String arg : args) {
+        if (arg.startsWith(FORMAT_FLAG)) {
+          export.format = Format.valueOf(
+              arg.substring(FORMAT_FLAG.length()).toUpperCase(Locale.ENGLISH));
+        } else if (arg.startsWith(WORKERS_FLAG)) {
+          export.workers = Integer.parseInt(arg.substring(WORKERS_FLAG.length()));
+        } else if (arg.startsWith(WHERE_FLAG)) {
+          export.where = arg.substring(WHERE_FLAG.length());
+        } else if (!export.clients.parseFlag(arg)) {
+          positional.add(arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Covers an unknown format and a worker count that isn't a number.
+      positional.clear();
+    }
+
+    if (positional.size() != 2 || export.workers < 1) {
+      System.err.println("Usage: java ... TableExport [--format=ndjson|geojson|csv] "
+          + "[--workers=N] [--where=EXPR] [--transport=net|apache] [--no-gzip] tableId outfile");
+      System.err.println(" tableId is the ID of the table to export");
+      System.err.println(" outfile is the path of the file to write, replacing any existing file");
+      System.err.println(" --format chooses the file format, defaults to ndjson");
+      System.err.println(" --workers is the number of pages to request at once, defaults to "
+          + DEFAULT_WORKERS + ". With 1, the table is read as a single listing.");
+      System.err.println(" --where only exports the features matching a filter, such as "
+          + "\"population > 1000\"");
+      MapsEngineClients.printUsage();
+      System.exit(1);
+    }
+
+    try {
+      export.run(positional.get(0), new File(positional.get(1)));
+    } catch (Exception ex) {
+      System.err.println("An unexpected error occurred!");
+      ex.printStackTrace(System.err);
+      System.exit(1);
+    }
+  }
+
+  public void run(String tableId, File outFile) throws IOException {
+    System.out.println("Authorizing. If this takes a while, check your browser.");
+    // Keep a connection alive for each worker.
+    clients.setMaxConnections(workers);
+    Credential credential =
+        Utils.authorizeUser(clients.getTransport(), clients.getJsonFactory(), SCOPES);
+    System.out.println("Authorization successful!");
+    MapsEngine engine = clients.newClient(credential, APPLICATION_NAME);
+
+    System.out.println("Exporting table " + tableId + " to " + outFile + ", using " + workers
+        + " workers.");
+    Schema schema =
+        format == Format.CSV ? engine.tables().get(tableId).execute().getSchema() : null;
+    TableExporter exporter = new TableExporter(engine, tableId)
+        .setWorkers(workers)
+        .setWhere(where);
+
+    // The export is renamed into place once complete, so one that fails doesn't look finished.
+    File tempFile = new File(outFile.getPath() + ".tmp");
+    Writer out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8));
+    long count;
+    boolean exported = false;
+    try {
+      FeatureWriter writer;
+      if (format == Format.CSV) {
+        writer = new CsvFeatureWriter(out, engine.getJsonFactory(), schema);
+      } else if (format == Format.GEOJSON) {
+        writer = new GeoJsonFeatureWriter(out, engine.getJsonFactory());
+      } else {
+        writer = new NdjsonFeatureWriter(out, engine.getJsonFactory());
+      }
+      try {
+        count = exporter.export(writer);
+      } finally {
+        writer.close();
+      }
+      exported = true;
+    } finally {
+      if (!exported) {
+        try {
+          out.close();
+        } finally {
+          Files.deleteIfExists(tempFile.toPath());
+        }
+      }
+    }
+    Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    System.out.println(String.format("Done. Exported %d features from %d pages.", count,
+        exporter.getPageCount()));
+    clients.shutdown();
+  }
+}
@@ -0,0 +1,246 @@
+package com.google.mapsengine.samples;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.clients.StreamingBatchContent;
+import com.google.mapsengine.samples.clients.StreamingFeatureClient;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Measures batchInsert throughput with each HTTP transport, with and without gzipped request
+ * bodies, against a stub server running locally. No credentials are needed.
+ *
+ * The stub reads and discards each request body and counts the bytes that arrive and the
+ * connections they arrive on. Over loopback the network costs almost nothing, so pass
+ * --bandwidthMbps to make the stub read no faster than a real link would carry the data.
+ */
+public class TransportBenchmark {
+
+  private static final String APPLICATION_NAME = "Google/MapsEngineTransportBenchmark-1.0";
+  private static final String BANDWIDTH_FLAG = "--bandwidthMbps=";
+  private static final int DEFAULT_REQUESTS = 500;
+  private static final int DEFAULT_WORKERS = 4;
+  private static final String[] CATEGORIES = {"residential", "commercial", "industrial", "park"};
+
+  private final Stub stub = new Stub();
+  private long bandwidthBitsPerSecond;
+
+  public static void main(String[] args) throws Exception {
+    TransportBenchmark benchmark = new TransportBenchmark();
+    List<String> positional = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.startsWith(BANDWIDTH_FLAG)) {
+        benchmark.bandwidthBitsPerSecond =
+            Long.parseLong(arg.substring(BANDWIDTH_FLAG.length())) * 1000 * 1000;
+      } else {
+        positional.add(arg);
+      }
+    }
+    if (positional.size() > 2) {
+      System.err.println("Usage: java ... TransportBenchmark [--bandwidthMbps=N] [requests] "
+          + "[workers]");
+      System.err.println(" requests is the number of batchInsert requests to time, defaults to "
+          + DEFAULT_REQUESTS);
+      System.err.println(" workers is the number of requests to send concurrently, defaults to "
+          + DEFAULT_WORKERS);
+      System.err.println(" --bandwidthMbps limits the rate at which the stub reads requests");
+      System.exit(1);
+    }
+    int requests =
+        positional.size() > 0 ? Integer.parseInt(positional.get(0)) : DEFAULT_REQUESTS;
+    int workers = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : DEFAULT_WORKERS;
+    benchmark.run(requests, workers);
+  }
+
+  public void run(int requests, int workers) throws Exception {
+    Server server = new Server(0);
+    server.setHandler(stub);
+    server.start();
+    try {
+      String rootUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/";
+      System.out.println(String.format("%d requests of %d features, %d workers, %s.", requests,
+          FeatureBatcher.MAX_FEATURES_PER_REQUEST, workers, bandwidthBitsPerSecond == 0
+              ? "unlimited bandwidth" : bandwidthBitsPerSecond / 1000 / 1000 + " Mbps"));
+      System.out.println("transport  gzip  requests/s  features/s  KB/request  connections");
+      for (MapsEngineClients.Transport transport : MapsEngineClients.Transport.values()) {
+        for (boolean compress : new boolean[] {false, true}) {
+          measure(transport, compress, rootUrl, requests, workers);
+        }
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  /** Times the requests with one configuration, and prints a line of results. */
+  private void measure(MapsEngineClients.Transport transport, boolean compress, String rootUrl,
+      int requests, int workers) throws Exception {
+    MapsEngineClients clients = new MapsEngineClients()
+        .setTransport(transport)
+        .setCompress(compress)
+        .setMaxConnections(workers);
+    double seconds;
+    try {
+      // Only the transport and compression are measured, so there is no credential or rate
+      // limit.
+      MapsEngine engine = clients.newClient(new HttpRequestInitializer() {
+        @Override
+        public void initialize(HttpRequest request) {}
+      }, APPLICATION_NAME, rootUrl);
+      StreamingFeatureClient featureClient = new StreamingFeatureClient(engine);
+
+      // Warm up the JIT and the connection pool before timing anything.
+      send(featureClient, workers * 10, workers);
+      stub.reset();
+      long start = System.nanoTime();
+      send(featureClient, requests, workers);
+      seconds = (System.nanoTime() - start) / 1e9;
+    } finally {
+      clients.shutdown();
+    }
+
+    System.out.println(String.format("%-9s  %-4s  %10.1f  %10.0f  %10.1f  %11d",
+        transport.name().toLowerCase(), compress ? "yes" : "no", requests / seconds,
+        requests * FeatureBatcher.MAX_FEATURES_PER_REQUEST / seconds,
+        stub.bytes.get() / 1024.0 / requests, stub.connections.size()));
+  }
+
+  /** Sends the requests from a pool of workers, and waits for them all to complete. */
+  private void send(final StreamingFeatureClient featureClient, int requests, int workers)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < requests; i++) {
+        final int batch = i;
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            featureClient.batchInsert("benchmark", new SyntheticFeatures(batch));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  /** Point features with a mix of property types, much like those of a typical CSV file. */
+  private static class SyntheticFeatures implements StreamingBatchContent.FeatureSource {
+    private final int batch;
+
+    SyntheticFeatures(int batch) {
+      this.batch = batch;
+    }
+
+    @Override
+    public void writeFeatures(JsonGenerator generator) throws IOException {
+      for (int i = 0; i < FeatureBatcher.MAX_FEATURES_PER_REQUEST; i++) {
+        int row = batch * FeatureBatcher.MAX_FEATURES_PER_REQUEST + i;
+        generator.writeStartObject();
+        generator.writeFieldName("type");
+        generator.writeString("Feature");
+        generator.writeFieldName("geometry");
+        generator.writeStartObject();
+        generator.writeFieldName("type");
+        generator.writeString("Point");
+        generator.writeFieldName("coordinates");
+        generator.writeStartArray();
+        generator.writeNumber(-122.0 + (row % 1000) * 0.000731);
+        generator.writeNumber(37.0 + (row % 997) * 0.000573);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeFieldName("properties");
+        generator.writeStartObject();
+        generator.writeFieldName("id");
+        generator.writeString("feature-" + row);
+        generator.writeFieldName("category");
+        generator.writeString(CATEGORIES[row % CATEGORIES.length]);
+        generator.writeFieldName("population");
+        generator.writeNumber(row * 7919L % 100000);
+        generator.writeFieldName("growth");
+        generator.writeNumber((row % 2000 - 1000) / 333.0);
+        generator.writeFieldName("updated");
+        generator.writeString("2014-06-" + (10 + row % 20) + "T12:00:00Z");
+        generator.writeEndObject();
+        generator.writeEndObject();
+      }
+    }
+  }
+
+  /** Accepts every request, counting the bytes and connections that requests arrive on. */
+  private class Stub extends AbstractHandler {
+    final AtomicLong bytes = new AtomicLong();
+    final Set<String> connections = Collections.synchronizedSet(new HashSet<String>());
+
+    /** When the simulated link will next be free to carry data, in System.nanoTime() terms. */
+    private long linkFreeAt;
+
+    void reset() {
+      bytes.set(0);
+      connections.clear();
+    }
+
+    @Override
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response,
+        int dispatch) throws IOException {
+      connections.add(request.getRemoteAddr() + ":" + request.getRemotePort());
+      InputStream in = request.getInputStream();
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        bytes.addAndGet(read);
+        transmit(read);
+      }
+      response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      ((Request) request).setHandled(true);
+    }
+
+    /** Waits for the simulated link to carry the given number of bytes. */
+    private void transmit(int length) throws IOException {
+      if (bandwidthBitsPerSecond == 0) {
+        return;
+      }
+      long doneAt;
+      synchronized (this) {
+        long nanos = length * 8L * TimeUnit.SECONDS.toNanos(1) / bandwidthBitsPerSecond;
+        linkFreeAt = Math.max(linkFreeAt, System.nanoTime()) + nanos;
+        doneAt = linkFreeAt;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(doneAt - System.nanoTime());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while simulating the network.", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.google.mapsengine.samples.auth;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes access tokens in the background, a few minutes before they expire, so that a long
+ * run never sees its token go stale.
+ *
+ * Left to itself, a credential only refreshes its token when a request finds it about to expire,
+ * or when the server rejects it with a 401, so in a multi-hour ingest every worker stalls or fails
+ * at the moment the token runs out. Here the refresh is made once, on a single scheduler thread,
+ * while the old token is still good.
+ *
+ * A refresh that fails is retried every 30 seconds. A credential refreshed by some other means,
+ * such as a 401, is noticed when its refresh falls due, and its next refresh is put back to match
+ * its new expiry. Thread-safe.
+ */
+public class CredentialManager {
+
+  private static final Logger LOG = Logger.getLogger(CredentialManager.class.getName());
+
+  private static final long DEFAULT_REFRESH_MARGIN_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+  private static final long RETRY_SECONDS = 30;
+
+  private static final CredentialManager SHARED =
+      new CredentialManager(DEFAULT_REFRESH_MARGIN_SECONDS, TimeUnit.SECONDS);
+
+  private final long marginSeconds;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "credential-refresh");
+          // Tokens only need refreshing while something else is keeping the process alive.
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /** The next refresh of each managed credential. Guarded by itself. */
+  private final Map<Credential, ScheduledFuture<?>> refreshes =
+      new IdentityHashMap<Credential, ScheduledFuture<?>>();
+
+  /** Returns the manager shared by every credential in this process. */
+  public static CredentialManager shared() {
+    return SHARED;
+  }
+
+  /** @param refreshMargin How long before a token expires to refresh it, in the given unit. */
+  public CredentialManager(long refreshMargin, TimeUnit unit) {
+    this.marginSeconds = unit.toSeconds(refreshMargin);
+  }
+
+  /**
+   * Starts keeping the credential's token fresh. If the token is missing, or due to be refreshed
+   * already, it is refreshed now, before this returns.
+   *
+   * @return Whether the credential has a token. If the refresh failed, it isn't managed.
+   */
+  public boolean manage(Credential credential) throws IOException {
+    if (credential.getAccessToken() == null || secondsUntilRefresh(credential) <= 0) {
+      if (!credential.refreshToken()) {
+        return false;
+      }
+    }
+    schedule(credential, secondsUntilRefresh(credential));
+    return true;
+  }
+
+  /** Stops refreshing the credential's token. */
+  public void release(Credential credential) {
+    synchronized (refreshes) {
+      ScheduledFuture<?> refresh = refreshes.remove(credential);
+      if (refresh != null) {
+        refresh.cancel(false);
+      }
+    }
+  }
+
+  /** Returns the number of seconds until the token is due to be refreshed, which may be past. */
+  private long secondsUntilRefresh(Credential credential) {
+    Long expiresIn = credential.getExpiresInSeconds();
+    // A token without an expiry time never needs refreshing.
+    return expiresIn == null ? Long.MAX_VALUE : expiresIn - marginSeconds;
+  }
+
+  private void schedule(final Credential credential, long delaySeconds) {
+    if (delaySeconds == Long.MAX_VALUE) {
+      release(credential);
+      return;
+    }
+    synchronized (refreshes) {
+      ScheduledFuture<?> previous = refreshes.put(credential, scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          refresh(credential);
+        }
+      }, Math.max(0, delaySeconds), TimeUnit.SECONDS));
+      if (previous != null) {
+        previous.cancel(false);
+      }
+    }
+  }
+
+  /** Refreshes the token if it is still due, and schedules the next refresh. */
+  private void refresh(Credential credential) {
+    synchronized (refreshes) {
+      if (!refreshes.containsKey(credential)) {
+        return;
+      }
+    }
+
+    long delaySeconds = secondsUntilRefresh(credential);
+    if (delaySeconds <= 0) {
+      try {
+        if (credential.refreshToken()) {
+          delaySeconds = secondsUntilRefresh(credential);
+        } else {
+          LOG.warning("The token could not be refreshed, retrying in " + RETRY_SECONDS + "s");
+          delaySeconds = RETRY_SECONDS;
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to refresh the token, retrying in " + RETRY_SECONDS + "s",
+            e);
+        delaySeconds = RETRY_SECONDS;
+      } catch (RuntimeException e) {
+        // Such as a credential refresh listener that throws. Letting it escape would end this
+        // task, and the token would never be refreshed again.
+        LOG.log(Level.SEVERE, "Failed to refresh the token, retrying in " + RETRY_SECONDS + "s",
+            e);
+        delaySeconds = RETRY_SECONDS;
+      }
+    }
+
+    synchronized (refreshes) {
+      // A token that expires sooner than the margin, such as a freshly issued short-lived token,
+      // would otherwise be refreshed over and over.
+      if (refreshes.containsKey(credential)) {
+        schedule(credential, Math.max(RETRY_SECONDS, delaySeconds));
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.google.mapsengine.samples.auth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An HTML page with {{ NAME }} placeholders, loaded once and split into its literal text and its
+ * placeholders.
+ *
+ * The literal text is kept as UTF-8 bytes, so rendering the page is just a matter of writing
+ * those bytes with the encoded values in between, with no parsing or pattern matching per request.
+ * The file is checked for changes at most once a second, and reloaded if it has changed, so edits
+ * show up without restarting the server.
+ *
+ * Thread-safe.
+ */
+final class PageTemplate {
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("[{]{2}\\s*(\\w+)\\s*[}]{2}");
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final File file;
+  private volatile Segments segments;
+  private volatile long nextCheck;
+
+  /** Loads the page from the given file. */
+  PageTemplate(File file) throws IOException {
+    this.file = file;
+    this.segments = load(file);
+    this.nextCheck = System.nanoTime() + CHECK_INTERVAL_NANOS;
+  }
+
+  /**
+   * Writes the page as the response, with each placeholder replaced by its value. Placeholders
+   * without a value are left as they are.
+   *
+   * @throws FileNotFoundException if the page has been changed, and can't be reloaded.
+   */
+  void writeTo(HttpServletResponse response, Map<String, String> values) throws IOException {
+    Segments page = current();
+    byte[][] encoded = new byte[page.names.length][];
+    int length = page.literalLength;
+    for (int i = 0; i < encoded.length; i++) {
+      String value = values.get(page.names[i]);
+      encoded[i] = value == null ? page.placeholders[i] : value.getBytes(StandardCharsets.UTF_8);
+      length += encoded[i].length;
+    }
+
+    response.setContentType("text/html; charset=UTF-8");
+    response.setContentLength(length);
+    OutputStream out = response.getOutputStream();
+    for (int i = 0; i < encoded.length; i++) {
+      out.write(page.literals[i]);
+      out.write(encoded[i]);
+    }
+    out.write(page.literals[encoded.length]);
+  }
+
+  /** Returns the page's segments, reloading them first if the file has changed. */
+  private Segments current() throws IOException {
+    long now = System.nanoTime();
+    if (now - nextCheck < 0) {
+      return segments;
+    }
+    synchronized (this) {
+      if (now - nextCheck >= 0) {
+        if (file.lastModified() != segments.lastModified || file.length() != segments.length) {
+          segments = load(file);
+        }
+        nextCheck = now + CHECK_INTERVAL_NANOS;
+      }
+      return segments;
+    }
+  }
+
+  private static Segments load(File file) throws IOException {
+    long lastModified = file.lastModified();
+    String text = new String(readFully(file), StandardCharsets.UTF_8);
+
+    List<byte[]> literals = new ArrayList<byte[]>();
+    List<byte[]> placeholders = new ArrayList<byte[]>();
+    List<String> names = new ArrayList<String>();
+    Matcher matcher = PLACEHOLDER.matcher(text);
+    int start = 0;
+    while (matcher.find()) {
+      literals.add(text.substring(start, matcher.start()).getBytes(StandardCharsets.UTF_8));
+      placeholders.add(matcher.group().getBytes(StandardCharsets.UTF_8));
+      names.add(matcher.group(1));
+      start = matcher.end();
+    }
+    literals.add(text.substring(start).getBytes(StandardCharsets.UTF_8));
+
+    Segments segments = new Segments();
+    segments.literals = literals.toArray(new byte[literals.size()][]);
+    segments.placeholders = placeholders.toArray(new byte[placeholders.size()][]);
+    segments.names = names.toArray(new String[names.size()]);
+    for (byte[] literal : segments.literals) {
+      segments.literalLength += literal.length;
+    }
+    segments.lastModified = lastModified;
+    segments.length = file.length();
+    return segments;
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A loaded page. There is one more literal than there are placeholders: the page is the first
+   * literal, then each placeholder followed by the next literal.
+   */
+  private static class Segments {
+    byte[][] literals;
+    /** The original text of each placeholder, written when it has no value. */
+    byte[][] placeholders;
+    String[] names;
+    int literalLength;
+    long lastModified;
+    long length;
+  }
+}
@@ -25,9 +25,17 @@ import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Common OAuth code used across the Java examples.
+ *
+ * Credentials are handed to the {@link CredentialManager}, which refreshes their tokens in the
+ * background for as long as the process runs. The credential store, the service account key and
+ * the credentials themselves are loaded once per process, and shared by every later call.
  */
 public class Utils {
 
@@ -43,6 +51,19 @@ public class Utils {
    */
   private static final String DEFAULT_USER_ID = "default";
 
+  /** The credential store, opened on first use. */
+  private static FileDataStoreFactory credentialStore;
+
+  /** The service account's email address and private key, parsed on first use. */
+  private static String serviceAccountId;
+  private static PrivateKey serviceAccountKey;
+
+  /** The credentials already authorized, by their scopes. */
+  private static final Map<Set<String>, Credential> USER_CREDENTIALS =
+      new HashMap<Set<String>, Credential>();
+  private static final Map<Set<String>, Credential> SERVICE_CREDENTIALS =
+      new HashMap<Set<String>, Credential>();
+
   /**
    * Authorise the current user and store the credentials. This requires an interactive session
    * with a human and access to a web browser (using the "Installed Application" OAuth flow).
@@ -52,8 +73,14 @@ public class Utils {
    * @param jsonFactory The JSON factory to use for serialization / de-serialization.
    * @param scopes The scopes for which this app should authorize.
    */
-  public static Credential authorizeUser(HttpTransport httpTransport, JsonFactory jsonFactory,
-      Collection<String> scopes) throws IOException {
+  public static synchronized Credential authorizeUser(HttpTransport httpTransport,
+      JsonFactory jsonFactory, Collection<String> scopes) throws IOException {
+    Set<String> scopeSet = new HashSet<String>(scopes);
+    Credential credential = USER_CREDENTIALS.get(scopeSet);
+    if (credential != null) {
+      return credential;
+    }
+
     File secretsFile = new File(CLIENT_SECRETS_FILE);
     if (!secretsFile.exists()) {
       System.err.println("Client secrets file not found. Check out the JavaDoc for details on how"
@@ -69,26 +96,17 @@ public class Utils {
       GoogleClientSecrets secrets = GoogleClientSecrets.load(jsonFactory,
           new FileReader(secretsFile));
 
-      // This credential store will persist tokens between application executions,
-      // so you don't need to keep authorizing.
-      FileDataStoreFactory credentialStore = new FileDataStoreFactory(CREDENTIAL_STORE);
-
       GoogleAuthorizationCodeFlow flow =
           new GoogleAuthorizationCodeFlow.Builder(httpTransport, jsonFactory, secrets, scopes)
-            .setDataStoreFactory(credentialStore)
+            .setDataStoreFactory(getCredentialStore())
             .build();
 
-      // If we've run before, then we can just used the stored credentials. The empty string
-      Credential credential = flow.loadCredential(DEFAULT_USER_ID);
-      if (credential != null) {
-        // Check if a refresh is required.
-        if (credential.getExpiresInSeconds() > 0) {
-          return credential;
-        }
-        // If this refresh fails, continue on with the set-up process.
-        if (credential.refreshToken()) {
-          return credential;
-        }
+      // If we've run before, then we can just used the stored credentials, refreshing them if
+      // need be. If this refresh fails, continue on with the set-up process.
+      credential = flow.loadCredential(DEFAULT_USER_ID);
+      if (credential != null && CredentialManager.shared().manage(credential)) {
+        USER_CREDENTIALS.put(scopeSet, credential);
+        return credential;
       }
 
       // Open the default web browser to confirm the user's authorization
@@ -109,7 +127,10 @@ public class Utils {
           .setRedirectUri(localRedirectUri).execute();
 
       // You may want to use a non-empty user ID here if your app has more than one user.
-      return flow.createAndStoreCredential(tokenResponse, DEFAULT_USER_ID);
+      credential = flow.createAndStoreCredential(tokenResponse, DEFAULT_USER_ID);
+      CredentialManager.shared().manage(credential);
+      USER_CREDENTIALS.put(scopeSet, credential);
+      return credential;
 
     } catch (FileNotFoundException e) {
       AssertionError newEx = new AssertionError("File not found should already be handled.");
@@ -127,8 +148,44 @@ public class Utils {
    * @param jsonFactory The JSON factory to use for serialization / de-serialization.
    * @param scopes The scopes for which this app should authorize.
    */
-  public static Credential authorizeService(HttpTransport httpTransport, JsonFactory jsonFactory,
-      Collection<String> scopes) throws IOException {
+  public static synchronized Credential authorizeService(HttpTransport httpTransport,
+      JsonFactory jsonFactory, Collection<String> scopes) throws IOException {
+    Set<String> scopeSet = new HashSet<String>(scopes);
+    Credential cached = SERVICE_CREDENTIALS.get(scopeSet);
+    if (cached != null) {
+      return cached;
+    }
+    loadServiceAccountKey(jsonFactory);
+
+    GoogleCredential credential = new GoogleCredential.Builder()
+        .setTransport(httpTransport)
+        .setJsonFactory(jsonFactory)
+        .setServiceAccountId(serviceAccountId)
+        .setServiceAccountPrivateKey(serviceAccountKey)
+        .setServiceAccountScopes(scopes)
+        .build();
+
+    // Fetch the first token now, so that any problem with the key shows up straight away.
+    if (!CredentialManager.shared().manage(credential)) {
+      throw new IOException("Could not get a token for the service account " + serviceAccountId);
+    }
+    SERVICE_CREDENTIALS.put(scopeSet, credential);
+    return credential;
+  }
+
+  /** Opens the store that persists tokens between runs, so you don't need to keep authorizing. */
+  private static synchronized FileDataStoreFactory getCredentialStore() throws IOException {
+    if (credentialStore == null) {
+      credentialStore = new FileDataStoreFactory(CREDENTIAL_STORE);
+    }
+    return credentialStore;
+  }
+
+  /** Reads the service account's email address and private key, if they haven't been read. */
+  private static void loadServiceAccountKey(JsonFactory jsonFactory) throws IOException {
+    if (serviceAccountKey != null) {
+      return;
+    }
     File secretsFile = new File(SERVICE_KEY_FILE);
     if (!secretsFile.exists()) {
       System.err.println("Private key file not found.\n"
@@ -149,21 +206,9 @@ public class Utils {
           .getBase64DecodedBytes();
 
       // Turn it into a PrivateKey
-      PrivateKey privateKey = SecurityUtils.getRsaKeyFactory()
+      serviceAccountKey = SecurityUtils.getRsaKeyFactory()
           .generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
-
-      // And lastly, turn that into a GoogleCredential
-      GoogleCredential credential = new GoogleCredential.Builder()
-          .setTransport(httpTransport)
-          .setJsonFactory(jsonFactory)
-          .setServiceAccountId((String) secrets.get("client_email"))
-          .setServiceAccountPrivateKey(privateKey)
-          .setServiceAccountScopes(scopes)
-          .build();
-
-      // Force a first-time update, so we have a fresh key
-      credential.refreshToken();
-      return credential;
+      serviceAccountId = (String) secrets.get("client_email");
     } catch (FileNotFoundException e) {
       throw new AssertionError("File not found should already be handled.", e);
     } catch (NoSuchAlgorithmException e) {
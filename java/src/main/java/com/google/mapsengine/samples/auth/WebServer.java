@@ -23,27 +23,40 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.store.MemoryDataStoreFactory;
 import com.google.api.services.mapsengine.MapsEngine;
 import com.google.api.services.mapsengine.model.Project;
 import com.google.gson.Gson;
+import com.google.mapsengine.samples.clients.MapsEngineClientCache;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.clients.RefreshingCache;
 
 import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.servlet.ServletHandler;
 import org.mortbay.jetty.servlet.SessionHandler;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -59,32 +72,138 @@ class WebServer {
   /** Port upon which to host our local server. */
   public static final int SERVER_PORT = 5678;
 
-  /** Default HTTP transport to use to make HTTP requests. */
-  private static final HttpTransport TRANSPORT = new NetHttpTransport();
+  /** The most Maps Engine requests that are expected to be in flight at once. */
+  private static final int MAX_CONNECTIONS = 16;
 
-  /** Default JSON factory to use to deserialize JSON. */
-  private static final JsonFactory JSON_FACTORY = new GsonFactory();
+  /**
+   * The most threads serving requests. Requests waiting for Maps Engine are suspended rather than
+   * holding a thread, so these are only busy while a response is being written.
+   */
+  private static final int MAX_SERVER_THREADS = 32;
+
+  /**
+   * The most requests waiting for a Maps Engine call to start, and how long a request waits for
+   * its call to finish. Beyond these, requests fail fast rather than piling up.
+   */
+  private static final int MAX_QUEUED_UPSTREAM_CALLS = 256;
+  private static final long UPSTREAM_TIMEOUT_SECONDS = 30;
+
+  /**
+   * The most requests a single user may start each second. Each user's client is also limited to
+   * {@link #MAX_CONNECTIONS} requests in flight, the size of the upstream pool, and backs off by
+   * itself when that user is rate limited.
+   */
+  private static final double MAX_USER_REQUESTS_PER_SECOND = 10;
+
+  /** The most users whose clients are kept, and how long an unused client is kept. */
+  private static final int MAX_CACHED_CLIENTS = 1000;
+  private static final long CLIENT_IDLE_MINUTES = 30;
 
-  /** Creates a client secrets object from the client_secrets.json file. */
+  /** The number of threads refreshing cached project lists in the background. */
+  private static final int PROJECT_REFRESH_THREADS = 2;
+
+  /**
+   * Shared HTTP transport and JSON factory, used for every request the server makes. The load
+   * test points the clients at a stub.
+   */
+  static final MapsEngineClients CLIENTS =
+      new MapsEngineClients().setMaxConnections(MAX_CONNECTIONS);
+  private static final HttpTransport TRANSPORT = CLIENTS.getTransport();
+  private static final JsonFactory JSON_FACTORY = CLIENTS.getJsonFactory();
+
+  /** The client secrets, loaded from the client_secrets.json file when the server starts. */
   private static GoogleClientSecrets clientSecrets;
 
+  /** The main page, with placeholders for the variables required by the client. */
+  private static final String INDEX_PAGE = "res/index.html";
+
+  /** Replace this with your application's name. */
+  private static final String APPLICATION_NAME = "Google Maps Engine Java Quickstart";
+
+  /** Each user's MapsEngine client, reused across their requests. */
+  private static final MapsEngineClientCache ENGINES = new MapsEngineClientCache(CLIENTS,
+      APPLICATION_NAME, MAX_CACHED_CLIENTS, CLIENT_IDLE_MINUTES, TimeUnit.MINUTES)
+      .setRateLimits(MAX_CONNECTIONS, MAX_USER_REQUESTS_PER_SECOND);
+
+  /**
+   * How long a user's list of projects is served from the cache, and how much longer it is served
+   * while it is refreshed in the background.
+   */
+  private static final long PROJECTS_TTL_SECONDS = 60;
+  private static final long PROJECTS_STALE_SECONDS = 600;
+
+  /** The JSON served to users that haven't authorized yet. */
+  private static final byte[] NO_PROJECTS = "[]".getBytes(StandardCharsets.UTF_8);
+
+  /** Each user's list of projects, as the JSON sent to the browser. */
+  private static final RefreshingCache<Credential, byte[]> PROJECTS =
+      new RefreshingCache<Credential, byte[]>(new RefreshingCache.Loader<Credential, byte[]>() {
+        @Override
+        public byte[] load(Credential credential) throws IOException {
+          return listProjects(credential);
+        }
+      }, PROJECTS_TTL_SECONDS, PROJECTS_STALE_SECONDS, TimeUnit.SECONDS, MAX_CACHED_CLIENTS,
+          Executors.newFixedThreadPool(PROJECT_REFRESH_THREADS, daemonThreads("refresh")));
+
+  /** Runs the Maps Engine calls that suspended requests are waiting for. */
+  private static final ThreadPoolExecutor UPSTREAM = new ThreadPoolExecutor(MAX_CONNECTIONS,
+      MAX_CONNECTIONS, 1, TimeUnit.MINUTES,
+      new ArrayBlockingQueue<Runnable>(MAX_QUEUED_UPSTREAM_CALLS), daemonThreads("upstream"));
+
   static {
+    UPSTREAM.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * The authorization flow, shared by the auth and callback servlets so that a credential stored
+   * by one can be loaded by the other.
+   */
+  private static AuthorizationCodeFlow flow;
+
+  /** Returns the shared authorization flow, creating it the first time. */
+  private static synchronized AuthorizationCodeFlow getFlow() throws IOException {
+    if (flow == null) {
+      if (clientSecrets == null) {
+        throw new IOException("No client secrets have been loaded");
+      }
+      flow = new GoogleAuthorizationCodeFlow.Builder(
+          TRANSPORT,
+          JSON_FACTORY,
+          clientSecrets.getDetails().getClientId(),
+          clientSecrets.getDetails().getClientSecret(),
+          Collections.singleton("https://www.googleapis.com/auth/mapsengine.readonly"))
+        .setDataStoreFactory(new MemoryDataStoreFactory()).build();
+    }
+    return flow;
+  }
+
+
+  /** Start the server and set up the URL mappings. */
+  public static void main(String[] args) throws Exception {
     try {
       Reader reader = new FileReader("client_secrets.json");
       clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, reader);
     } catch (IOException e) {
       throw new Error("No client_secrets.json found", e);
     }
-  }
 
-  /** Replace this with your application's name. */
-  private static final String APPLICATION_NAME = "Google Maps Engine Java Quickstart";
+    Server server = createServer(SERVER_PORT, new ServletHandler());
+    server.start();
+    server.join();
+  }
 
+  /**
+   * Creates the server, adding the URL mappings to the given servlet handler.
+   *
+   * The connector is non-blocking, which is what lets a suspended request give up its thread.
+   */
+  static Server createServer(int port, ServletHandler servletHandler) {
+    Server server = new Server();
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(port);
+    server.addConnector(connector);
+    server.setThreadPool(new QueuedThreadPool(MAX_SERVER_THREADS));
 
-  /** Start the server and set up the URL mappings. */
-  public static void main(String[] args) throws Exception {
-    Server server = new Server(SERVER_PORT);
-    ServletHandler servletHandler = new ServletHandler();
     SessionHandler sessionHandler = new SessionHandler();
     sessionHandler.setHandler(servletHandler);
     server.setHandler(sessionHandler);
@@ -92,8 +211,31 @@ class WebServer {
     servletHandler.addServletWithMapping(ProjectsServlet.class, "/projects");
     servletHandler.addServletWithMapping(AuthServlet.class, "/auth");
     servletHandler.addServletWithMapping(CallbackServlet.class, "/oauth2callback");
-    server.start();
-    server.join();
+    return server;
+  }
+
+  /** Creates daemon threads, so that background work doesn't keep the server's process alive. */
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      private int count;
+
+      @Override
+      public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + ++count);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /** The page served by the main servlet, loaded on first use. */
+  private static PageTemplate indexPage;
+
+  private static synchronized PageTemplate getIndexPage() throws IOException {
+    if (indexPage == null) {
+      indexPage = new PageTemplate(new File(INDEX_PAGE));
+    }
+    return indexPage;
   }
 
   /** Main, "index" servlet for the top-level URL, "/". */
@@ -114,14 +256,13 @@ class WebServer {
         isAuthed = true;
       }
 
-      response.setContentType("text/html");
       try {
         // Serve up index.html and substitute some variables required by the client.
-        response.getWriter().print(new Scanner(new File("res/index.html"), "UTF-8")
-            .useDelimiter("\\A").next()
-            .replaceAll("[{]{2}\\s*IS_AUTHED\\s*[}]{2}", String.valueOf(isAuthed))
-            .replaceAll("[{]{2}\\s*APPLICATION_NAME\\s*[}]{2}", APPLICATION_NAME));
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("IS_AUTHED", String.valueOf(isAuthed));
+        values.put("APPLICATION_NAME", APPLICATION_NAME);
         response.setStatus(HttpServletResponse.SC_OK);
+        getIndexPage().writeTo(response, values);
       } catch (FileNotFoundException e) {
         // When running the quickstart, there was some path issue in finding
         // index.html.  Double check the quickstart guide.
@@ -134,34 +275,139 @@ class WebServer {
 
   }
 
-  /** JSON endpoint to retrieve the list of project names. */
+  /**
+   * JSON endpoint to retrieve the list of project names.
+   *
+   * A list that isn't cached is fetched from Maps Engine on the upstream executor, while the
+   * request is suspended with a Jetty continuation. The request doesn't hold a server thread while
+   * it waits, so a slow API can't exhaust the server's thread pool.
+   */
   public static class ProjectsServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException {
 
-      List<String> projects = new ArrayList<String>();
-
-      // Retrieve the list of projects from Maps Engine.
+      // Retrieve the list of projects, already serialized, from the cache if it's there.
       Credential credential = (Credential) req.getSession().getAttribute("credential");
-      if (credential != null) {
-        MapsEngine engine = new MapsEngine.Builder(TRANSPORT, JSON_FACTORY, credential)
-            .setApplicationName(APPLICATION_NAME)
-            .build();
+      byte[] json = credential == null ? NO_PROJECTS : PROJECTS.getIfPresent(credential);
+      if (json == null) {
+        json = awaitProjects(req, resp, credential);
+        if (json == null) {
+          return;
+        }
+      }
+
+      resp.setContentType("application/json; charset=UTF-8");
+      resp.setContentLength(json.length);
+      resp.getOutputStream().write(json);
+    }
+  }
+
+  /**
+   * Loads the user's projects on the upstream executor, suspending the request until they arrive.
+   *
+   * The first time through, suspending throws Jetty's RetryRequest, which frees the thread. The
+   * request is dispatched again when the load resumes it, or when the wait times out, and the
+   * second time through suspending returns straight away. Jetty ignores a resume that comes before
+   * the suspend, so the first pass only suspends if the load hasn't finished, checking under the
+   * load's lock, which the load holds while it resumes. A continuation belongs to the connection
+   * rather than the request, so the load is kept in a request attribute, and a second pass always
+   * suspends, to leave the continuation ready for the connection's next request.
+   *
+   * @return The projects as JSON, or null if an error has been sent instead.
+   */
+  private static byte[] awaitProjects(HttpServletRequest req, HttpServletResponse resp,
+      Credential credential) throws IOException {
+    Continuation continuation = ContinuationSupport.getContinuation(req, null);
+    ProjectsLoad load = (ProjectsLoad) req.getAttribute(ProjectsLoad.ATTRIBUTE);
+    long timeout = TimeUnit.SECONDS.toMillis(UPSTREAM_TIMEOUT_SECONDS);
+    if (load == null) {
+      load = new ProjectsLoad(credential, continuation);
+      req.setAttribute(ProjectsLoad.ATTRIBUTE, load);
+      try {
+        UPSTREAM.execute(load);
+      } catch (RejectedExecutionException e) {
+        resp.setHeader("Retry-After", "1");
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Too many requests are waiting for Maps Engine");
+        return null;
+      }
+      synchronized (load) {
+        if (load.result == null) {
+          // Throws RetryRequest with the continuation pending, so the load's resume isn't lost.
+          continuation.suspend(timeout);
+        }
+      }
+    } else {
+      continuation.suspend(timeout);
+    }
+
+    Object result = load.finish();
+    if (result instanceof IOException) {
+      throw (IOException) result;
+    } else if (result instanceof RuntimeException) {
+      throw (RuntimeException) result;
+    } else if (result == null) {
+      resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Maps Engine took too long");
+    }
+    return (byte[]) result;
+  }
+
+  /** Loads a user's projects for a suspended request, and resumes the request when done. */
+  private static class ProjectsLoad implements Runnable {
+    static final String ATTRIBUTE = ProjectsLoad.class.getName();
+
+    private final Credential credential;
+    private final Continuation continuation;
+    /** The projects, or the exception that stopped them loading. Guarded by this. */
+    private Object result;
+    /** Whether the request has stopped waiting. Guarded by this. */
+    private boolean finished;
 
-        // Here's where the magic happens.
-        for (Project p : engine.projects().list().execute().getProjects()) {
-          projects.add(p.getName());
+    ProjectsLoad(Credential credential, Continuation continuation) {
+      this.credential = credential;
+      this.continuation = continuation;
+    }
+
+    @Override
+    public void run() {
+      Object loaded;
+      try {
+        loaded = PROJECTS.get(credential);
+      } catch (IOException e) {
+        loaded = e;
+      } catch (RuntimeException e) {
+        loaded = e;
+      }
+      synchronized (this) {
+        if (finished) {
+          // The request timed out, and the continuation may now belong to another request.
+          return;
         }
+        result = loaded;
+        // Under the lock, so the request is either suspended already or sees the result.
+        continuation.resume();
       }
+    }
+
+    /** Stops the request waiting, and returns the result, or null if there isn't one yet. */
+    synchronized Object finish() {
+      finished = true;
+      return result;
+    }
+  }
 
-      // Serialize the list to JSON and output to user.
-      resp.setContentType("application/json");
-      String json = new Gson().toJson(projects);
-      resp.setContentLength(json.length());
-      resp.getWriter().print(json);
+  /** Lists the user's projects from Maps Engine, and serializes the list to JSON. */
+  private static byte[] listProjects(Credential credential) throws IOException {
+    List<String> projects = new ArrayList<String>();
+    MapsEngine engine = ENGINES.get(credential);
+
+    // Here's where the magic happens.
+    for (Project p : engine.projects().list().execute().getProjects()) {
+      projects.add(p.getName());
     }
+    return new Gson().toJson(projects).getBytes(StandardCharsets.UTF_8);
   }
 
   /**
@@ -178,13 +424,7 @@ class WebServer {
      */
     @Override
     protected AuthorizationCodeFlow initializeFlow() throws ServletException, IOException {
-      return new GoogleAuthorizationCodeFlow.Builder(
-          TRANSPORT,
-          JSON_FACTORY,
-          clientSecrets.getDetails().getClientId(),
-          clientSecrets.getDetails().getClientSecret(),
-          Collections.singleton("https://www.googleapis.com/auth/mapsengine.readonly"))
-        .setDataStoreFactory(new MemoryDataStoreFactory()).build();
+      return getFlow();
     }
 
     /** Returns the redirect URI for the given HTTP servlet request. */
@@ -212,13 +452,7 @@ class WebServer {
      */
     @Override
     protected AuthorizationCodeFlow initializeFlow() throws ServletException, IOException {
-      return new GoogleAuthorizationCodeFlow.Builder(
-          TRANSPORT,
-          JSON_FACTORY,
-          clientSecrets.getDetails().getClientId(),
-          clientSecrets.getDetails().getClientSecret(),
-          Collections.singleton("https://www.googleapis.com/auth/mapsengine.readonly"))
-        .setDataStoreFactory(new MemoryDataStoreFactory()).build();
+      return getFlow();
     }
 
     /** Sends the user back to the auth page when authorization succeeds, saving the credential. */
@@ -0,0 +1,290 @@
+package com.google.mapsengine.samples.auth;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.servlet.ServletHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Load tests the {@link WebServer} sample against a stub Maps Engine running locally, measuring
+ * the latency and throughput of its pages. No client secrets are needed: users are signed in with
+ * made-up tokens by a servlet of the test's own, and the stub answers every request with a list
+ * of projects after a fixed delay.
+ *
+ * Four loads are measured in turn: the index page, cached project lists, project lists fetched
+ * from the stub, and the index page while project lists are being fetched. The last shows whether
+ * slow upstream calls hold up the rest of the server. Run it from the directory holding res/, as
+ * for the server itself.
+ */
+class WebServerLoadTest {
+
+  private static final String DELAY_FLAG = "--upstreamDelayMs=";
+  private static final int DEFAULT_REQUESTS = 2000;
+  private static final int DEFAULT_CLIENTS = 64;
+  private static final long DEFAULT_DELAY_MILLIS = 200;
+  private static final int PROJECTS_PER_USER = 20;
+  private static final String SIGN_IN_PATH = "/loadtest/signin";
+
+  /** The JDK property that limits the number of idle connections kept alive per host. */
+  private static final String KEEP_ALIVE_PROPERTY = "http.maxConnections";
+
+  private final AtomicInteger upstreamCalls = new AtomicInteger();
+  private final byte[] projectsJson = projectsJson();
+  private long upstreamDelayMillis = DEFAULT_DELAY_MILLIS;
+  private String serverUrl;
+
+  public static void main(String[] args) throws Exception {
+    WebServerLoadTest test = new WebServerLoadTest();
+    List<String> positional = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.startsWith(DELAY_FLAG)) {
+        test.upstreamDelayMillis = Long.parseLong(arg.substring(DELAY_FLAG.length()));
+      } else {
+        positional.add(arg);
+      }
+    }
+    if (positional.size() > 2) {
+      System.err.println("Usage: java ... WebServerLoadTest [--upstreamDelayMs=N] [requests] "
+          + "[clients]");
+      System.err.println(" requests is the number of requests to time for each load, defaults to "
+          + DEFAULT_REQUESTS);
+      System.err.println(" clients is the number of requests to send concurrently, defaults to "
+          + DEFAULT_CLIENTS);
+      System.err.println(" --upstreamDelayMs is how long the stub takes to answer, defaults to "
+          + DEFAULT_DELAY_MILLIS);
+      System.exit(1);
+    }
+    int requests =
+        positional.size() > 0 ? Integer.parseInt(positional.get(0)) : DEFAULT_REQUESTS;
+    int clients = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : DEFAULT_CLIENTS;
+    test.run(requests, clients);
+  }
+
+  public void run(int requests, int clients) throws Exception {
+    // Every client keeps its connection to the server alive. This has to be set before the
+    // server's transport is created, as that sets it too.
+    if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+      System.setProperty(KEEP_ALIVE_PROPERTY, String.valueOf(clients * 2));
+    }
+
+    Server stub = new Server(0);
+    stub.setHandler(new StubMapsEngine());
+    stub.start();
+    ServletHandler servlets = new ServletHandler();
+    servlets.addServletWithMapping(SignInServlet.class, SIGN_IN_PATH);
+    Server server = WebServer.createServer(0, servlets);
+    try {
+      WebServer.CLIENTS
+          .setRootUrl("http://localhost:" + stub.getConnectors()[0].getLocalPort() + "/");
+      server.start();
+      serverUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+
+      System.out.println(String.format("%d requests per load, %d clients, %d ms upstream delay.",
+          requests, clients, upstreamDelayMillis));
+      System.out.println("load                          requests/s   p50 ms   p99 ms  errors");
+
+      // Warm up the JIT and the connections before timing anything.
+      measure("/", null, clients * 10, clients);
+      print("index", measure("/", null, requests, clients));
+
+      String[] warmUsers = signIn(clients);
+      measure("/projects", warmUsers, clients, clients);
+      print("projects, cached", measure("/projects", warmUsers, requests, clients));
+
+      upstreamCalls.set(0);
+      print("projects, from Maps Engine",
+          measure("/projects", signIn(requests), requests, clients));
+      int calls = upstreamCalls.get();
+
+      final String[] coldUsers = signIn(requests);
+      final int coldRequests = requests;
+      final int coldClients = clients;
+      ExecutorService background = Executors.newSingleThreadExecutor();
+      try {
+        Future<Result> cold = background.submit(new Callable<Result>() {
+          @Override
+          public Result call() throws Exception {
+            return measure("/projects", coldUsers, coldRequests, coldClients);
+          }
+        });
+        print("index, during upstream load", measure("/", null, requests, clients));
+        print(" with projects from Maps Engine", cold.get());
+      } finally {
+        background.shutdown();
+      }
+      System.out.println(String.format("%d of %d uncached project lists were fetched upstream.",
+          calls, requests));
+    } finally {
+      server.stop();
+      stub.stop();
+      WebServer.CLIENTS.shutdown();
+    }
+  }
+
+  /** Sends the requests from a pool of clients, and times each one. */
+  private Result measure(final String path, final String[] sessions, final int requests,
+      int clients) throws Exception {
+    final long[] latencies = new long[requests];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    long start = System.nanoTime();
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i = 0; i < clients; i++) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+              String session = sessions == null ? null : sessions[i % sessions.length];
+              long sent = System.nanoTime();
+              HttpURLConnection connection = open(path, session);
+              if (connection.getResponseCode() != HttpServletResponse.SC_OK) {
+                errors.incrementAndGet();
+              }
+              drain(connection);
+              latencies[i] = System.nanoTime() - sent;
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    return new Result(latencies, errors.get(), (System.nanoTime() - start) / 1e9);
+  }
+
+  /** Signs in the given number of new users, and returns their session cookies. */
+  private String[] signIn(int users) throws IOException {
+    String[] sessions = new String[users];
+    for (int i = 0; i < users; i++) {
+      HttpURLConnection connection = open(SIGN_IN_PATH, null);
+      drain(connection);
+      String cookie = connection.getHeaderField("Set-Cookie");
+      if (cookie == null) {
+        throw new IOException("The server didn't start a session");
+      }
+      sessions[i] = cookie.split(";", 2)[0];
+    }
+    return sessions;
+  }
+
+  private HttpURLConnection open(String path, String session) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + path).openConnection();
+    if (session != null) {
+      connection.setRequestProperty("Cookie", session);
+    }
+    return connection;
+  }
+
+  /** Reads the rest of the response, so that the connection can be reused. */
+  private static void drain(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getResponseCode() < HttpServletResponse.SC_BAD_REQUEST
+        ? connection.getInputStream() : connection.getErrorStream();
+    if (in == null) {
+      return;
+    }
+    try {
+      byte[] buffer = new byte[8192];
+      while (in.read(buffer) >= 0) {
+        // Discard the body.
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void print(String load, Result result) {
+    System.out.println(String.format("%-28s  %10.1f  %7.1f  %7.1f  %6d", load,
+        result.latencies.length / result.seconds, result.percentile(50) / 1e6,
+        result.percentile(99) / 1e6, result.errors));
+  }
+
+  /** The body of a projects list response. */
+  private static byte[] projectsJson() {
+    StringBuilder json = new StringBuilder("{\"projects\":[");
+    for (int i = 0; i < PROJECTS_PER_USER; i++) {
+      json.append(i == 0 ? "" : ",")
+          .append("{\"id\":\"0123456789-").append(i).append("\",\"name\":\"Project ")
+          .append(i).append("\"}");
+    }
+    return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** The latencies of a load, in nanoseconds, and the time it took. */
+  private static class Result {
+    final long[] latencies;
+    final int errors;
+    final double seconds;
+
+    Result(long[] latencies, int errors, double seconds) {
+      this.latencies = latencies.clone();
+      Arrays.sort(this.latencies);
+      this.errors = errors;
+      this.seconds = seconds;
+    }
+
+    long percentile(int percent) {
+      return latencies[Math.min(latencies.length - 1, latencies.length * percent / 100)];
+    }
+  }
+
+  /** Signs in a new user, with a made-up token that only the stub will accept. */
+  public static class SignInServlet extends HttpServlet {
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+      Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+          .setAccessToken("load-test-" + USERS.incrementAndGet());
+      req.getSession(true).setAttribute("credential", credential);
+      resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+  }
+
+  /** Answers every request with a list of projects, after the upstream delay. */
+  private class StubMapsEngine extends AbstractHandler {
+    @Override
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response,
+        int dispatch) throws IOException {
+      upstreamCalls.incrementAndGet();
+      try {
+        Thread.sleep(upstreamDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while simulating Maps Engine.", e);
+      }
+      response.setContentType("application/json; charset=UTF-8");
+      response.setContentLength(projectsJson.length);
+      response.getOutputStream().write(projectsJson);
+      ((Request) request).setHandled(true);
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package com.google.mapsengine.samples.batch;
+
+import java.io.IOException;
+
+/** Receives batches of features, in whatever form they are held, to be sent to the API. */
+public interface BatchSink<B> {
+  void send(B batch) throws IOException;
+}
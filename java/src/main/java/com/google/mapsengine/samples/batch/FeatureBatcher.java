@@ -0,0 +1,166 @@
+package com.google.mapsengine.samples.batch;
+
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups features into batches that stay within the Maps Engine limits for a single
+ * batchInsert request, handing each batch to a {@link Sink} as soon as it is full.
+ *
+ * Only the batch currently being filled is held in memory, so the heap used is bounded by the
+ * request limits rather than by the size of the input.
+ */
+public class FeatureBatcher {
+
+  /** Maximum number of features allowed in a single batch request. */
+  public static final int MAX_FEATURES_PER_REQUEST = 50;
+
+  /** The most features the API returns in one page of a list request. */
+  public static final long MAX_FEATURES_PER_PAGE = 1000;
+
+  /** The primary key of a table whose schema doesn't name one. */
+  public static final String DEFAULT_PRIMARY_KEY = "gx_id";
+
+  /** The table column types that hold a feature's geometry rather than a property. */
+  public static final List<String> GEOMETRY_TYPES = Collections.unmodifiableList(
+      Arrays.asList("points", "lineStrings", "polygons", "mixedGeometry"));
+
+  /** Maximum number of vertices, across all geometries, allowed in a single batch request. */
+  public static final int MAX_VERTICES_PER_REQUEST = 10000;
+
+  /** Maximum size of a batch request payload, in bytes. */
+  public static final int MAX_BYTES_PER_REQUEST = 1024 * 1024;
+
+  /**
+   * The byte estimate is not exact, so batches are cut when they reach this fraction of
+   * {@link #MAX_BYTES_PER_REQUEST}.
+   */
+  private static final double BYTES_HEADROOM = 0.9;
+
+  /** Rough upper bound on the JSON produced for a number. */
+  private static final int NUMBER_BYTES = 24;
+
+  /** JSON overhead of a feature: type, geometry and properties wrappers. */
+  private static final int FEATURE_OVERHEAD_BYTES = 96;
+
+  /** Receives each completed batch. */
+  public interface Sink extends BatchSink<List<Feature>> {
+  }
+
+  private final Sink sink;
+  private final int maxFeatures;
+  private final int maxVertices;
+  private final int maxBytes;
+
+  private List<Feature> pending;
+  private int pendingVertices;
+  private int pendingBytes;
+  private long featureCount;
+  private long batchCount;
+
+  /** Creates a batcher using the default Maps Engine request limits. */
+  public FeatureBatcher(Sink sink) {
+    this(sink, MAX_FEATURES_PER_REQUEST, MAX_VERTICES_PER_REQUEST, MAX_BYTES_PER_REQUEST);
+  }
+
+  public FeatureBatcher(Sink sink, int maxFeatures, int maxVertices, int maxBytes) {
+    if (maxFeatures < 1 || maxVertices < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("Batch limits must be positive.");
+    }
+    this.sink = sink;
+    this.maxFeatures = maxFeatures;
+    this.maxVertices = maxVertices;
+    this.maxBytes = (int) (maxBytes * BYTES_HEADROOM);
+    this.pending = new ArrayList<Feature>(maxFeatures);
+  }
+
+  /** Adds a single point feature, sending the current batch first if it would overflow. */
+  public void add(Feature feature) throws IOException {
+    add(feature, 1);
+  }
+
+  /**
+   * Adds a feature whose geometry has the given number of vertices, sending the current batch
+   * first if the feature would take it over any of the limits.
+   */
+  public void add(Feature feature, int vertices) throws IOException {
+    int bytes = estimateBytes(feature, vertices);
+    if (!pending.isEmpty() && (pending.size() + 1 > maxFeatures
+        || pendingVertices + vertices > maxVertices
+        || pendingBytes + bytes > maxBytes)) {
+      flush();
+    }
+    pending.add(feature);
+    pendingVertices += vertices;
+    pendingBytes += bytes;
+    featureCount++;
+  }
+
+  /** Sends any features that have been added but not yet sent. */
+  public void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<Feature> batch = pending;
+    // The sink may hold on to the batch, so start a fresh list rather than clearing this one.
+    pending = new ArrayList<Feature>(maxFeatures);
+    pendingVertices = 0;
+    pendingBytes = 0;
+    batchCount++;
+    sink.send(batch);
+  }
+
+  /** Returns the number of features added so far. */
+  public long getFeatureCount() {
+    return featureCount;
+  }
+
+  /** Returns the number of batches handed to the sink so far. */
+  public long getBatchCount() {
+    return batchCount;
+  }
+
+  /** Estimates the size of the JSON encoding of a feature, erring on the high side. */
+  static int estimateBytes(Feature feature, int vertices) {
+    int bytes = FEATURE_OVERHEAD_BYTES + vertices * (2 * NUMBER_BYTES + 4);
+    Map<String, Object> properties = feature.getProperties();
+    if (properties != null) {
+      for (Map.Entry<String, Object> property : properties.entrySet()) {
+        bytes += estimateBytes(property.getKey()) + 2;
+        Object value = property.getValue();
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+          bytes += NUMBER_BYTES;
+        } else {
+          bytes += estimateBytes(value.toString());
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /** Returns the size of a string once UTF-8 encoded, quoted and escaped as a JSON string. */
+  static int estimateBytes(String value) {
+    int bytes = 2;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        bytes += 2;
+      } else if (c < 0x20) {
+        bytes += 6;
+      } else if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,680 @@
+package com.google.mapsengine.samples.batch;
+
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.util.Data;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.model.Feature;
+import com.google.api.services.mapsengine.model.FeaturesListResponse;
+import com.google.api.services.mapsengine.model.GeoJsonGeometry;
+import com.google.api.services.mapsengine.model.Schema;
+import com.google.api.services.mapsengine.model.Table;
+import com.google.api.services.mapsengine.model.TableColumn;
+import com.google.mapsengine.samples.batch.MutationJournal.Operation;
+import com.google.mapsengine.samples.clients.StreamingBatchContent;
+import com.google.mapsengine.samples.clients.StreamingFeatureClient;
+import com.google.mapsengine.samples.sync.FeatureHasher;
+import com.google.mapsengine.samples.sync.MappedRowHashIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects inserts, patches and deletes of a table's features, and sends them as batch requests,
+ * so that an application making many small edits doesn't pay a round trip for each one.
+ *
+ * Edits to the same feature are merged as they arrive, leaving one pending mutation per primary
+ * key: an insert followed by a patch becomes an insert of the patched feature, a patch followed
+ * by a delete becomes a delete, and an insert followed by a delete cancels out. Edits that the API
+ * would reject, such as patching a feature that was just deleted, fail straight away.
+ *
+ * The buffer is flushed when it holds {@link #setMaxPending} features, when its oldest edit is
+ * {@link #setMaxDelay} old, and on {@link #flush} or {@link #close}. A flush sends deletes first,
+ * then inserts, then patches, each in as few requests as the batch limits allow. A flush that
+ * fails drops its mutations, unless there is a {@link MutationJournal} to keep them; the error is
+ * thrown from the flush, or, for a timed flush, from the next call.
+ *
+ * Given the {@link MappedRowHashIndex} that {@code TableSync} keeps for the table, the buffer
+ * updates it as each batch succeeds, so the next sync doesn't have to download the table again.
+ * Thread-safe.
+ */
+public class MutationBuffer implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(MutationBuffer.class.getName());
+
+  private static final int DEFAULT_MAX_PENDING = 10 * FeatureBatcher.MAX_FEATURES_PER_REQUEST;
+  private static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+  private enum Kind {
+    INSERT,
+    PATCH,
+    DELETE,
+    /** A delete followed by an insert, which have to be sent in that order. */
+    REPLACE
+  }
+
+  /** The merged edits to one feature. */
+  private static class Mutation {
+    Kind kind;
+    Feature feature;
+
+    Mutation(Kind kind, Feature feature) {
+      this.kind = kind;
+      this.feature = feature;
+    }
+  }
+
+  private final MapsEngine engine;
+  private final StreamingFeatureClient client;
+  private final String tableId;
+  private final String primaryKey;
+  /** The table's type for the primary key column, once known. Only used while flushing. */
+  private String keyColumnType;
+  /** The table's properties in schema order, once known. Only used while flushing. */
+  private String[] propertyNames;
+  private int maxPending = DEFAULT_MAX_PENDING;
+  private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+  /** Pending mutations by primary key, in the order the keys were first edited. */
+  private Map<String, Mutation> pending = new LinkedHashMap<String, Mutation>();
+  /** Held while sending, so that flushes go out one after another, in order. */
+  private final Object flushLock = new Object();
+  private ScheduledExecutorService timer;
+  private IOException timedFailure;
+
+  private MutationJournal journal;
+  private MappedRowHashIndex index;
+  /** The sequence number of the last edit journaled. */
+  private long lastSequence;
+  /** Mutations that may or may not have reached the table. Only used while flushing. */
+  private final Map<String, Mutation> uncertain = new LinkedHashMap<String, Mutation>();
+  /** The sequence number of the last edit in the uncertain mutations. */
+  private long uncertainSequence;
+
+  private long mutationCount;
+  private long requestCount;
+
+  /**
+   * @param engine The client used to read and update the table.
+   * @param tableId The table whose features are edited.
+   * @param primaryKey The property that identifies a feature,
+   *     {@link FeatureBatcher#DEFAULT_PRIMARY_KEY} unless the table's schema names another.
+   */
+  public MutationBuffer(MapsEngine engine, String tableId, String primaryKey) {
+    this.engine = engine;
+    this.client = new StreamingFeatureClient(engine);
+    this.tableId = tableId;
+    this.primaryKey = primaryKey;
+  }
+
+  /**
+   * @param engine The client used to read and update the table.
+   * @param table The table whose features are edited, with its schema, which names the primary
+   *     key.
+   */
+  public MutationBuffer(MapsEngine engine, Table table) {
+    this(engine, table.getId(), table.getSchema().getPrimaryKey() != null
+        ? table.getSchema().getPrimaryKey() : FeatureBatcher.DEFAULT_PRIMARY_KEY);
+    this.keyColumnType = keyColumnType(table.getSchema());
+    this.propertyNames = FeatureHasher.propertyNames(table.getSchema());
+  }
+
+  /** Sets the number of pending features that triggers a flush. Defaults to 500. */
+  public synchronized MutationBuffer setMaxPending(int maxPending) {
+    if (maxPending < 1) {
+      throw new IllegalArgumentException("The maximum number of pending features must be "
+          + "positive.");
+    }
+    this.maxPending = maxPending;
+    return this;
+  }
+
+  /**
+   * Sets how long an edit may wait before it is flushed, or 0 to only flush on size and when
+   * asked. Defaults to 5 seconds.
+   */
+  public synchronized MutationBuffer setMaxDelay(long delay, TimeUnit unit) {
+    this.maxDelayMillis = unit.toMillis(delay);
+    return this;
+  }
+
+  /**
+   * Records every edit in a journal from now on, and takes over the edits the journal holds that
+   * were never acknowledged, such as those of a run that stopped part way. They are sent by the
+   * next flush, before any new edits, after checking which of their features are in the table,
+   * so it doesn't matter whether or not they reached it before. Call before making any edits.
+   */
+  public MutationBuffer setJournal(MutationJournal journal) {
+    synchronized (flushLock) {
+      synchronized (this) {
+        this.journal = journal;
+        for (MutationJournal.Entry entry : journal.getUnacknowledged()) {
+          String key = entry.getOperation() == Operation.DELETE
+              ? entry.getKey() : keyOf(entry.getFeature());
+          apply(uncertain, key, entry.getOperation(), entry.getFeature(), false);
+          uncertainSequence = entry.getSequence();
+        }
+        lastSequence = journal.getLastSequence();
+        if (!uncertain.isEmpty() && maxDelayMillis > 0) {
+          scheduleFlush();
+        }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Keeps a sync index of the table up to date with the edits sent from now on: inserted features
+   * are put with their row hashes, patched ones with a hash no row matches, so that the next sync
+   * sends the file's version, and deleted ones are removed. The index is marked dirty while a
+   * flush is sending, and only marked clean again once a flush succeeds, and only if it was clean
+   * to start with, so a sync rebuilds it after a failed flush. The index must be opened with
+   * {@link MappedRowHashIndex#open}, and not be in use by a sync at the same time.
+   */
+  public MutationBuffer setIndex(MappedRowHashIndex index) {
+    synchronized (flushLock) {
+      this.index = index;
+    }
+    return this;
+  }
+
+  /**
+   * Inserts a feature.
+   *
+   * @throws IllegalArgumentException if the feature has no primary key, or has a pending insert.
+   */
+  public void insert(Feature feature) throws IOException {
+    edit(keyOf(feature), Operation.INSERT, feature);
+  }
+
+  /**
+   * Updates a feature: its geometry, if the patch has one, and the properties the patch has.
+   *
+   * @throws IllegalArgumentException if the feature has no primary key, or has a pending delete.
+   */
+  public void patch(Feature patch) throws IOException {
+    edit(keyOf(patch), Operation.PATCH, patch);
+  }
+
+  /**
+   * Deletes a feature.
+   *
+   * @throws IllegalArgumentException if the feature has a pending delete.
+   */
+  public void delete(String key) throws IOException {
+    edit(key, Operation.DELETE, null);
+  }
+
+  /**
+   * Sends every pending mutation, blocking until they have been sent. With a journal, mutations
+   * that fail to send are kept, and sent again by the next flush.
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      Map<String, Mutation> mutations;
+      long sequence;
+      synchronized (this) {
+        checkTimedFailure();
+        mutations = pending;
+        sequence = lastSequence;
+        pending = new LinkedHashMap<String, Mutation>();
+      }
+      if (mutations.isEmpty() && uncertain.isEmpty()) {
+        return;
+      }
+      if (journal != null) {
+        // No edit may reach the table before its record is on disk.
+        journal.sync();
+      }
+      boolean indexClean = false;
+      if (index != null) {
+        loadSchema();
+        indexClean = index.isClean();
+        // The table no longer matches the index if a request succeeds but the flush fails.
+        index.markDirty();
+      }
+      boolean sent = false;
+      try {
+        if (!uncertain.isEmpty()) {
+          send(resolve(uncertain));
+          uncertain.clear();
+          acknowledge(uncertainSequence);
+        }
+        send(mutations);
+        sent = true;
+        if (indexClean) {
+          index.markClean();
+        }
+        acknowledge(sequence);
+      } finally {
+        if (!sent && journal != null) {
+          // Some of the mutations may have reached the table, so check before sending them again.
+          for (Map.Entry<String, Mutation> entry : mutations.entrySet()) {
+            Mutation mutation = entry.getValue();
+            if (mutation.kind == Kind.DELETE || mutation.kind == Kind.REPLACE) {
+              apply(uncertain, entry.getKey(), Operation.DELETE, null, false);
+            }
+            if (mutation.kind != Kind.DELETE) {
+              apply(uncertain, entry.getKey(),
+                  mutation.kind == Kind.PATCH ? Operation.PATCH : Operation.INSERT,
+                  mutation.feature, false);
+            }
+          }
+          uncertainSequence = sequence;
+        }
+      }
+    }
+  }
+
+  /** Flushes the buffer, and stops the timer. */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (timer != null) {
+        timer.shutdown();
+        timer = null;
+      }
+    }
+    flush();
+  }
+
+  /** Returns the number of inserts, patches and deletes made so far. */
+  public synchronized long getMutationCount() {
+    return mutationCount;
+  }
+
+  /** Returns the number of batch requests sent so far. */
+  public synchronized long getRequestCount() {
+    return requestCount;
+  }
+
+  private void edit(String key, Operation operation, Feature feature) throws IOException {
+    synchronized (this) {
+      checkTimedFailure();
+      // Merge first, so that an edit that fails isn't journaled.
+      Mutation merged = merge(pending.get(key), key, operation, feature, true);
+      if (journal != null) {
+        lastSequence = operation == Operation.DELETE
+            ? journal.appendDelete(key) : journal.append(operation, feature);
+      }
+      if (pending.isEmpty() && maxDelayMillis > 0) {
+        scheduleFlush();
+      }
+      if (merged == null) {
+        pending.remove(key);
+      } else {
+        pending.put(key, merged);
+      }
+      mutationCount++;
+    }
+    flushIfFull();
+  }
+
+  private void apply(Map<String, Mutation> mutations, String key, Operation operation,
+      Feature feature, boolean strict) {
+    Mutation merged = merge(mutations.get(key), key, operation, feature, strict);
+    if (merged == null) {
+      mutations.remove(key);
+    } else {
+      mutations.put(key, merged);
+    }
+  }
+
+  /**
+   * Returns the mutation that has the effect of a pending mutation followed by an edit, or null if
+   * they cancel out.
+   *
+   * @param strict Whether to reject edits the API would reject. Otherwise, the pending mutation
+   *     may or may not have reached the table, so the result is one for {@link #resolve}.
+   */
+  private Mutation merge(Mutation pending, String key, Operation operation, Feature feature,
+      boolean strict) {
+    Kind kind = pending != null ? pending.kind : null;
+    if (operation == Operation.INSERT) {
+      if (kind == null || kind == Kind.DELETE) {
+        return new Mutation(kind == null ? Kind.INSERT : Kind.REPLACE, feature);
+      } else if (strict) {
+        throw new IllegalArgumentException("Feature " + key + " is already in table " + tableId);
+      }
+      return new Mutation(kind == Kind.INSERT ? Kind.INSERT : Kind.REPLACE, feature);
+    } else if (operation == Operation.PATCH) {
+      if (kind == null) {
+        return new Mutation(Kind.PATCH, feature);
+      } else if (kind == Kind.DELETE) {
+        if (strict) {
+          throw new IllegalArgumentException("Feature " + key + " has been deleted from table "
+              + tableId);
+        }
+        return pending;
+      }
+      // Patches are merged into whatever is pending; a patch of an insert sets it in full.
+      return new Mutation(kind, merge(pending.feature, feature, kind == Kind.PATCH));
+    }
+    if (kind == Kind.DELETE) {
+      if (strict) {
+        throw new IllegalArgumentException("Feature " + key + " has already been deleted from "
+            + "table " + tableId);
+      }
+      return pending;
+    } else if (kind == Kind.INSERT && strict) {
+      // The feature was never sent, so there is nothing to delete.
+      return null;
+    }
+    return new Mutation(Kind.DELETE, null);
+  }
+
+  /**
+   * Turns mutations that may or may not have reached the table into ones that can be sent either
+   * way: an insert of a feature that is already there replaces it, and deletes and patches of
+   * features that aren't there are dropped.
+   */
+  private Map<String, Mutation> resolve(Map<String, Mutation> mutations) throws IOException {
+    Set<String> existing = findExisting(new ArrayList<String>(mutations.keySet()));
+    Map<String, Mutation> resolved = new LinkedHashMap<String, Mutation>();
+    for (Map.Entry<String, Mutation> entry : mutations.entrySet()) {
+      Mutation mutation = entry.getValue();
+      boolean exists = existing.contains(entry.getKey());
+      if (mutation.kind == Kind.INSERT || mutation.kind == Kind.REPLACE) {
+        resolved.put(entry.getKey(),
+            new Mutation(exists ? Kind.REPLACE : Kind.INSERT, mutation.feature));
+      } else if (exists) {
+        resolved.put(entry.getKey(), mutation);
+      }
+    }
+    return resolved;
+  }
+
+  /** Returns which of the primary keys the table has features for. */
+  private Set<String> findExisting(List<String> keys) throws IOException {
+    loadSchema();
+    Set<String> existing = new HashSet<String>();
+    for (int start = 0; start < keys.size(); start += FeatureBatcher.MAX_FEATURES_PER_REQUEST) {
+      StringBuilder where = new StringBuilder();
+      for (String key : keys.subList(start,
+          Math.min(start + FeatureBatcher.MAX_FEATURES_PER_REQUEST, keys.size()))) {
+        String literal = literal(key);
+        if (literal == null) {
+          continue;
+        }
+        if (where.length() > 0) {
+          where.append(" OR ");
+        }
+        where.append(primaryKey).append(" = ").append(literal);
+      }
+      if (where.length() == 0) {
+        continue;
+      }
+      String pageToken = null;
+      do {
+        FeaturesListResponse page = engine.tables().features().list(tableId)
+            .setWhere(where.toString())
+            .setSelect(primaryKey)
+            .setMaxResults(FeatureBatcher.MAX_FEATURES_PER_PAGE)
+            .setPageToken(pageToken)
+            .execute();
+        if (page.getFeatures() != null) {
+          for (Feature feature : page.getFeatures()) {
+            if (feature.getProperties() != null) {
+              existing.add(FeatureHasher.keyString(feature.getProperties().get(primaryKey)));
+            }
+          }
+        }
+        pageToken = page.getNextPageToken();
+      } while (pageToken != null);
+    }
+    return existing;
+  }
+
+  /** Fetches what the buffer needs from the table's schema, unless it already has it. */
+  private void loadSchema() throws IOException {
+    if (keyColumnType == null) {
+      Schema schema = engine.tables().get(tableId).execute().getSchema();
+      keyColumnType = keyColumnType(schema);
+      propertyNames = FeatureHasher.propertyNames(schema);
+    }
+  }
+
+  /**
+   * Returns a primary key as a literal of the key column's type for a where clause, or null if
+   * it isn't a value of that type, and so can't be in the table.
+   */
+  private String literal(String key) {
+    if ("integer".equals(keyColumnType) || "double".equals(keyColumnType)) {
+      try {
+        if ("integer".equals(keyColumnType)) {
+          return Long.toString(Long.parseLong(key));
+        }
+        // Checks the key is a number, and writes it out without an exponent.
+        return new BigDecimal(key).toPlainString();
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return "'" + key.replace("'", "\\'") + "'";
+  }
+
+  /** Returns the type of the schema's primary key column, which is a string if it isn't listed. */
+  private static String keyColumnType(Schema schema) {
+    String primaryKey = schema.getPrimaryKey() != null
+        ? schema.getPrimaryKey() : FeatureBatcher.DEFAULT_PRIMARY_KEY;
+    if (schema.getColumns() != null) {
+      for (TableColumn column : schema.getColumns()) {
+        if (primaryKey.equals(column.getName())) {
+          return column.getType();
+        }
+      }
+    }
+    return "string";
+  }
+
+  private void acknowledge(long sequence) throws IOException {
+    if (journal != null && sequence > 0) {
+      journal.acknowledge(sequence);
+    }
+  }
+
+  private void flushIfFull() throws IOException {
+    boolean full;
+    synchronized (this) {
+      full = pending.size() >= maxPending;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /** Flushes the buffer once the edit just added is the maximum delay old. */
+  private void scheduleFlush() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "MutationBuffer-" + tableId);
+          // Pending edits are flushed by close(), not by keeping the JVM alive.
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Timed flush of table " + tableId + " failed.", e);
+          synchronized (MutationBuffer.this) {
+            timedFailure = e;
+          }
+        }
+      }
+    }, maxDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void checkTimedFailure() throws IOException {
+    if (timedFailure != null) {
+      IOException e = timedFailure;
+      timedFailure = null;
+      throw e;
+    }
+  }
+
+  private void send(Map<String, Mutation> mutations) throws IOException {
+    List<String> deletes = new ArrayList<String>();
+    FeatureBatcher inserter = new FeatureBatcher(new FeatureBatcher.Sink() {
+      @Override
+      public void send(List<Feature> batch) throws IOException {
+        client.batchInsert(tableId, source(batch));
+        countRequest();
+        if (index != null) {
+          for (Feature feature : batch) {
+            String key = keyOf(feature);
+            index.put(FeatureHasher.hashKey(key),
+                FeatureHasher.hashFeature(feature, propertyNames), key);
+          }
+        }
+      }
+    });
+    FeatureBatcher patcher = new FeatureBatcher(new FeatureBatcher.Sink() {
+      @Override
+      public void send(List<Feature> batch) throws IOException {
+        client.batchPatch(tableId, source(batch));
+        countRequest();
+        if (index != null) {
+          // The patched feature's other properties aren't known, so neither is its row hash.
+          for (Feature patch : batch) {
+            String key = keyOf(patch);
+            index.put(FeatureHasher.hashKey(key), FeatureHasher.UNKNOWN_ROW_HASH, key);
+          }
+        }
+      }
+    });
+
+    // Deletes go first, so that a replaced feature is gone before it is inserted again.
+    for (Map.Entry<String, Mutation> entry : mutations.entrySet()) {
+      Kind kind = entry.getValue().kind;
+      if (kind == Kind.DELETE || kind == Kind.REPLACE) {
+        deletes.add(entry.getKey());
+        if (deletes.size() == FeatureBatcher.MAX_FEATURES_PER_REQUEST) {
+          sendDeletes(deletes);
+          deletes = new ArrayList<String>();
+        }
+      }
+    }
+    if (!deletes.isEmpty()) {
+      sendDeletes(deletes);
+    }
+    for (Mutation mutation : mutations.values()) {
+      if (mutation.kind == Kind.INSERT || mutation.kind == Kind.REPLACE) {
+        inserter.add(mutation.feature, countVertices(mutation.feature.getGeometry()));
+      }
+    }
+    inserter.flush();
+    for (Mutation mutation : mutations.values()) {
+      if (mutation.kind == Kind.PATCH) {
+        patcher.add(mutation.feature, countVertices(mutation.feature.getGeometry()));
+      }
+    }
+    patcher.flush();
+    LOG.fine("Flushed " + mutations.size() + " features of table " + tableId);
+  }
+
+  private void sendDeletes(List<String> keys) throws IOException {
+    client.batchDelete(tableId, keys);
+    countRequest();
+    if (index != null) {
+      for (String key : keys) {
+        index.remove(FeatureHasher.hashKey(key));
+      }
+    }
+  }
+
+  private static StreamingBatchContent.FeatureSource source(final List<Feature> features) {
+    return new StreamingBatchContent.FeatureSource() {
+      @Override
+      public void writeFeatures(JsonGenerator generator) throws IOException {
+        for (Feature feature : features) {
+          generator.serialize(feature);
+        }
+      }
+    };
+  }
+
+  private synchronized void countRequest() {
+    requestCount++;
+  }
+
+  private String keyOf(Feature feature) {
+    Object key = feature.getProperties() != null ? feature.getProperties().get(primaryKey) : null;
+    if (key == null || Data.isNull(key)) {
+      throw new IllegalArgumentException("Feature has no '" + primaryKey + "' property.");
+    }
+    return FeatureHasher.keyString(key);
+  }
+
+  /**
+   * Returns a feature with the patch's geometry, if it has one, and the properties of both, the
+   * patch's taking precedence. Unless keeping them, null properties of the patch are removed.
+   */
+  private static Feature merge(Feature feature, Feature patch, boolean keepNulls) {
+    Map<String, Object> properties = new LinkedHashMap<String, Object>(feature.getProperties());
+    for (Map.Entry<String, Object> property : patch.getProperties().entrySet()) {
+      Object value = property.getValue();
+      if (!keepNulls && (value == null || Data.isNull(value))) {
+        properties.remove(property.getKey());
+      } else {
+        properties.put(property.getKey(), value);
+      }
+    }
+    return new Feature()
+        .setType(feature.getType())
+        .setGeometry(patch.getGeometry() != null ? patch.getGeometry() : feature.getGeometry())
+        .setProperties(properties);
+  }
+
+  /** Counts the positions in a geometry, walking its coordinate arrays whatever its type. */
+  static int countVertices(GeoJsonGeometry geometry) {
+    if (geometry == null) {
+      return 0;
+    }
+    Object geometries = geometry.get("geometries");
+    if (geometries instanceof List) {
+      int vertices = 0;
+      for (Object member : (List<?>) geometries) {
+        if (member instanceof GeoJsonGeometry) {
+          vertices += countVertices((GeoJsonGeometry) member);
+        }
+      }
+      return vertices;
+    }
+    return countPositions(geometry.get("coordinates"));
+  }
+
+  private static int countPositions(Object coordinates) {
+    if (!(coordinates instanceof List)) {
+      return 0;
+    }
+    List<?> list = (List<?>) coordinates;
+    if (list.isEmpty() || !(list.get(0) instanceof List)) {
+      // A list of numbers is a single position.
+      return 1;
+    }
+    int positions = 0;
+    for (Object member : list) {
+      positions += countPositions(member);
+    }
+    return positions;
+  }
+}
@@ -0,0 +1,286 @@
+package com.google.mapsengine.samples.batch;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A write-ahead log of feature edits, so that edits that may not have reached a table when the
+ * process stopped can be sent again when it restarts.
+ *
+ * Each edit is appended as a line holding a sequence number, the operation, and the feature or
+ * primary key as JSON. Once a group of edits has reached the table, an acknowledgement line marks
+ * every edit up to its sequence number as done. Lines are buffered, and only forced to disk by
+ * {@link #sync}, so that one fsync covers all the edits made since the last; a
+ * {@link MutationBuffer} syncs before each flush, so no edit reaches the table before its record
+ * is on disk. A last line left incomplete by a crash is ignored, and cut off before the next
+ * record is appended.
+ *
+ * The file is emptied whenever every edit in it has been acknowledged, and otherwise rewritten
+ * with just the unacknowledged edits once it grows past 64MB. Thread-safe.
+ */
+public class MutationJournal implements Closeable {
+
+  /** An edit of a feature. */
+  public enum Operation {
+    INSERT,
+    PATCH,
+    DELETE
+  }
+
+  /** A recorded edit. */
+  public static class Entry {
+    private final long sequence;
+    private final Operation operation;
+    private final String key;
+    private final Feature feature;
+    private final String line;
+
+    private Entry(long sequence, Operation operation, String key, Feature feature, String line) {
+      this.sequence = sequence;
+      this.operation = operation;
+      this.key = key;
+      this.feature = feature;
+      this.line = line;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    /** Returns the primary key of a deleted feature, or null for an insert or a patch. */
+    public String getKey() {
+      return key;
+    }
+
+    /** Returns the inserted feature or the patch, or null for a delete. */
+    public Feature getFeature() {
+      return feature;
+    }
+  }
+
+  private static final String SEPARATOR = " ";
+  private static final String ACK = "ack";
+  private static final long COMPACT_BYTES = 64L * 1024 * 1024;
+
+  private final File journalFile;
+  private final JsonFactory jsonFactory;
+  private final Deque<Entry> unacknowledged = new ArrayDeque<Entry>();
+  private long lastSequence;
+  /** The length of the records that were read, if the file ends with an incomplete one. */
+  private long tornLength = -1;
+  private FileOutputStream out;
+  private Writer writer;
+
+  /** Opens the journal, loading the edits that haven't been acknowledged. */
+  public MutationJournal(File journalFile, JsonFactory jsonFactory) throws IOException {
+    this.journalFile = journalFile;
+    this.jsonFactory = jsonFactory;
+    if (journalFile.exists()) {
+      load();
+    }
+  }
+
+  /** Returns the edits that haven't been acknowledged, oldest first. */
+  public synchronized List<Entry> getUnacknowledged() {
+    return new ArrayList<Entry>(unacknowledged);
+  }
+
+  /** Returns the sequence number of the last edit recorded, or 0 if there hasn't been one. */
+  public synchronized long getLastSequence() {
+    return lastSequence;
+  }
+
+  /** Records an insert or a patch, returning its sequence number. */
+  public synchronized long append(Operation operation, Feature feature) throws IOException {
+    return append(operation, null, feature, jsonFactory.toString(feature));
+  }
+
+  /** Records a delete, returning its sequence number. */
+  public synchronized long appendDelete(String key) throws IOException {
+    return append(Operation.DELETE, key, null, jsonFactory.toString(key));
+  }
+
+  /** Forces every record made so far to disk. */
+  public synchronized void sync() throws IOException {
+    if (writer != null) {
+      writer.flush();
+      out.getChannel().force(false);
+    }
+  }
+
+  /** Records that every edit up to and including the given sequence number has been applied. */
+  public synchronized void acknowledge(long sequence) throws IOException {
+    while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= sequence) {
+      unacknowledged.removeFirst();
+    }
+    if (writer == null) {
+      open();
+    }
+    if (unacknowledged.isEmpty()) {
+      // Nothing in the file is needed any more. The sequence numbers carry on from memory.
+      writer.flush();
+      out.getChannel().truncate(0);
+      return;
+    }
+    writer.write(sequence + SEPARATOR + ACK + '\n');
+    if (journalFile.length() > COMPACT_BYTES) {
+      compact();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      sync();
+      writer.close();
+      writer = null;
+    }
+  }
+
+  private long append(Operation operation, String key, Feature feature, String json)
+      throws IOException {
+    if (writer == null) {
+      open();
+    }
+    long sequence = ++lastSequence;
+    String line = sequence + SEPARATOR + operation.name().toLowerCase(Locale.ENGLISH) + SEPARATOR
+        + json;
+    writer.write(line + '\n');
+    unacknowledged.addLast(new Entry(sequence, operation, key, feature, line));
+    return sequence;
+  }
+
+  /**
+   * Applies the lines of the file, noting where the last complete, readable one ends. A last line
+   * with no newline is left out even if it can be parsed: it was never synced, so its edit was
+   * never sent.
+   */
+  private void load() throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(journalFile));
+    try {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      long offset = 0;
+      long validLength = 0;
+      String unreadable = null;
+      int b;
+      while ((b = in.read()) != -1) {
+        // Only the last line can have been cut short by a crash.
+        if (unreadable != null) {
+          throw new IOException("Mutation journal " + journalFile + " has an unreadable line: "
+              + unreadable);
+        }
+        offset++;
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        if (load(text)) {
+          validLength = offset;
+        } else {
+          unreadable = text;
+        }
+      }
+      if (validLength < offset) {
+        tornLength = validLength;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Applies a line read from the file, returning false if it can't be parsed. */
+  private boolean load(String line) {
+    String[] fields = line.split(SEPARATOR, 3);
+    long sequence;
+    try {
+      sequence = Long.parseLong(fields[0]);
+    } catch (NumberFormatException e) {
+      return line.isEmpty();
+    }
+    if (fields.length == 2 && fields[1].equals(ACK)) {
+      while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= sequence) {
+        unacknowledged.removeFirst();
+      }
+      return true;
+    } else if (fields.length < 3) {
+      return false;
+    }
+    try {
+      Operation operation = Operation.valueOf(fields[1].toUpperCase(Locale.ENGLISH));
+      Entry entry = operation == Operation.DELETE
+          ? new Entry(sequence, operation, jsonFactory.fromString(fields[2], String.class), null,
+              line)
+          : new Entry(sequence, operation, null, jsonFactory.fromString(fields[2], Feature.class),
+              line);
+      unacknowledged.addLast(entry);
+      lastSequence = Math.max(lastSequence, sequence);
+      return true;
+    } catch (IllegalArgumentException e) {
+      // An unknown operation, or JSON that isn't a feature.
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Rewrites the file with just the unacknowledged edits, replacing it once it is on disk. */
+  private void compact() throws IOException {
+    File temp = new File(journalFile.getPath() + ".tmp");
+    FileOutputStream tempOut = new FileOutputStream(temp);
+    try {
+      Writer tempWriter =
+          new BufferedWriter(new OutputStreamWriter(tempOut, StandardCharsets.UTF_8));
+      for (Entry entry : unacknowledged) {
+        tempWriter.write(entry.line + '\n');
+      }
+      tempWriter.flush();
+      tempOut.getChannel().force(false);
+    } finally {
+      tempOut.close();
+    }
+    writer.close();
+    Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    writer = null;
+    open();
+  }
+
+  private void open() throws IOException {
+    File dir = journalFile.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    out = new FileOutputStream(journalFile, true);
+    if (tornLength >= 0) {
+      // Cut off the incomplete record, so that the next one starts a line of its own.
+      out.getChannel().truncate(tornLength);
+      tornLength = -1;
+    }
+    writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,95 @@
+package com.google.mapsengine.samples.batch;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link BatchSink} that sends batches on a pool of worker threads.
+ *
+ * At most {@code workers} batches are in flight at once, and at most {@code queueSize} more
+ * wait for a free worker. Once the queue is full, {@link #send} blocks, so the producer can never
+ * get far ahead of the network.
+ *
+ * The workers only bound how many requests this sink can have outstanding. When the server
+ * starts rate limiting, an {@link com.google.mapsengine.samples.clients.AdaptiveRateLimiter} in
+ * the request initializer pipeline holds requests back, so fewer of them run concurrently.
+ */
+public class ParallelBatchSink<B> implements BatchSink<B> {
+
+  private final BatchSink<B> delegate;
+  private final ExecutorService executor;
+
+  /** Bounds the number of batches queued or in flight. */
+  private final Semaphore queueSlots;
+
+  private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+  public ParallelBatchSink(BatchSink<B> delegate, int workers, int queueSize) {
+    if (workers < 1 || queueSize < 0) {
+      throw new IllegalArgumentException("At least one worker and a non-negative queue size "
+          + "are required.");
+    }
+    this.delegate = delegate;
+    this.executor = Executors.newFixedThreadPool(workers);
+    this.queueSlots = new Semaphore(workers + queueSize);
+  }
+
+  /** Queues the batch for sending, blocking while the queue is full. */
+  @Override
+  public void send(final B batch) throws IOException {
+    checkFailure();
+    try {
+      queueSlots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to queue a batch.", e);
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // Once a batch has failed there is no point sending the rest.
+          if (failure.get() == null) {
+            delegate.send(batch);
+          }
+        } catch (IOException e) {
+          failure.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, new IOException("Batch send failed.", e));
+        } finally {
+          queueSlots.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for all queued batches to be sent and shuts down the workers. Throws the first error
+   * encountered by any worker.
+   */
+  public void close() throws IOException {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // Keep waiting, large batches can take a while on slow connections.
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for batches to complete.", e);
+    }
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException {
+    IOException e = failure.get();
+    if (e != null) {
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpTransports;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent requests, and the rate at which they start, adjusting both
+ * limits in response to the server's feedback.
+ *
+ * Both limits follow an additive-increase, multiplicative-decrease (AIMD) scheme: each
+ * successful response nudges them up, and each rate limiting response (a 503, or a 403 that the
+ * back-off handler retries as rateLimitExceeded) halves them. Cuts are applied at most once per
+ * cool-down period, so a burst of rejections caused by one overload only counts once. Because a
+ * single instance is shared by every request in the process, all threads converge on the quota
+ * together instead of backing off and colliding independently.
+ *
+ * The limits are enforced by the transport returned by {@link #wrap}, which holds a slot for just
+ * as long as each request is being sent, however the request ends. The feedback comes from the
+ * responses, so the instance must also be added to the client's
+ * {@link com.google.maps.clients.HttpRequestInitializerPipeline}, after the credential and the
+ * {@link com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer}, as it wraps the
+ * handlers that they install. {@link MapsEngineClients} does both.
+ */
+public class AdaptiveRateLimiter implements HttpRequestInitializer {
+
+  private static final int DEFAULT_INITIAL_CONCURRENCY = 4;
+  private static final int DEFAULT_MAX_CONCURRENCY = 32;
+  private static final double DEFAULT_INITIAL_RATE = 5.0;
+  private static final double DEFAULT_MAX_RATE = 100.0;
+  private static final double MIN_RATE = 0.5;
+  private static final long CUT_COOL_DOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final AdaptiveRateLimiter SHARED = new AdaptiveRateLimiter(
+      DEFAULT_INITIAL_CONCURRENCY, DEFAULT_MAX_CONCURRENCY, DEFAULT_INITIAL_RATE,
+      DEFAULT_MAX_RATE);
+
+  /** Returns the limiter shared by every request made in this process. */
+  public static AdaptiveRateLimiter shared() {
+    return SHARED;
+  }
+
+  private final int maxConcurrency;
+  private final double maxRate;
+
+  // All of the state below is guarded by this.
+  private double concurrencyLimit;
+  private double rate;
+  private int inFlight;
+  private long nextStartNanos;
+  private long lastCutNanos;
+  private boolean cutYet;
+
+  /**
+   * @param initialConcurrency The number of concurrent requests to allow at first.
+   * @param maxConcurrency The most concurrent requests that will ever be allowed.
+   * @param initialRate The number of requests per second to allow at first.
+   * @param maxRate The most requests per second that will ever be allowed.
+   */
+  public AdaptiveRateLimiter(int initialConcurrency, int maxConcurrency, double initialRate,
+      double maxRate) {
+    if (initialConcurrency < 1 || maxConcurrency < initialConcurrency
+        || initialRate < MIN_RATE || maxRate < initialRate) {
+      throw new IllegalArgumentException("Invalid limits: concurrency " + initialConcurrency
+          + "/" + maxConcurrency + ", rate " + initialRate + "/" + maxRate);
+    }
+    this.concurrencyLimit = initialConcurrency;
+    this.maxConcurrency = maxConcurrency;
+    this.rate = initialRate;
+    this.maxRate = maxRate;
+  }
+
+  /** Returns the number of requests currently allowed to run concurrently. */
+  public synchronized int getConcurrencyLimit() {
+    return (int) concurrencyLimit;
+  }
+
+  /** Returns the number of requests currently allowed to start each second. */
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  /** Returns a transport that sends requests through the given one, within the limits. */
+  public HttpTransport wrap(HttpTransport transport) {
+    return new LimitedTransport(transport);
+  }
+
+  @Override
+  public void initialize(HttpRequest request) throws IOException {
+    new Feedback(request).install();
+  }
+
+  /**
+   * Blocks until a request may start: there must be a free concurrency slot, and it must be
+   * the request's turn under the current rate.
+   */
+  void acquire() throws IOException {
+    long waitNanos;
+    synchronized (this) {
+      try {
+        while (inFlight >= (int) concurrencyLimit) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a request slot.", e);
+      }
+      inFlight++;
+
+      long now = System.nanoTime();
+      long start = Math.max(now, nextStartNanos);
+      nextStartNanos = start + intervalNanos();
+      waitNanos = start - now;
+    }
+
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        release();
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a request slot.", e);
+      }
+    }
+  }
+
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /** Additive increase: about one extra slot, and one extra request per second, per window. */
+  synchronized void onSuccess() {
+    concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+    rate = Math.min(maxRate, rate + 1 / rate);
+    notifyAll();
+  }
+
+  /** Multiplicative decrease, applied at most once per cool-down period. */
+  synchronized void onRateLimited() {
+    long now = System.nanoTime();
+    if (cutYet && now - lastCutNanos < CUT_COOL_DOWN_NANOS) {
+      return;
+    }
+    cutYet = true;
+    lastCutNanos = now;
+    concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+    rate = Math.max(MIN_RATE, rate / 2);
+    // Push back the next start too, so that waiting requests feel the cut straight away.
+    nextStartNanos = Math.max(nextStartNanos, now) + intervalNanos();
+  }
+
+  private long intervalNanos() {
+    return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+  }
+
+  /** Passes the feedback from a request's responses on to the limits. */
+  private class Feedback implements HttpUnsuccessfulResponseHandler, HttpResponseInterceptor {
+
+    private final HttpRequest request;
+    private final HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler;
+    private final HttpResponseInterceptor responseInterceptor;
+
+    Feedback(HttpRequest request) {
+      this.request = request;
+      this.unsuccessfulResponseHandler = request.getUnsuccessfulResponseHandler();
+      this.responseInterceptor = request.getResponseInterceptor();
+    }
+
+    void install() {
+      request.setUnsuccessfulResponseHandler(this);
+      request.setResponseInterceptor(this);
+    }
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response,
+        boolean supportsRetry) throws IOException {
+      int status = response.getStatusCode();
+      if (status == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE) {
+        onRateLimited();
+      }
+      boolean retrying = unsuccessfulResponseHandler != null
+          && unsuccessfulResponseHandler.handleResponse(request, response, supportsRetry);
+      // The back-off handler only retries a 403 when the reason is rateLimitExceeded, so we
+      // rely on its decision rather than parsing the error body a second time.
+      if (status == HttpStatusCodes.STATUS_CODE_FORBIDDEN && retrying) {
+        onRateLimited();
+      }
+      return retrying;
+    }
+
+    @Override
+    public void interceptResponse(HttpResponse response) throws IOException {
+      if (response.isSuccessStatusCode()) {
+        onSuccess();
+      }
+      if (responseInterceptor != null) {
+        responseInterceptor.interceptResponse(response);
+      }
+    }
+  }
+
+  /** A transport whose requests each hold a slot while they are sent. */
+  private class LimitedTransport extends HttpTransport {
+
+    private final HttpTransport transport;
+
+    LimitedTransport(HttpTransport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public boolean supportsMethod(String method) throws IOException {
+      return transport.supportsMethod(method);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+      return new LimitedRequest(HttpTransports.buildRequest(transport, method, url));
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+      transport.shutdown();
+    }
+  }
+
+  /**
+   * Holds a slot from just before the request is sent until its response headers arrive, or it
+   * fails. Each attempt of a retried request is a separate low-level request, and the whole of a
+   * batch request is a single one, so neither needs any more tracking than this.
+   */
+  private class LimitedRequest extends LowLevelHttpRequest {
+
+    private final LowLevelHttpRequest request;
+
+    LimitedRequest(LowLevelHttpRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws IOException {
+      request.addHeader(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+      request.setTimeout(connectTimeout, readTimeout);
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      request.setContentType(getContentType());
+      request.setContentEncoding(getContentEncoding());
+      request.setContentLength(getContentLength());
+      request.setStreamingContent(getStreamingContent());
+      acquire();
+      try {
+        return request.execute();
+      } finally {
+        release();
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip encoding that buffers its output. The library's GZipEncoding writes the gzip header and
+ * each deflated block straight to the connection, and with a chunked body every one of those
+ * small writes becomes a packet of its own. The fastest compression level is used, as it gets
+ * most of the reduction in size for a fraction of the default level's CPU time.
+ */
+class BufferedGZipEncoding implements HttpEncoding {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  @Override
+  public String getName() {
+    return "gzip";
+  }
+
+  @Override
+  public void encode(StreamingContent content, OutputStream out) throws IOException {
+    // The connection's stream is closed by the transport, so closing the zipper only flushes it.
+    OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+    GZIPOutputStream zipper = new GZIPOutputStream(buffered, BUFFER_SIZE) {
+      {
+        def.setLevel(Deflater.BEST_SPEED);
+      }
+    };
+    content.writeTo(zipper);
+    zipper.close();
+  }
+}
@@ -0,0 +1,59 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+
+import java.io.IOException;
+
+/**
+ * Gzips, or stops gzipping, the body of every request that sends JSON.
+ *
+ * The generated request classes gzip their own JSON bodies, but requests built by hand, such as
+ * those of {@link StreamingFeatureClient}, are sent as they are. Feature payloads are repetitive
+ * and typically shrink several times over. The choice is made just before each request is sent,
+ * after its content has been set. Other bodies, such as file upload chunks, are never touched, as
+ * the resumable upload protocol counts their bytes as they are.
+ *
+ * A {@link StreamingBatchContent} gzips itself as it is written, and only the header is set here.
+ * Given an encoding, the transport would write a retryable body through it once just to measure
+ * its length, and then again to send it.
+ */
+public class JsonCompressionInitializer implements HttpRequestInitializer {
+
+  private static final BufferedGZipEncoding GZIP = new BufferedGZipEncoding();
+
+  private final boolean compress;
+
+  /** @param compress Whether JSON bodies are gzipped, or always sent as they are. */
+  public JsonCompressionInitializer(boolean compress) {
+    this.compress = compress;
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    final HttpExecuteInterceptor interceptor = request.getInterceptor();
+    request.setInterceptor(new HttpExecuteInterceptor() {
+      @Override
+      public void intercept(HttpRequest request) throws IOException {
+        if (interceptor != null) {
+          interceptor.intercept(request);
+        }
+        HttpContent content = request.getContent();
+        if (content instanceof StreamingBatchContent) {
+          ((StreamingBatchContent) content).setGzip(compress);
+          request.getHeaders().setContentEncoding(compress ? GZIP.getName() : null);
+          request.setEncoding(null);
+        } else if (isJson(content)) {
+          request.setEncoding(compress ? GZIP : null);
+        }
+      }
+    });
+  }
+
+  private static boolean isJson(HttpContent content) {
+    return content != null && content.getType() != null
+        && content.getType().startsWith("application/json");
+  }
+}
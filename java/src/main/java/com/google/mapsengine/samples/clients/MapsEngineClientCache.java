@@ -0,0 +1,120 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mapsengine.MapsEngine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out one MapsEngine client per credential, so that a server can reuse a user's client
+ * across requests instead of building a new one for each.
+ *
+ * Every client shares the transport, and so the connection pool, of a single
+ * {@link MapsEngineClients}. The cache holds at most a fixed number of clients, dropping the least
+ * recently used when it is full, and drops any client that hasn't been used for the idle timeout,
+ * so clients of users who have gone away don't hold on to their credentials. Idle clients are
+ * found when the cache is next used, so no thread is needed to evict them. Each client can be
+ * given a rate limiter of its own, so that one user being rate limited doesn't hold up the rest.
+ *
+ * Thread-safe. Credentials are matched by identity, as they are when kept in a session.
+ */
+public class MapsEngineClientCache {
+
+  private final MapsEngineClients clients;
+  private final String applicationName;
+  private final long idleNanos;
+  private int maxConcurrency;
+  private double maxRate;
+
+  /** The cached clients, least recently used first. Guarded by itself. */
+  private final LinkedHashMap<Credential, CachedClient> entries;
+
+  /**
+   * @param clients The factory that builds the clients, and owns their transport.
+   * @param applicationName The application name sent with every request.
+   * @param maxSize The most clients to keep.
+   * @param idleTimeout How long a client is kept without being used, in the given unit.
+   */
+  public MapsEngineClientCache(MapsEngineClients clients, String applicationName,
+      final int maxSize, long idleTimeout, TimeUnit unit) {
+    this.clients = clients;
+    this.applicationName = applicationName;
+    this.idleNanos = unit.toNanos(idleTimeout);
+    this.entries = new LinkedHashMap<Credential, CachedClient>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Credential, CachedClient> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Gives each client an {@link AdaptiveRateLimiter} of its own, which starts at these limits and
+   * only backs off from them when that user's requests are rate limited. By default every client
+   * shares the factory's limiter.
+   *
+   * @param maxConcurrency The most requests a user may have in flight at once.
+   * @param maxRate The most requests a user may start each second.
+   */
+  public MapsEngineClientCache setRateLimits(int maxConcurrency, double maxRate) {
+    this.maxConcurrency = maxConcurrency;
+    this.maxRate = maxRate;
+    return this;
+  }
+
+  /** Returns the client for the credential, building it if it isn't cached. */
+  public MapsEngine get(Credential credential) {
+    long now = System.nanoTime();
+    synchronized (entries) {
+      evictIdle(now);
+      CachedClient cached = entries.get(credential);
+      if (cached == null) {
+        cached = new CachedClient(maxConcurrency == 0
+            ? clients.newClient(credential, applicationName)
+            : clients.newClient(credential, applicationName,
+                new AdaptiveRateLimiter(maxConcurrency, maxConcurrency, maxRate, maxRate)));
+        entries.put(credential, cached);
+      }
+      cached.lastUsed = now;
+      return cached.client;
+    }
+  }
+
+  /** Drops the credential's client, for example when the user signs out. */
+  public void invalidate(Credential credential) {
+    synchronized (entries) {
+      entries.remove(credential);
+    }
+  }
+
+  /** Returns the number of cached clients. */
+  public int size() {
+    synchronized (entries) {
+      evictIdle(System.nanoTime());
+      return entries.size();
+    }
+  }
+
+  /** Removes the clients that have been idle too long. They are all at the start of the map. */
+  private void evictIdle(long now) {
+    Iterator<CachedClient> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().lastUsed < idleNanos) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+
+  private static class CachedClient {
+    final MapsEngine client;
+    long lastUsed;
+
+    CachedClient(MapsEngine client) {
+      this.client = client;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer;
+import com.google.maps.clients.HttpRequestInitializerPipeline;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Creates the HTTP transport and MapsEngine client shared by the samples, configured from their
+ * command-line flags.
+ *
+ * Every client is built the same way: the credential, the back-off and rate limiting initializers,
+ * and gzipped JSON request bodies. The transport keeps enough idle connections alive for every
+ * worker to reuse its connection rather than open a new one per request, and can be either the
+ * JDK's HttpURLConnection or Apache HttpClient.
+ */
+public class MapsEngineClients {
+
+  public static final String TRANSPORT_FLAG = "--transport=";
+  public static final String NO_GZIP_FLAG = "--no-gzip";
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+  /** The JDK property that limits the number of idle connections kept alive per host. */
+  private static final String KEEP_ALIVE_PROPERTY = "http.maxConnections";
+
+  /** The HTTP transports that can be chosen with {@link #TRANSPORT_FLAG}. */
+  public enum Transport {
+    /** HttpURLConnection, from the JDK. */
+    NET,
+    /** Apache HttpClient, with a thread-safe connection pool. */
+    APACHE
+  }
+
+  private Transport transportType = Transport.NET;
+  private boolean compress = true;
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  private AdaptiveRateLimiter rateLimiter = AdaptiveRateLimiter.shared();
+  private String rootUrl;
+  private HttpTransport transport;
+  private final JsonFactory jsonFactory = new GsonFactory();
+
+  /**
+   * Applies a command-line flag, if it is one of this class's flags.
+   *
+   * @return Whether the flag was recognised.
+   */
+  public boolean parseFlag(String arg) {
+    if (arg.startsWith(TRANSPORT_FLAG)) {
+      transportType = Transport.valueOf(
+          arg.substring(TRANSPORT_FLAG.length()).toUpperCase(Locale.ENGLISH));
+      return true;
+    } else if (arg.equals(NO_GZIP_FLAG)) {
+      compress = false;
+      return true;
+    }
+    return false;
+  }
+
+  /** Prints the usage of this class's flags. */
+  public static void printUsage() {
+    System.err.println(" " + TRANSPORT_FLAG + "net|apache chooses the HTTP transport, defaults to "
+        + "net");
+    System.err.println(" " + NO_GZIP_FLAG + " sends request bodies without compressing them");
+  }
+
+  /** Sets the number of connections that may be open at once, typically the number of workers. */
+  public MapsEngineClients setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  public MapsEngineClients setTransport(Transport transportType) {
+    this.transportType = transportType;
+    return this;
+  }
+
+  public MapsEngineClients setCompress(boolean compress) {
+    this.compress = compress;
+    return this;
+  }
+
+  /** Sets the limiter that paces credentialed clients' requests. Defaults to the shared one. */
+  public MapsEngineClients setRateLimiter(AdaptiveRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+    return this;
+  }
+
+  /**
+   * Sets the server that credentialed clients send requests to, such as a local stub. Defaults to
+   * Maps Engine itself.
+   */
+  public MapsEngineClients setRootUrl(String rootUrl) {
+    this.rootUrl = rootUrl;
+    return this;
+  }
+
+  /** Returns the shared transport, creating it the first time. */
+  public synchronized HttpTransport getTransport() {
+    if (transport == null) {
+      transport = newTransport(transportType, maxConnections);
+    }
+    return transport;
+  }
+
+  public JsonFactory getJsonFactory() {
+    return jsonFactory;
+  }
+
+  /**
+   * Builds a client that authorizes with the credential, backs off when rate limited and adapts
+   * its request rate to the server's feedback.
+   */
+  public MapsEngine newClient(HttpRequestInitializer credential, String applicationName) {
+    return newClient(credential, applicationName, rateLimiter);
+  }
+
+  /**
+   * Builds a client like {@link #newClient(HttpRequestInitializer, String)}, paced by the given
+   * limiter instead of this factory's.
+   */
+  public MapsEngine newClient(HttpRequestInitializer credential, String applicationName,
+      AdaptiveRateLimiter rateLimiter) {
+    return newClient(rateLimiter.wrap(getTransport()),
+        new HttpRequestInitializerPipeline(Arrays.asList(credential,
+            new BackOffWhenRateLimitedRequestInitializer(), rateLimiter)),
+        applicationName, rootUrl);
+  }
+
+  /**
+   * Builds a client with only the given initializer, plus request compression.
+   *
+   * @param rootUrl The server to send requests to, or null for Maps Engine itself.
+   */
+  public MapsEngine newClient(HttpRequestInitializer initializer, String applicationName,
+      String rootUrl) {
+    return newClient(getTransport(), initializer, applicationName, rootUrl);
+  }
+
+  private MapsEngine newClient(HttpTransport transport, HttpRequestInitializer initializer,
+      String applicationName, String rootUrl) {
+    MapsEngine.Builder builder = new MapsEngine.Builder(transport, jsonFactory,
+        new HttpRequestInitializerPipeline(initializer, new JsonCompressionInitializer(compress)))
+        .setApplicationName(applicationName);
+    if (rootUrl != null) {
+      builder.setRootUrl(rootUrl);
+    }
+    return builder.build();
+  }
+
+  /** Closes the shared transport's idle connections. */
+  public synchronized void shutdown() throws IOException {
+    if (transport != null) {
+      transport.shutdown();
+    }
+  }
+
+  private static HttpTransport newTransport(Transport transportType, int maxConnections) {
+    switch (transportType) {
+      case APACHE:
+        // Every request goes to the same host, so the per-route limit is the one that matters.
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder();
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        return builder.build();
+      case NET:
+      default:
+        // HttpURLConnection only keeps 5 idle connections per host by default, so any more
+        // workers than that would keep opening new connections. The property is read when the
+        // first connection is made, and a value set by the user is left alone.
+        if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+          System.setProperty(KEEP_ALIVE_PROPERTY, String.valueOf(maxConnections));
+        }
+        return new NetHttpTransport();
+    }
+  }
+}
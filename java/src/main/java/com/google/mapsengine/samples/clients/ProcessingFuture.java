@@ -0,0 +1,156 @@
+package com.google.mapsengine.samples.clients;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of waiting for an asset to finish processing. Callers can block on it with
+ * {@link #get} or {@link #await}, or register a {@link Callback} to be told when it completes.
+ */
+public class ProcessingFuture<T> implements Future<T> {
+
+  private static final Logger LOG = Logger.getLogger(ProcessingFuture.class.getName());
+
+  /** Receives the outcome of a {@link ProcessingFuture}. */
+  public interface Callback<T> {
+    void onSuccess(T result);
+
+    void onFailure(Throwable cause);
+  }
+
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  // Guarded by this until done is released, after which they never change.
+  private T result;
+  private Throwable failure;
+  private boolean cancelled;
+  private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+
+  /** Completes the future successfully. Returns false if it had already completed. */
+  boolean set(T value) {
+    return complete(value, null, false);
+  }
+
+  /** Completes the future with an error. Returns false if it had already completed. */
+  boolean setException(Throwable cause) {
+    return complete(null, cause, false);
+  }
+
+  private boolean complete(T value, Throwable cause, boolean cancel) {
+    List<Callback<? super T>> toRun;
+    synchronized (this) {
+      if (callbacks == null) {
+        return false;
+      }
+      result = value;
+      failure = cause;
+      cancelled = cancel;
+      toRun = callbacks;
+      callbacks = null;
+      done.countDown();
+    }
+    for (Callback<? super T> callback : toRun) {
+      run(callback);
+    }
+    return true;
+  }
+
+  /**
+   * Registers a callback, to be run on the thread that completes this future, or straight away
+   * on this thread if it has already completed.
+   */
+  public void addCallback(Callback<? super T> callback) {
+    synchronized (this) {
+      if (callbacks != null) {
+        callbacks.add(callback);
+        return;
+      }
+    }
+    run(callback);
+  }
+
+  /**
+   * Runs a callback on the outcome. A callback that throws is logged rather than allowed to
+   * reach the thread completing the future, which may be completing others.
+   */
+  private void run(Callback<? super T> callback) {
+    try {
+      if (failure == null) {
+        callback.onSuccess(result);
+      } else {
+        callback.onFailure(failure);
+      }
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Callback " + callback + " threw an exception.", e);
+    }
+  }
+
+  /** Stops waiting for the asset. The asset itself continues processing on the server. */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return complete(null, new CancellationException("Stopped waiting for processing."), true);
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  @Override
+  public T get() throws InterruptedException, ExecutionException {
+    done.await();
+    return getDone();
+  }
+
+  @Override
+  public T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException("Asset did not finish processing within " + timeout + " "
+          + unit.toString().toLowerCase());
+    }
+    return getDone();
+  }
+
+  /**
+   * Blocks until the asset has finished processing and returns it, re-throwing any I/O error
+   * that stopped the wait.
+   */
+  public T await() throws IOException {
+    try {
+      return get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for processing.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private T getDone() throws ExecutionException {
+    if (cancelled) {
+      throw (CancellationException) failure;
+    }
+    if (failure != null) {
+      throw new ExecutionException(failure);
+    }
+    return result;
+  }
+}
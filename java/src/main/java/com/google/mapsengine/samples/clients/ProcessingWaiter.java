@@ -0,0 +1,330 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.MapsEngineRequest;
+import com.google.api.services.mapsengine.model.Layer;
+import com.google.api.services.mapsengine.model.Map;
+import com.google.api.services.mapsengine.model.Table;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits, without blocking the caller, for assets to reach the "complete" processing status.
+ *
+ * Each asset is polled with exponential back-off and jitter, up to an overall deadline. Polls
+ * that fall due together are sent as a single HTTP batch request, so waiting on many assets
+ * costs far fewer requests than polling each of them in a loop.
+ */
+public class ProcessingWaiter {
+
+  private static final Logger LOG = Logger.getLogger(ProcessingWaiter.class.getName());
+
+  private static final long DEFAULT_INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  /** The most requests the API accepts in a single batch. */
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private static final int STATUS_CODE_BAD_REQUEST = 400;
+
+  private static final String STATUS_COMPLETE = "complete";
+  private static final String STATUS_FAILED = "failed";
+
+  private final MapsEngine engine;
+  private final long initialDelayNanos;
+  private final long maxDelayNanos;
+  private final long timeoutNanos;
+  private final Random random = new Random();
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "processing-waiter");
+          // Don't keep the JVM alive just to watch assets nobody is waiting for any more.
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Only accessed from the scheduler thread.
+  private final List<Pending<?>> pending = new ArrayList<Pending<?>>();
+  private ScheduledFuture<?> nextPoll;
+  private long nextPollNanos;
+
+  public ProcessingWaiter(MapsEngine engine) {
+    this(engine, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param engine The client used to poll asset status.
+   * @param initialDelayMillis The delay before the first poll of each asset.
+   * @param maxDelayMillis The longest delay between two polls of the same asset.
+   * @param timeoutMillis How long to wait for each asset before giving up.
+   */
+  public ProcessingWaiter(MapsEngine engine, long initialDelayMillis, long maxDelayMillis,
+      long timeoutMillis) {
+    this.engine = engine;
+    this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /** Waits for the given layer to finish processing. */
+  public ProcessingFuture<Layer> waitForLayer(final String layerId) {
+    return watch(new Pending<Layer>(layerId) {
+      @Override
+      MapsEngineRequest<Layer> newRequest() throws IOException {
+        return engine.layers().get(layerId);
+      }
+
+      @Override
+      String processingStatus(Layer layer) {
+        return layer.getProcessingStatus();
+      }
+    });
+  }
+
+  /** Waits for the given map to finish processing. */
+  public ProcessingFuture<Map> waitForMap(final String mapId) {
+    return watch(new Pending<Map>(mapId) {
+      @Override
+      MapsEngineRequest<Map> newRequest() throws IOException {
+        return engine.maps().get(mapId);
+      }
+
+      @Override
+      String processingStatus(Map map) {
+        return map.getProcessingStatus();
+      }
+    });
+  }
+
+  /** Waits for the given table to finish processing its uploaded files. */
+  public ProcessingFuture<Table> waitForTable(final String tableId) {
+    return watch(new Pending<Table>(tableId) {
+      @Override
+      MapsEngineRequest<Table> newRequest() throws IOException {
+        return engine.tables().get(tableId);
+      }
+
+      @Override
+      String processingStatus(Table table) {
+        return table.getProcessingStatus();
+      }
+    });
+  }
+
+  /** Stops polling. Any assets still pending are failed with a cancellation. */
+  public void shutdown() {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (Pending<?> asset : pending) {
+          asset.future.cancel(false);
+        }
+        pending.clear();
+        scheduler.shutdownNow();
+      }
+    });
+  }
+
+  private <T> ProcessingFuture<T> watch(final Pending<T> asset) {
+    asset.deadlineNanos = System.nanoTime() + timeoutNanos;
+    asset.delayNanos = initialDelayNanos;
+    asset.nextPollNanos = System.nanoTime() + jitter(initialDelayNanos);
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        pending.add(asset);
+        schedulePoll();
+      }
+    });
+    return asset.future;
+  }
+
+  /** Schedules the next poll for when the earliest pending asset falls due. */
+  private void schedulePoll() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    long next = Long.MAX_VALUE;
+    for (Pending<?> asset : pending) {
+      next = Math.min(next, asset.nextPollNanos);
+    }
+    if (nextPoll != null && !nextPoll.isDone()) {
+      if (nextPollNanos - next <= 0) {
+        // Already polling early enough.
+        return;
+      }
+      nextPoll.cancel(false);
+    }
+    nextPollNanos = next;
+    nextPoll = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    }, Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  /** Checks the status of every asset that is due, in as few requests as possible. */
+  private void poll() {
+    nextPoll = null;
+    long now = System.nanoTime();
+    List<Pending<?>> due = new ArrayList<Pending<?>>();
+    for (Iterator<Pending<?>> it = pending.iterator(); it.hasNext();) {
+      Pending<?> asset = it.next();
+      if (asset.future.isDone()) {
+        // Cancelled by the caller.
+        it.remove();
+      } else if (now - asset.deadlineNanos >= 0) {
+        it.remove();
+        asset.future.setException(new IOException("Gave up waiting for asset " + asset.id
+            + " to finish processing.", new TimeoutException()));
+      } else if (now - asset.nextPollNanos >= 0) {
+        due.add(asset);
+      }
+    }
+
+    try {
+      check(due);
+    } catch (RuntimeException e) {
+      // A bug rather than a failed request, so retrying won't help. Fail just these assets, and
+      // carry on polling the rest.
+      LOG.log(Level.SEVERE, "Failed to check processing status.", e);
+      for (Pending<?> asset : due) {
+        asset.future.setException(e);
+      }
+    } finally {
+      for (Pending<?> asset : due) {
+        if (asset.future.isDone()) {
+          pending.remove(asset);
+        }
+      }
+      schedulePoll();
+    }
+  }
+
+  /** Polls the given assets, backing off any that can't be checked this time. */
+  private void check(List<Pending<?>> due) {
+    try {
+      if (due.size() == 1) {
+        due.get(0).check();
+      } else if (!due.isEmpty()) {
+        for (int start = 0; start < due.size(); start += MAX_BATCH_SIZE) {
+          BatchRequest batch = engine.batch();
+          int end = Math.min(due.size(), start + MAX_BATCH_SIZE);
+          for (Pending<?> asset : due.subList(start, end)) {
+            asset.queue(batch);
+          }
+          batch.execute();
+        }
+      }
+    } catch (HttpResponseException e) {
+      if (due.size() == 1 && isPermanent(e.getStatusCode())) {
+        due.get(0).future.setException(e);
+      } else {
+        LOG.log(Level.FINE, "Failed to check processing status, will retry.", e);
+        for (Pending<?> asset : due) {
+          asset.backOff();
+        }
+      }
+    } catch (IOException e) {
+      // The whole request failed, most likely a network problem. Try these again later.
+      LOG.log(Level.FINE, "Failed to check processing status, will retry.", e);
+      for (Pending<?> asset : due) {
+        asset.backOff();
+      }
+    }
+  }
+
+  /** Returns true if retrying a request that failed with this status will not help. */
+  private static boolean isPermanent(int statusCode) {
+    return statusCode == STATUS_CODE_BAD_REQUEST
+        || statusCode == HttpStatusCodes.STATUS_CODE_NOT_FOUND;
+  }
+
+  /** Returns a random delay between half and all of the given delay. */
+  private long jitter(long delayNanos) {
+    return delayNanos / 2 + (long) (random.nextDouble() * (delayNanos / 2));
+  }
+
+  /** An asset being waited for. */
+  private abstract class Pending<T> {
+    final String id;
+    final ProcessingFuture<T> future = new ProcessingFuture<T>();
+    long deadlineNanos;
+    long delayNanos;
+    long nextPollNanos;
+
+    Pending(String id) {
+      this.id = id;
+    }
+
+    abstract MapsEngineRequest<T> newRequest() throws IOException;
+
+    abstract String processingStatus(T asset);
+
+    void check() throws IOException {
+      onResult(newRequest().execute());
+    }
+
+    void queue(BatchRequest batch) throws IOException {
+      newRequest().queue(batch, new JsonBatchCallback<T>() {
+        @Override
+        public void onSuccess(T asset, HttpHeaders responseHeaders) {
+          onResult(asset);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+          if (isPermanent(error.getCode())) {
+            future.setException(new IOException("Unable to check processing status of " + id
+                + ": " + error.getMessage()));
+          } else {
+            LOG.fine("Failed to check processing status of " + id + ": " + error.getMessage());
+            backOff();
+          }
+        }
+      });
+    }
+
+    void onResult(T asset) {
+      String status = processingStatus(asset);
+      if (STATUS_COMPLETE.equals(status)) {
+        future.set(asset);
+      } else if (STATUS_FAILED.equals(status)) {
+        future.setException(new IOException("Processing failed for asset " + id));
+      } else {
+        backOff();
+      }
+    }
+
+    void backOff() {
+      delayNanos = Math.min(maxDelayNanos, delayNanos * 2);
+      nextPollNanos = System.nanoTime() + jitter(delayNanos);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.google.mapsengine.samples.clients;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches values that are slow to load, such as responses from the API, for a fixed time.
+ *
+ * A value younger than the time to live is served as it is. An older value is still served for a
+ * further stale period, while a fresh one is loaded in the background, so that a value in
+ * regular use never makes a caller wait. Beyond that, the caller loads a new value itself.
+ *
+ * Loads are coalesced: while a key's value is being loaded, other callers wanting it wait for
+ * that load rather than starting their own, so a burst of requests costs one upstream call. A
+ * load that fails is reported to every caller waiting for it, and nothing is cached.
+ *
+ * The cache holds at most a fixed number of keys, dropping the least recently used. Thread-safe.
+ *
+ * @param <K> The key type, matched by equals.
+ * @param <V> The value type.
+ */
+public class RefreshingCache<K, V> {
+
+  /** Loads the current value for a key. */
+  public interface Loader<K, V> {
+    V load(K key) throws IOException;
+  }
+
+  private final Loader<K, V> loader;
+  private final long ttlNanos;
+  private final long staleNanos;
+  private final Executor refresher;
+
+  /** The cached entries, least recently used first. Guarded by itself. */
+  private final LinkedHashMap<K, CachedValue> entries;
+
+  /**
+   * @param loader Loads values that are missing or out of date.
+   * @param timeToLive How long a value is served without being reloaded.
+   * @param stalePeriod How long after that a value is still served while it is reloaded.
+   * @param unit The unit of both periods.
+   * @param maxSize The most keys to keep.
+   * @param refresher Runs the background reloads of stale values.
+   */
+  public RefreshingCache(Loader<K, V> loader, long timeToLive, long stalePeriod, TimeUnit unit,
+      final int maxSize, Executor refresher) {
+    this.loader = loader;
+    this.ttlNanos = unit.toNanos(timeToLive);
+    this.staleNanos = unit.toNanos(stalePeriod);
+    this.refresher = refresher;
+    this.entries = new LinkedHashMap<K, CachedValue>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CachedValue> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /** Returns the key's value, waiting for it to be loaded if there is no usable value. */
+  public V get(K key) throws IOException {
+    FutureTask<V> load;
+    boolean loadHere = false;
+    synchronized (entries) {
+      CachedValue entry = entries.get(key);
+      if (entry == null) {
+        entry = new CachedValue();
+        entries.put(key, entry);
+      }
+      if (isUsable(key, entry)) {
+        return entry.value;
+      }
+
+      if (entry.loading == null) {
+        entry.loading = newLoad(key, entry);
+        loadHere = true;
+      }
+      load = entry.loading;
+    }
+
+    if (loadHere) {
+      load.run();
+    }
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + key, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to load " + key, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the key's value if it can be served without waiting, or null if it would have to be
+   * loaded first. A stale value is returned, and refreshed in the background, as by {@link #get}.
+   */
+  public V getIfPresent(K key) {
+    synchronized (entries) {
+      CachedValue entry = entries.get(key);
+      return entry != null && isUsable(key, entry) ? entry.value : null;
+    }
+  }
+
+  /** Drops the key's value, so that the next request loads it afresh. */
+  public void invalidate(K key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Returns whether the entry's value can be served: it is fresh, or stale, in which case a
+   * background refresh is started if there isn't one already. Must hold the entries lock.
+   */
+  private boolean isUsable(K key, CachedValue entry) {
+    if (!entry.hasValue) {
+      return false;
+    }
+    long age = System.nanoTime() - entry.loadedAt;
+    if (age < ttlNanos) {
+      return true;
+    } else if (age < ttlNanos + staleNanos) {
+      if (entry.loading == null) {
+        entry.loading = newLoad(key, entry);
+        try {
+          refresher.execute(entry.loading);
+        } catch (RejectedExecutionException e) {
+          // Try again on the next request.
+          entry.loading = null;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /** Creates a task that loads the key's value and stores it in the entry. */
+  private FutureTask<V> newLoad(final K key, final CachedValue entry) {
+    return new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call() throws IOException {
+        V value = null;
+        boolean loaded = false;
+        try {
+          value = loader.load(key);
+          loaded = true;
+          return value;
+        } finally {
+          synchronized (entries) {
+            if (loaded) {
+              entry.value = value;
+              entry.loadedAt = System.nanoTime();
+              entry.hasValue = true;
+            }
+            entry.loading = null;
+          }
+        }
+      }
+    });
+  }
+
+  /** A key's value, and the load in progress, if any. Guarded by the entries map. */
+  private class CachedValue {
+    V value;
+    long loadedAt;
+    boolean hasValue;
+    FutureTask<V> loading;
+  }
+}
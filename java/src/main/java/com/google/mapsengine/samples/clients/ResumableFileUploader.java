@@ -0,0 +1,221 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.mapsengine.MapsEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads files to a table using the resumable upload protocol, sending them in chunks.
+ *
+ * The upload session and the number of bytes the server has confirmed are recorded in an
+ * {@link UploadJournal} after every chunk. If the connection drops, the upload continues from
+ * the last confirmed byte, and if the process is restarted the journal lets it resume the same
+ * session rather than starting over.
+ */
+public class ResumableFileUploader {
+
+  private static final Logger LOG = Logger.getLogger(ResumableFileUploader.class.getName());
+
+  /** Chunk sizes must be a multiple of this, except for the final chunk. */
+  public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+  public static final int DEFAULT_CHUNK_SIZE = 32 * CHUNK_GRANULARITY;
+
+  /** The largest chunk size, as each chunk is read into a single array. */
+  public static final int MAX_CHUNK_SIZE = 4096 * CHUNK_GRANULARITY;
+
+  /** Consecutive failures tolerated on a single chunk before giving up. */
+  private static final int MAX_CHUNK_FAILURES = 5;
+
+  private static final int STATUS_CODE_RESUME_INCOMPLETE = 308;
+  private static final int STATUS_CODE_CREATED = 201;
+  private static final int STATUS_CODE_GONE = 410;
+
+  private final MapsEngine engine;
+  private final HttpRequestFactory requestFactory;
+  private final UploadJournal journal;
+  private final int chunkSize;
+
+  /**
+   * @param engine The client whose credentials, initializers and endpoint are used.
+   * @param journal Where upload progress is recorded.
+   * @param chunkSize The number of bytes sent per request, rounded up to a multiple of
+   *     {@link #CHUNK_GRANULARITY}. At most {@link #MAX_CHUNK_SIZE}.
+   */
+  public ResumableFileUploader(MapsEngine engine, UploadJournal journal, int chunkSize) {
+    if (chunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Chunk size " + chunkSize + " is larger than "
+          + MAX_CHUNK_SIZE);
+    }
+    this.engine = engine;
+    this.requestFactory = engine.getRequestFactory();
+    this.journal = journal;
+    int chunks = (Math.max(1, chunkSize) + CHUNK_GRANULARITY - 1) / CHUNK_GRANULARITY;
+    this.chunkSize = chunks * CHUNK_GRANULARITY;
+  }
+
+  /**
+   * Uploads the file to the table, resuming a previous upload of the same file if the journal
+   * has one. Blocks until the upload is complete.
+   */
+  public void upload(String tableId, File file, String contentType) throws IOException {
+    UploadJournal.Entry entry = journal.get(tableId, file);
+    if (entry != null && entry.matches(file)) {
+      if (entry.isComplete()) {
+        LOG.info(file + " has already been uploaded.");
+        return;
+      }
+      // Ask the server how much it received last time.
+      long offset = queryOffset(entry);
+      if (offset >= 0) {
+        LOG.info("Resuming upload of " + file + " from byte " + offset);
+        entry = record(tableId, file, entry, offset);
+      } else {
+        // The session has expired, so start again.
+        entry = null;
+      }
+    } else {
+      entry = null;
+    }
+
+    if (entry == null) {
+      entry = record(tableId, file, new UploadJournal.Entry(
+          startSession(tableId, file, contentType), 0, file.length(), file.lastModified()), 0);
+    }
+
+    if (entry.length == 0) {
+      // There are no chunks to send, so an empty status query completes the upload.
+      record(tableId, file, entry, queryOffset(entry));
+      return;
+    }
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      int failures = 0;
+      while (!entry.isComplete()) {
+        try {
+          long offset = sendChunk(entry, input, contentType);
+          entry = record(tableId, file, entry, offset);
+          failures = 0;
+        } catch (IOException e) {
+          if (++failures >= MAX_CHUNK_FAILURES) {
+            throw e;
+          }
+          LOG.log(Level.WARNING, "Chunk upload failed for " + file + ", resuming.", e);
+          long offset = queryOffset(entry);
+          if (offset < 0) {
+            throw new IOException("Upload session for " + file + " has expired.", e);
+          }
+          entry = record(tableId, file, entry, offset);
+        }
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  /** Starts a new upload session and returns its URI. */
+  private String startSession(String tableId, File file, String contentType) throws IOException {
+    GenericUrl url = new GenericUrl(engine.getRootUrl() + "upload/" + engine.getServicePath()
+        + "tables/" + tableId + "/files");
+    url.set("uploadType", "resumable");
+    // This must match the file name given when the table was created.
+    url.set("filename", file.getPath());
+
+    HttpRequest request = requestFactory.buildPostRequest(url, new EmptyContent());
+    request.getHeaders()
+        .set("X-Upload-Content-Type", contentType)
+        .set("X-Upload-Content-Length", file.length());
+    HttpResponse response = request.execute();
+    try {
+      String location = response.getHeaders().getLocation();
+      if (location == null) {
+        throw new IOException("No upload session was returned for " + file);
+      }
+      return location;
+    } finally {
+      // Read to the end rather than disconnecting, so that the connection can be reused.
+      response.ignore();
+    }
+  }
+
+  /** Sends the next chunk from the entry's offset. Returns the new confirmed offset. */
+  private long sendChunk(UploadJournal.Entry entry, RandomAccessFile input, String contentType)
+      throws IOException {
+    int length = (int) Math.min(chunkSize, entry.length - entry.offset);
+    byte[] chunk = new byte[length];
+    input.seek(entry.offset);
+    input.readFully(chunk);
+
+    HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(entry.sessionUri),
+        new ByteArrayContent(contentType, chunk));
+    request.getHeaders().setContentRange("bytes " + entry.offset + "-"
+        + (entry.offset + length - 1) + "/" + entry.length);
+    long offset = executeForOffset(request);
+    if (offset < 0) {
+      throw new IOException("Upload session has expired.");
+    }
+    return offset;
+  }
+
+  /**
+   * Asks the server how many bytes of the upload it has. Returns -1 if the session no longer
+   * exists.
+   */
+  private long queryOffset(UploadJournal.Entry entry) throws IOException {
+    HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(entry.sessionUri),
+        new EmptyContent());
+    request.getHeaders().setContentRange("bytes */" + entry.length);
+    return executeForOffset(request);
+  }
+
+  /**
+   * Executes an upload request and returns the number of bytes the server has confirmed, or -1
+   * if the session no longer exists.
+   */
+  private long executeForOffset(HttpRequest request) throws IOException {
+    request.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = request.execute();
+    try {
+      int status = response.getStatusCode();
+      if (status == HttpStatusCodes.STATUS_CODE_OK || status == STATUS_CODE_CREATED) {
+        // The last byte has arrived, so the upload is complete.
+        return parseTotal(request.getHeaders().getContentRange());
+      } else if (status == STATUS_CODE_RESUME_INCOMPLETE) {
+        // A missing Range header means that nothing has been received yet.
+        String range = response.getHeaders().getRange();
+        return range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+      } else if (status == HttpStatusCodes.STATUS_CODE_NOT_FOUND || status == STATUS_CODE_GONE) {
+        return -1;
+      }
+      throw new HttpResponseException(response);
+    } finally {
+      response.ignore();
+    }
+  }
+
+  /** Returns the total length from a content range, such as "bytes 0-99/100". */
+  private static long parseTotal(String contentRange) {
+    return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+  }
+
+  private UploadJournal.Entry record(String tableId, File file, UploadJournal.Entry entry,
+      long offset) throws IOException {
+    UploadJournal.Entry updated =
+        new UploadJournal.Entry(entry.sessionUri, offset, entry.length, entry.lastModified);
+    journal.put(tableId, file, updated);
+    return updated;
+  }
+}
@@ -0,0 +1,132 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.StreamingContent;
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * The JSON body of a batchInsert, batchPatch or batchDelete request, written straight to the
+ * request's output stream as it is sent.
+ *
+ * The generated request classes need the whole request model in memory, and then serialize it
+ * once to measure it and again to send it. This content writes features from a
+ * {@link FeatureSource} through a {@link JsonGenerator} instead, with no request model at all,
+ * and leaves the length unknown so that the body is sent in chunks as it is written. The memory
+ * used by a request in flight is then little more than the output buffers. The body can be gzipped
+ * as it is written, which {@link JsonCompressionInitializer} arranges.
+ */
+public class StreamingBatchContent extends AbstractHttpContent {
+
+  /** Writes the features of one batch, for example from a columnar buffer. */
+  public interface FeatureSource {
+    /**
+     * Writes each feature as a GeoJSON object. The generator is already inside the features
+     * array. May be called again if the request is retried, and must then write the same features.
+     */
+    void writeFeatures(JsonGenerator generator) throws IOException;
+  }
+
+  private static final BufferedGZipEncoding GZIP = new BufferedGZipEncoding();
+
+  private final JsonFactory jsonFactory;
+  private final String fieldName;
+  private final FeatureSource source;
+  private final boolean retrySupported;
+  private volatile boolean gzip;
+
+  private StreamingBatchContent(JsonFactory jsonFactory, String fieldName, FeatureSource source,
+      boolean retrySupported) {
+    super(Json.MEDIA_TYPE);
+    this.jsonFactory = jsonFactory;
+    this.fieldName = fieldName;
+    this.source = source;
+    this.retrySupported = retrySupported;
+  }
+
+  /** Creates the body of a batchInsert or batchPatch request. */
+  public static StreamingBatchContent features(JsonFactory jsonFactory, FeatureSource source) {
+    return new StreamingBatchContent(jsonFactory, "features", source, true);
+  }
+
+  /**
+   * Creates the body of a batchInsert or batchPatch request from features that are produced as
+   * they are written. The iterator can only be written once, so the request can't be retried.
+   */
+  public static StreamingBatchContent features(JsonFactory jsonFactory,
+      final Iterator<Feature> features) {
+    return new StreamingBatchContent(jsonFactory, "features", new FeatureSource() {
+      @Override
+      public void writeFeatures(JsonGenerator generator) throws IOException {
+        while (features.hasNext()) {
+          generator.serialize(features.next());
+        }
+      }
+    }, false);
+  }
+
+  /** Creates the body of a batchDelete request for the features with the given primary keys. */
+  public static StreamingBatchContent primaryKeys(JsonFactory jsonFactory,
+      final Iterable<String> primaryKeys) {
+    return new StreamingBatchContent(jsonFactory, "primaryKeys", new FeatureSource() {
+      @Override
+      public void writeFeatures(JsonGenerator generator) throws IOException {
+        for (String primaryKey : primaryKeys) {
+          generator.writeString(primaryKey);
+        }
+      }
+    }, true);
+  }
+
+  /**
+   * Sets whether the body is gzipped as it is written. The request must then have a gzip
+   * Content-Encoding header, and no encoding of its own.
+   */
+  void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    if (gzip) {
+      GZIP.encode(new StreamingContent() {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+          writeJson(out);
+        }
+      }, out);
+    } else {
+      writeJson(out);
+    }
+  }
+
+  private void writeJson(OutputStream out) throws IOException {
+    JsonGenerator generator = jsonFactory.createJsonGenerator(out, Charsets.UTF_8);
+    generator.writeStartObject();
+    generator.writeFieldName(fieldName);
+    generator.writeStartArray();
+    source.writeFeatures(generator);
+    generator.writeEndArray();
+    generator.writeEndObject();
+    // The stream belongs to the transport, so it is flushed but not closed.
+    generator.flush();
+  }
+
+  /** The length is never computed up front, as that would mean writing the whole body twice. */
+  @Override
+  protected long computeLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return retrySupported;
+  }
+}
@@ -0,0 +1,56 @@
+package com.google.mapsengine.samples.clients;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.mapsengine.MapsEngine;
+
+import java.io.IOException;
+
+/**
+ * Sends batchInsert, batchPatch and batchDelete requests with a {@link StreamingBatchContent}
+ * body, in place of the generated request classes.
+ *
+ * Requests go through the client's request factory, so they are authorized, backed off and rate
+ * limited by the same initializers as every other request made with it.
+ */
+public class StreamingFeatureClient {
+
+  private final MapsEngine engine;
+  private final JsonFactory jsonFactory;
+
+  public StreamingFeatureClient(MapsEngine engine) {
+    this.engine = engine;
+    this.jsonFactory = engine.getJsonFactory();
+  }
+
+  /** Inserts the features into the table. */
+  public void batchInsert(String tableId, StreamingBatchContent.FeatureSource features)
+      throws IOException {
+    execute(tableId, "batchInsert", StreamingBatchContent.features(jsonFactory, features));
+  }
+
+  /** Updates the table's features that have the same primary keys as the given features. */
+  public void batchPatch(String tableId, StreamingBatchContent.FeatureSource features)
+      throws IOException {
+    execute(tableId, "batchPatch", StreamingBatchContent.features(jsonFactory, features));
+  }
+
+  /** Deletes the table's features with the given primary keys. */
+  public void batchDelete(String tableId, Iterable<String> primaryKeys) throws IOException {
+    execute(tableId, "batchDelete", StreamingBatchContent.primaryKeys(jsonFactory, primaryKeys));
+  }
+
+  /** Posts the content to one of the table's feature methods, failing on an error response. */
+  public void execute(String tableId, String method, StreamingBatchContent content)
+      throws IOException {
+    GenericUrl url = new GenericUrl(engine.getBaseUrl() + "tables/" + tableId + "/features/"
+        + method);
+    HttpRequest request = engine.getRequestFactory().buildPostRequest(url, content);
+    if (engine.getApplicationName() != null) {
+      request.getHeaders().setUserAgent(engine.getApplicationName());
+    }
+    // The batch methods have no response body, so just release the connection.
+    request.execute().ignore();
+  }
+}
@@ -0,0 +1,127 @@
+package com.google.mapsengine.samples.clients;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records the progress of resumable uploads in a local properties file, so that a restarted run
+ * can pick up where the previous one stopped.
+ *
+ * The file is rewritten after every change, via a temporary file and an atomic rename, so it is
+ * never left half written.
+ */
+public class UploadJournal {
+
+  private static final String TABLE_PREFIX = "table.";
+  private static final String UPLOAD_PREFIX = "upload.";
+  private static final String SEPARATOR = " ";
+
+  /** The state of a single file upload. */
+  public static class Entry {
+    public final String sessionUri;
+    public final long offset;
+    public final long length;
+    public final long lastModified;
+
+    public Entry(String sessionUri, long offset, long length, long lastModified) {
+      this.sessionUri = sessionUri;
+      this.offset = offset;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    /** Returns true if this entry describes the current contents of the given file. */
+    public boolean matches(File file) {
+      return length == file.length() && lastModified == file.lastModified();
+    }
+
+    public boolean isComplete() {
+      return offset == length;
+    }
+  }
+
+  private final File journalFile;
+  private final Properties properties = new Properties();
+
+  /** Opens the journal, loading any existing entries. */
+  public UploadJournal(File journalFile) throws IOException {
+    this.journalFile = journalFile;
+    if (journalFile.exists()) {
+      InputStream in = new FileInputStream(journalFile);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /** Returns the ID of the table created for the given job, or null if there isn't one yet. */
+  public synchronized String getTableId(String jobKey) {
+    return properties.getProperty(TABLE_PREFIX + jobKey);
+  }
+
+  public synchronized void putTableId(String jobKey, String tableId) throws IOException {
+    properties.setProperty(TABLE_PREFIX + jobKey, tableId);
+    save();
+  }
+
+  /** Returns the recorded state of a file upload to a table, or null if there is none. */
+  public synchronized Entry get(String tableId, File file) {
+    String value = properties.getProperty(uploadKey(tableId, file));
+    if (value == null) {
+      return null;
+    }
+    String[] fields = value.split(SEPARATOR);
+    return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+        Long.parseLong(fields[3]));
+  }
+
+  public synchronized void put(String tableId, File file, Entry entry) throws IOException {
+    properties.setProperty(uploadKey(tableId, file), entry.sessionUri + SEPARATOR + entry.offset
+        + SEPARATOR + entry.length + SEPARATOR + entry.lastModified);
+    save();
+  }
+
+  /** Forgets everything recorded for a job once it has finished. */
+  public synchronized void clear(String jobKey) throws IOException {
+    String tableId = getTableId(jobKey);
+    properties.remove(TABLE_PREFIX + jobKey);
+    if (tableId != null) {
+      String prefix = UPLOAD_PREFIX + tableId + ".";
+      for (String key : properties.stringPropertyNames()) {
+        if (key.startsWith(prefix)) {
+          properties.remove(key);
+        }
+      }
+    }
+    save();
+  }
+
+  private static String uploadKey(String tableId, File file) {
+    return UPLOAD_PREFIX + tableId + "." + file.getAbsolutePath();
+  }
+
+  private void save() throws IOException {
+    File dir = journalFile.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    File temp = new File(dir, journalFile.getName() + ".tmp");
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      properties.store(out, "Maps Engine resumable uploads");
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,253 @@
+package com.google.mapsengine.samples.csv;
+
+/**
+ * The types a CSV column can be inferred to have, in order of preference, and how to read a
+ * typed value for each from a {@link MappedCsvReader}.
+ *
+ * Values are classified by looking at their bytes in place, so no Strings or boxed numbers are
+ * created to work out what a value is.
+ */
+public enum ColumnType {
+
+  INTEGER("integer") {
+    @Override
+    Object readValue(MappedCsvReader reader, int field) {
+      return reader.getLong(field);
+    }
+  },
+
+  DOUBLE("double") {
+    @Override
+    Object readValue(MappedCsvReader reader, int field) {
+      return reader.getDouble(field);
+    }
+  },
+
+  /** Maps Engine has no boolean type, so booleans are stored as strings. */
+  BOOLEAN("string"),
+
+  /** ISO 8601 dates and date-times, which are sent as they appear in the file. */
+  DATETIME("datetime"),
+
+  STRING("string");
+
+  /** The largest number of digits that always fits in a long. */
+  private static final int MAX_SAFE_LONG_DIGITS = 18;
+
+  private final String tableColumnType;
+
+  private ColumnType(String tableColumnType) {
+    this.tableColumnType = tableColumnType;
+  }
+
+  /** Returns the Maps Engine table column type used to store values of this type. */
+  public String getTableColumnType() {
+    return tableColumnType;
+  }
+
+  /** Returns the bit used for this type in the masks returned by {@link #classify}. */
+  int mask() {
+    return 1 << ordinal();
+  }
+
+  /**
+   * Reads a field as a value of this type, for use as a feature property. Empty values of typed
+   * columns are returned as null, and values that don't match the type are left as Strings for
+   * the API to accept or reject.
+   */
+  public Object read(MappedCsvReader reader, int field) {
+    if (this != STRING && reader.getLength(field) == 0) {
+      return null;
+    }
+    try {
+      return readValue(reader, field);
+    } catch (NumberFormatException e) {
+      return reader.getString(field);
+    }
+  }
+
+  Object readValue(MappedCsvReader reader, int field) {
+    return reader.getString(field);
+  }
+
+  /**
+   * Returns a mask of the types a field's value is compatible with, or 0 if it is empty. Every
+   * non-empty value is compatible with {@link #STRING}.
+   */
+  static int classify(MappedCsvReader reader, int field) {
+    int length = reader.getLength(field);
+    if (length == 0) {
+      return 0;
+    }
+    int mask = STRING.mask();
+    int digits = isNumber(reader, field, length);
+    if (digits > 0) {
+      mask |= DOUBLE.mask();
+    } else if (digits < 0) {
+      mask |= DOUBLE.mask();
+      if (-digits <= MAX_SAFE_LONG_DIGITS || fitsInLong(reader, field)) {
+        mask |= INTEGER.mask();
+      }
+    } else if (isBoolean(reader, field, length)) {
+      mask |= BOOLEAN.mask();
+    } else if (isDateTime(reader, field, length)) {
+      mask |= DATETIME.mask();
+    }
+    return mask;
+  }
+
+  /**
+   * Checks for a decimal number. Returns 0 if the value isn't one, the negated number of digits
+   * if it is an integer, or a positive number if it has a fraction or exponent.
+   */
+  private static int isNumber(MappedCsvReader reader, int field, int length) {
+    int i = 0;
+    byte b = reader.getByte(field, 0);
+    if (b == '-' || b == '+') {
+      i++;
+    }
+    int digits = 0;
+    while (i < length && isDigit(reader.getByte(field, i))) {
+      digits++;
+      i++;
+    }
+    if (i == length) {
+      return digits == 0 ? 0 : -digits;
+    }
+
+    int fractionDigits = 0;
+    if (reader.getByte(field, i) == '.') {
+      i++;
+      while (i < length && isDigit(reader.getByte(field, i))) {
+        fractionDigits++;
+        i++;
+      }
+    }
+    if (digits + fractionDigits == 0) {
+      return 0;
+    }
+    if (i < length && (reader.getByte(field, i) | 0x20) == 'e') {
+      i++;
+      if (i < length && (reader.getByte(field, i) == '-' || reader.getByte(field, i) == '+')) {
+        i++;
+      }
+      int exponentDigits = 0;
+      while (i < length && isDigit(reader.getByte(field, i))) {
+        exponentDigits++;
+        i++;
+      }
+      if (exponentDigits == 0) {
+        return 0;
+      }
+    }
+    return i == length ? digits + fractionDigits : 0;
+  }
+
+  private static boolean fitsInLong(MappedCsvReader reader, int field) {
+    try {
+      reader.getLong(field);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static boolean isBoolean(MappedCsvReader reader, int field, int length) {
+    return matchesIgnoreCase(reader, field, length, "true")
+        || matchesIgnoreCase(reader, field, length, "false");
+  }
+
+  private static boolean matchesIgnoreCase(MappedCsvReader reader, int field, int length,
+      String ascii) {
+    if (length != ascii.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if ((reader.getByte(field, i) | 0x20) != ascii.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks for an ISO 8601 date (2014-06-30) or date-time (2014-06-30T12:34, with optional
+   * seconds, fraction and time zone). A space may separate the date and time.
+   */
+  private static boolean isDateTime(MappedCsvReader reader, int field, int length) {
+    if (length < 10 || reader.getByte(field, 4) != '-' || reader.getByte(field, 7) != '-'
+        || number(reader, field, 0, 4) < 0 || !inRange(number(reader, field, 5, 2), 1, 12)
+        || !inRange(number(reader, field, 8, 2), 1, 31)) {
+      return false;
+    }
+    if (length == 10) {
+      return true;
+    }
+
+    byte separator = reader.getByte(field, 10);
+    if ((separator != 'T' && separator != ' ') || length < 16
+        || !inRange(number(reader, field, 11, 2), 0, 23) || reader.getByte(field, 13) != ':'
+        || !inRange(number(reader, field, 14, 2), 0, 59)) {
+      return false;
+    }
+    int i = 16;
+    if (i < length && reader.getByte(field, i) == ':') {
+      if (i + 3 > length || !inRange(number(reader, field, i + 1, 2), 0, 60)) {
+        return false;
+      }
+      i += 3;
+      if (i < length && reader.getByte(field, i) == '.') {
+        int start = ++i;
+        while (i < length && isDigit(reader.getByte(field, i))) {
+          i++;
+        }
+        if (i == start) {
+          return false;
+        }
+      }
+    }
+
+    // The time zone, if any.
+    if (i == length) {
+      return true;
+    }
+    byte zone = reader.getByte(field, i);
+    if (zone == 'Z') {
+      return i + 1 == length;
+    } else if (zone != '+' && zone != '-') {
+      return false;
+    }
+    int remaining = length - i - 1;
+    if (remaining == 2) {
+      return inRange(number(reader, field, i + 1, 2), 0, 23);
+    } else if (remaining == 4) {
+      return inRange(number(reader, field, i + 1, 2), 0, 23)
+          && inRange(number(reader, field, i + 3, 2), 0, 59);
+    } else if (remaining == 5) {
+      return inRange(number(reader, field, i + 1, 2), 0, 23) && reader.getByte(field, i + 3) == ':'
+          && inRange(number(reader, field, i + 4, 2), 0, 59);
+    }
+    return false;
+  }
+
+  /** Parses a fixed number of digits, returning -1 if any of them isn't a digit. */
+  private static int number(MappedCsvReader reader, int field, int start, int digits) {
+    int value = 0;
+    for (int i = start; i < start + digits; i++) {
+      byte b = reader.getByte(field, i);
+      if (!isDigit(b)) {
+        return -1;
+      }
+      value = value * 10 + (b - '0');
+    }
+    return value;
+  }
+
+  private static boolean inRange(int value, int min, int max) {
+    return value >= min && value <= max;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+}
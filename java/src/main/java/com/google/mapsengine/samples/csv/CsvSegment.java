@@ -0,0 +1,223 @@
+package com.google.mapsengine.samples.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A range of a CSV file that starts and ends on record boundaries, so it can be parsed
+ * independently of the rest of the file by a {@link MappedCsvReader}.
+ *
+ * Whether a line break ends a record depends on the quoting of everything before it, so the file
+ * can't simply be cut at the nearest line break. Instead, {@link #split} cuts the file into
+ * chunks at line breaks and scans each chunk in parallel, from every state the parser could be in
+ * at the chunk's start. Chaining the chunks together then tells us the actual state at each
+ * chunk, and so where its first record begins.
+ */
+public final class CsvSegment {
+
+  private static final byte SEPARATOR = ',';
+  private static final byte QUOTE = '"';
+  private static final byte ESCAPE = '\\';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  /** Parser states are numbered by these bits. */
+  private static final int IN_QUOTES = 1;
+  private static final int IN_FIELD = 2;
+  private static final int STATES = 4;
+
+  private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+  /** The file offset of the first byte of the segment. */
+  public final long start;
+
+  /** The file offset just past the last byte of the segment. */
+  public final long end;
+
+  /** The opencsv parser state carried over from the previous record. */
+  final boolean inField;
+
+  CsvSegment(long start, long end, boolean inField) {
+    this.start = start;
+    this.end = end;
+    this.inField = inField;
+  }
+
+  @Override
+  public String toString() {
+    return "CsvSegment[" + start + ", " + end + ")";
+  }
+
+  /**
+   * Splits a file into segments of roughly the given size, scanning it on the given executor.
+   * Segments are returned in file order. A record longer than the target size simply makes its
+   * segment longer.
+   */
+  public static List<CsvSegment> split(final File file, long targetSize, ExecutorService executor)
+      throws IOException {
+    long length = file.length();
+    List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+    for (long offset = 0; offset < length; offset += targetSize) {
+      final long nominalStart = offset;
+      final long nominalEnd = Math.min(length, offset + targetSize);
+      futures.add(executor.submit(new Callable<Chunk>() {
+        @Override
+        public Chunk call() throws IOException {
+          return scan(file, nominalStart, nominalEnd);
+        }
+      }));
+    }
+
+    // Follow the parser state from the start of the file through each chunk, starting a new
+    // segment at the first record boundary in each.
+    List<CsvSegment> segments = new ArrayList<CsvSegment>();
+    int state = 0;
+    long segmentStart = 0;
+    boolean segmentInField = false;
+    for (Future<Chunk> future : futures) {
+      Chunk chunk = get(future);
+      long boundary = chunk.firstBoundary[state];
+      if (boundary > segmentStart) {
+        segments.add(new CsvSegment(segmentStart, boundary, segmentInField));
+        segmentStart = boundary;
+        segmentInField = chunk.boundaryInField[state];
+      }
+      state = chunk.endState[state];
+    }
+    if (segmentStart < length) {
+      segments.add(new CsvSegment(segmentStart, length, segmentInField));
+    }
+    return segments;
+  }
+
+  private static Chunk get(Future<Chunk> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while splitting CSV file.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** How the parser state changes across a chunk, for each state it could start in. */
+  private static class Chunk {
+    final int[] endState = new int[STATES];
+    /** The offset of the first record boundary, or -1 if a record spans the whole chunk. */
+    final long[] firstBoundary = new long[STATES];
+    final boolean[] boundaryInField = new boolean[STATES];
+  }
+
+  /**
+   * Scans the chunk that runs from the first line start at or after nominalStart to the first
+   * line start at or after nominalEnd.
+   */
+  private static Chunk scan(File file, long nominalStart, long nominalEnd) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = input.getChannel();
+      long start = nominalStart == 0 ? 0 : nextLineStart(channel, nominalStart);
+      long end = nextLineStart(channel, nominalEnd);
+      Chunk chunk = new Chunk();
+      for (int state = 0; state < STATES; state++) {
+        chunk.endState[state] = state;
+        chunk.firstBoundary[state] = (state & IN_QUOTES) == 0 ? start : -1;
+        chunk.boundaryInField[state] = (state & IN_FIELD) != 0;
+      }
+      if (start >= end) {
+        // A single line covers the whole chunk.
+        return chunk;
+      }
+      if (end - start > Integer.MAX_VALUE) {
+        throw new IOException("CSV line at offset " + start + " is too long to scan.");
+      }
+      MappedByteBuffer bytes =
+          channel.map(FileChannel.MapMode.READ_ONLY, start, (int) (end - start));
+      for (int state = 0; state < STATES; state++) {
+        follow(bytes, start, state, chunk);
+      }
+      return chunk;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Runs the opencsv state machine over a chunk from the given starting state. Only the quote and
+   * field flags are tracked; the field contents are of no interest here. Since the chunk ends
+   * just after a line feed, an escape sequence can never cross its end.
+   */
+  private static void follow(MappedByteBuffer bytes, long offset, int startState, Chunk chunk) {
+    boolean inQuotes = (startState & IN_QUOTES) != 0;
+    boolean inField = (startState & IN_FIELD) != 0;
+    int limit = bytes.limit();
+    for (int i = 0; i < limit; i++) {
+      byte c = bytes.get(i);
+      boolean hasNext = i + 1 < limit;
+      byte next = hasNext ? bytes.get(i + 1) : 0;
+      if (c == LF || c == CR) {
+        if (c == CR && hasNext && next == LF) {
+          // The line feed ends the line.
+          continue;
+        }
+        if (!inQuotes && chunk.firstBoundary[startState] < 0) {
+          chunk.firstBoundary[startState] = offset + i + 1;
+          chunk.boundaryInField[startState] = inField;
+        }
+        continue;
+      }
+
+      boolean nextInLine = hasNext && next != LF && next != CR;
+      if (c == ESCAPE) {
+        if ((inQuotes || inField) && nextInLine && (next == QUOTE || next == ESCAPE)) {
+          i++;
+        }
+      } else if (c == QUOTE) {
+        if ((inQuotes || inField) && nextInLine && next == QUOTE) {
+          i++;
+        } else {
+          inQuotes = !inQuotes;
+        }
+        inField = !inField;
+      } else if (c == SEPARATOR && !inQuotes) {
+        inField = false;
+      } else {
+        inField = true;
+      }
+    }
+    chunk.endState[startState] = (inQuotes ? IN_QUOTES : 0) | (inField ? IN_FIELD : 0);
+  }
+
+  /** Returns the offset just after the first line feed at or after the given offset. */
+  private static long nextLineStart(FileChannel channel, long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    long position = offset;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        return channel.size();
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == LF) {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+  }
+}
@@ -0,0 +1,330 @@
+package com.google.mapsengine.samples.csv;
+
+import com.google.api.client.json.JsonGenerator;
+import com.google.mapsengine.samples.clients.StreamingBatchContent;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds point features parsed from a CSV file column by column, in primitive arrays, and divides
+ * them into batches that fit the API request limits.
+ *
+ * Coordinates are stored in double arrays, integer and double properties in long and double
+ * arrays, and every other property as an int code into a {@link StringDictionary}. A row costs a
+ * few bytes per column rather than a Feature, a Point, a Map and a boxed object per value, so
+ * large numbers of rows can be held ready to send, or to send again. A {@link Batch} is written
+ * as JSON straight from the columns when it is sent.
+ *
+ * Not thread-safe while rows are being added. Once filled, batches can be read from any thread.
+ */
+public class FeatureColumns {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** Rough upper bound on the JSON produced for a number. */
+  private static final int NUMBER_BYTES = 24;
+
+  /** The JSON for a null. */
+  private static final int NULL_BYTES = 4;
+
+  /** JSON overhead of a point feature: type, geometry, coordinates and properties wrappers. */
+  private static final int FEATURE_OVERHEAD_BYTES = 96 + 2 * NUMBER_BYTES;
+
+  /**
+   * The byte estimate is not exact, so batches are cut when they reach this fraction of the
+   * maximum request size.
+   */
+  private static final double BYTES_HEADROOM = 0.9;
+
+  private static final int NO_VALUE = -1;
+
+  private final String[] names;
+  private final int[] sourceColumns;
+  private final ColumnType[] types;
+  private final int latColumn;
+  private final int lngColumn;
+  private final int maxFeatures;
+  private final int maxBytes;
+
+  /** Whether missing values are written as nulls, as a patch needs to remove them. */
+  private final boolean writeNulls;
+
+  /** The JSON length of each property name, with its quotes, colon and comma. */
+  private final int[] nameBytes;
+
+  private int size;
+  private double[] lats = new double[INITIAL_CAPACITY];
+  private double[] lngs = new double[INITIAL_CAPACITY];
+
+  // For each property, exactly one of these holds its values, according to its type. Missing
+  // numbers are marked in the property's bitmap, missing strings are NO_VALUE.
+  private final long[][] longs;
+  private final double[][] doubles;
+  private final long[][] present;
+  private final int[][] codes;
+  private final StringDictionary dictionary = new StringDictionary();
+
+  /** Values of numeric properties that turned out not to be numbers, by property and row. */
+  private final List<Map<Integer, String>> mismatches;
+
+  /** The end row of each completed batch. */
+  private int[] batchEnds = new int[16];
+  private int batchCount;
+  private int pendingBytes;
+
+  FeatureColumns(String[] names, int[] sourceColumns, ColumnType[] types, int latColumn,
+      int lngColumn, int maxFeatures, int maxBytes, boolean writeNulls) {
+    this.names = names;
+    this.sourceColumns = sourceColumns;
+    this.types = types;
+    this.latColumn = latColumn;
+    this.lngColumn = lngColumn;
+    this.maxFeatures = maxFeatures;
+    this.maxBytes = (int) (maxBytes * BYTES_HEADROOM);
+    this.writeNulls = writeNulls;
+
+    int properties = names.length;
+    nameBytes = new int[properties];
+    longs = new long[properties][];
+    doubles = new double[properties][];
+    present = new long[properties][];
+    codes = new int[properties][];
+    mismatches = new ArrayList<Map<Integer, String>>(properties);
+    for (int i = 0; i < properties; i++) {
+      // Property names are short, and rarely need escaping, so the UTF-8 length is a fair guess.
+      nameBytes[i] = names[i].length() * 3 + 4;
+      if (types[i] == ColumnType.INTEGER) {
+        longs[i] = new long[INITIAL_CAPACITY];
+        present[i] = new long[bitmapLength(INITIAL_CAPACITY)];
+      } else if (types[i] == ColumnType.DOUBLE) {
+        doubles[i] = new double[INITIAL_CAPACITY];
+        present[i] = new long[bitmapLength(INITIAL_CAPACITY)];
+      } else {
+        codes[i] = new int[INITIAL_CAPACITY];
+      }
+      mismatches.add(null);
+    }
+  }
+
+  /**
+   * Adds the reader's current record as a feature, completing the current batch first if the
+   * feature would take it over the limits.
+   *
+   * @throws NumberFormatException if the record's coordinates are not numbers.
+   */
+  public void add(MappedCsvReader reader) {
+    double lat = reader.getDouble(latColumn);
+    double lng = reader.getDouble(lngColumn);
+    if (size == lats.length) {
+      grow();
+    }
+    int row = size;
+    lats[row] = lat;
+    lngs[row] = lng;
+
+    int bytes = FEATURE_OVERHEAD_BYTES;
+    int fieldCount = reader.getFieldCount();
+    for (int i = 0; i < names.length; i++) {
+      int field = sourceColumns[i];
+      boolean empty = field >= fieldCount || reader.getLength(field) == 0;
+      if (codes[i] != null) {
+        codes[i][row] = field >= fieldCount || (empty && types[i] != ColumnType.STRING)
+            ? NO_VALUE : dictionary.intern(reader, field);
+        if (codes[i][row] != NO_VALUE) {
+          bytes += nameBytes[i] + dictionary.getJsonLength(codes[i][row]);
+        } else if (writeNulls) {
+          bytes += nameBytes[i] + NULL_BYTES;
+        }
+        continue;
+      }
+
+      if (empty) {
+        present[i][row >>> 6] &= ~(1L << row);
+        if (writeNulls) {
+          bytes += nameBytes[i] + NULL_BYTES;
+        }
+        continue;
+      }
+      present[i][row >>> 6] |= 1L << row;
+      try {
+        if (longs[i] != null) {
+          longs[i][row] = reader.getLong(field);
+        } else {
+          doubles[i][row] = reader.getDouble(field);
+        }
+        bytes += nameBytes[i] + NUMBER_BYTES;
+      } catch (NumberFormatException e) {
+        // Leave it to the API to accept or reject, as ColumnType.read does.
+        String value = reader.getString(field);
+        addMismatch(i, row, value);
+        bytes += nameBytes[i] + value.length() * 6 + 2;
+      }
+    }
+
+    int pending = size - batchStart(batchCount);
+    if (pending > 0 && (pending + 1 > maxFeatures || pendingBytes + bytes > maxBytes)) {
+      endBatch();
+    }
+    pendingBytes += bytes;
+    size++;
+  }
+
+  /** Completes the current batch, if it has any features. */
+  public void flush() {
+    if (size > batchStart(batchCount)) {
+      endBatch();
+    }
+  }
+
+  /** Returns the number of features added. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the completed batches. */
+  public List<Batch> getBatches() {
+    return new AbstractList<Batch>() {
+      @Override
+      public Batch get(int index) {
+        if (index < 0 || index >= batchCount) {
+          throw new IndexOutOfBoundsException("Batch " + index + " of " + batchCount);
+        }
+        return new Batch(batchStart(index), batchEnds[index]);
+      }
+
+      @Override
+      public int size() {
+        return batchCount;
+      }
+    };
+  }
+
+  private int batchStart(int batch) {
+    return batch == 0 ? 0 : batchEnds[batch - 1];
+  }
+
+  private void endBatch() {
+    if (batchCount == batchEnds.length) {
+      batchEnds = Arrays.copyOf(batchEnds, batchCount * 2);
+    }
+    batchEnds[batchCount++] = size;
+    pendingBytes = 0;
+  }
+
+  private void addMismatch(int property, int row, String value) {
+    Map<Integer, String> values = mismatches.get(property);
+    if (values == null) {
+      values = new HashMap<Integer, String>();
+      mismatches.set(property, values);
+    }
+    values.put(row, value);
+  }
+
+  private void grow() {
+    int capacity = lats.length * 2;
+    lats = Arrays.copyOf(lats, capacity);
+    lngs = Arrays.copyOf(lngs, capacity);
+    for (int i = 0; i < names.length; i++) {
+      if (longs[i] != null) {
+        longs[i] = Arrays.copyOf(longs[i], capacity);
+      }
+      if (doubles[i] != null) {
+        doubles[i] = Arrays.copyOf(doubles[i], capacity);
+      }
+      if (present[i] != null) {
+        present[i] = Arrays.copyOf(present[i], bitmapLength(capacity));
+      }
+      if (codes[i] != null) {
+        codes[i] = Arrays.copyOf(codes[i], capacity);
+      }
+    }
+  }
+
+  private static int bitmapLength(int capacity) {
+    return (capacity + 63) >>> 6;
+  }
+
+  /** Writes a row's value of a property as JSON, if it has one, or else a null if required. */
+  private void writeValue(JsonGenerator generator, int property, int row) throws IOException {
+    if (codes[property] != null) {
+      int code = codes[property][row];
+      if (code != NO_VALUE) {
+        generator.writeFieldName(names[property]);
+        generator.writeString(dictionary.get(code));
+      } else {
+        writeNull(generator, property);
+      }
+      return;
+    }
+    if ((present[property][row >>> 6] & (1L << row)) == 0) {
+      writeNull(generator, property);
+      return;
+    }
+    generator.writeFieldName(names[property]);
+    Map<Integer, String> values = mismatches.get(property);
+    if (values != null && values.containsKey(row)) {
+      generator.writeString(values.get(row));
+    } else if (longs[property] != null) {
+      generator.writeNumber(longs[property][row]);
+    } else {
+      generator.writeNumber(doubles[property][row]);
+    }
+  }
+
+  private void writeNull(JsonGenerator generator, int property) throws IOException {
+    if (writeNulls) {
+      generator.writeFieldName(names[property]);
+      generator.writeNull();
+    }
+  }
+
+  /** A range of rows that fits in a single batch request. */
+  public final class Batch implements StreamingBatchContent.FeatureSource {
+    private final int start;
+    private final int end;
+
+    private Batch(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    /** Returns the number of features in the batch. */
+    public int size() {
+      return end - start;
+    }
+
+    /** Writes the batch's rows as GeoJSON point features, without creating any features. */
+    @Override
+    public void writeFeatures(JsonGenerator generator) throws IOException {
+      for (int row = start; row < end; row++) {
+        generator.writeStartObject();
+        generator.writeFieldName("type");
+        generator.writeString("Feature");
+        generator.writeFieldName("geometry");
+        generator.writeStartObject();
+        generator.writeFieldName("type");
+        generator.writeString("Point");
+        // GeoJSON puts the longitude first.
+        generator.writeFieldName("coordinates");
+        generator.writeStartArray();
+        generator.writeNumber(lngs[row]);
+        generator.writeNumber(lats[row]);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeFieldName("properties");
+        generator.writeStartObject();
+        for (int i = 0; i < names.length; i++) {
+          writeValue(generator, i, row);
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+      }
+    }
+  }
+}
@@ -0,0 +1,525 @@
+package com.google.mapsengine.samples.csv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads CSV records straight out of a memory-mapped file.
+ *
+ * Rather than allocating a {@code String[]} per row, the reader records where each field starts
+ * and ends within the mapped bytes. Numbers can then be parsed in place with {@link #getDouble}
+ * and {@link #getLong}, and Strings are only created for the fields that ask for one with
+ * {@link #getString}. Fields that contain escapes or quoted line breaks are unescaped into a
+ * scratch buffer that is reused from row to row.
+ *
+ * Records are split exactly as opencsv's {@code CSVReader} splits them with its default
+ * settings: comma separated, double quote as the quote character, backslash as the escape
+ * character, no strict quotes and leading white space ignored. That includes its quirks, such
+ * as dropping a backslash that does not escape anything, and turning every line break inside a
+ * quoted field into a single {@code \n}. The file is assumed to be UTF-8 encoded.
+ *
+ * Instances are not thread-safe, but a file can be read in parallel by giving each thread its
+ * own reader over a different {@link CsvSegment}.
+ */
+public class MappedCsvReader implements Closeable {
+
+  private static final byte SEPARATOR = ',';
+  private static final byte QUOTE = '"';
+  private static final byte ESCAPE = '\\';
+  private static final byte CR = '\r';
+  private static final byte LF = '\n';
+
+  private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE - 8;
+
+  /** Powers of ten that can be represented exactly as a double. */
+  private static final double[] EXACT_POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+      1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  /** Up to this many digits are guaranteed to fit in the 53 bits of a double's mantissa. */
+  private static final int MAX_EXACT_DIGITS = 15;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  /** The file offset at which reading stops, either the end of the file or of a segment. */
+  private final long endOffset;
+  private int windowSize;
+
+  /** The mapped region of the file, and the file offset at which it starts. */
+  private MappedByteBuffer window;
+  private long windowStart;
+  private int windowLimit;
+
+  /** The window offset of the next unread byte. */
+  private int position;
+
+  /**
+   * Mirrors the parser state in opencsv that, unlike the quote state, is not reset at the start
+   * of each record.
+   */
+  private boolean inField;
+
+  // Fields of the current record. Each field's bytes are either in the window or the scratch
+  // buffer, between fieldStart (inclusive) and fieldEnd (exclusive).
+  private int fieldCount;
+  private int[] fieldStart = new int[16];
+  private int[] fieldEnd = new int[16];
+  private boolean[] fieldInScratch = new boolean[16];
+  private byte[] scratch = new byte[256];
+  private int scratchLength;
+
+  // The field currently being parsed.
+  private int currentStart;
+  private int currentEnd;
+  private boolean currentInScratch;
+
+  /** Reused when decoding a field from the window into a String. */
+  private byte[] stringBytes = new byte[256];
+
+  public MappedCsvReader(File csvFile) throws IOException {
+    this(csvFile, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param csvFile The file to read.
+   * @param windowSize The number of bytes to map at a time. Records must fit in a window, so it
+   *     is enlarged automatically if a longer record is found.
+   */
+  public MappedCsvReader(File csvFile, int windowSize) throws IOException {
+    this(csvFile, 0, -1, false, windowSize);
+  }
+
+  /** Reads just the records in a segment of the file. */
+  public MappedCsvReader(File csvFile, CsvSegment segment) throws IOException {
+    this(csvFile, segment.start, segment.end, segment.inField,
+        (int) Math.min(DEFAULT_WINDOW_SIZE, Math.max(1, segment.end - segment.start)));
+  }
+
+  private MappedCsvReader(File csvFile, long startOffset, long endOffset, boolean inField,
+      int windowSize) throws IOException {
+    this.file = new RandomAccessFile(csvFile, "r");
+    this.channel = file.getChannel();
+    this.endOffset = endOffset < 0 ? channel.size() : endOffset;
+    this.inField = inField;
+    this.windowSize = windowSize;
+    map(startOffset);
+  }
+
+  /**
+   * Advances to the next record, returning false when there are no more. This is equivalent to
+   * {@code CSVReader.readNext()} returning null.
+   */
+  public boolean next() throws IOException {
+    boolean inFieldAtStart = inField;
+    while (true) {
+      int recordStart = position;
+      int result = parseRecord();
+      if (result != NEEDS_MORE_INPUT) {
+        return result == RECORD;
+      }
+
+      // The record runs past the end of the window. Move the window to start at the record,
+      // enlarging it if the record is already at the start, and try again.
+      if (recordStart == 0) {
+        if (windowSize >= MAX_WINDOW_SIZE) {
+          throw new IOException("CSV record at offset " + windowStart + " is too long.");
+        }
+        windowSize = (int) Math.min(MAX_WINDOW_SIZE, windowSize * 2L);
+      }
+      map(windowStart + recordStart);
+      inField = inFieldAtStart;
+    }
+  }
+
+  /** Returns the number of fields in the current record. */
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  /** Returns the length of a field, in bytes. */
+  public int getLength(int field) {
+    checkField(field);
+    return fieldEnd[field] - fieldStart[field];
+  }
+
+  /** Returns the byte at the given index within a field. */
+  public byte getByte(int field, int index) {
+    int start = fieldStart[field];
+    return fieldInScratch[field] ? scratch[start + index] : window.get(start + index);
+  }
+
+  /** Decodes a field into a String. */
+  public String getString(int field) {
+    checkField(field);
+    int start = fieldStart[field];
+    int length = fieldEnd[field] - start;
+    if (length == 0) {
+      return "";
+    }
+    if (fieldInScratch[field]) {
+      return new String(scratch, start, length, StandardCharsets.UTF_8);
+    }
+    if (stringBytes.length < length) {
+      stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      stringBytes[i] = window.get(start + i);
+    }
+    return new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /** Returns every field of the current record as Strings, as opencsv would. */
+  public String[] getStrings() {
+    String[] strings = new String[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      strings[i] = getString(i);
+    }
+    return strings;
+  }
+
+  /**
+   * Parses a field as a long, without creating a String.
+   *
+   * @throws NumberFormatException under the same conditions as {@link Long#parseLong}.
+   */
+  public long getLong(int field) {
+    int length = getLength(field);
+    if (length == 0) {
+      throw new NumberFormatException("For input string: \"\"");
+    }
+    int i = 0;
+    boolean negative = false;
+    byte first = getByte(field, 0);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      i++;
+      if (length == 1) {
+        throw numberFormatException(field);
+      }
+    }
+    // Accumulate negatively, as Long.parseLong does, so that Long.MIN_VALUE can be parsed.
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+    for (; i < length; i++) {
+      int digit = getByte(field, i) - '0';
+      if (digit < 0 || digit > 9 || result < multiplyLimit) {
+        throw numberFormatException(field);
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        throw numberFormatException(field);
+      }
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  /**
+   * Parses a field as an int, without creating a String.
+   *
+   * @throws NumberFormatException under the same conditions as {@link Integer#parseInt}.
+   */
+  public int getInt(int field) {
+    long value = getLong(field);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw numberFormatException(field);
+    }
+    return (int) value;
+  }
+
+  /**
+   * Parses a field as a double. Plain decimal numbers of up to 15 significant digits are parsed
+   * in place, anything else falls back to {@link Double#parseDouble}, so the result is always
+   * the same as that method's.
+   *
+   * @throws NumberFormatException under the same conditions as {@link Double#parseDouble}.
+   */
+  public double getDouble(int field) {
+    int length = getLength(field);
+    int i = 0;
+    boolean negative = false;
+    if (length > 0) {
+      byte first = getByte(field, 0);
+      if (first == '-' || first == '+') {
+        negative = first == '-';
+        i++;
+      }
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    boolean seenDigit = false;
+    boolean seenPoint = false;
+    for (; i < length; i++) {
+      byte b = getByte(field, i);
+      if (b >= '0' && b <= '9') {
+        seenDigit = true;
+        if (mantissa == 0 && b == '0') {
+          // Leading zeros are not significant.
+          if (seenPoint) {
+            scale--;
+          }
+          continue;
+        }
+        if (++digits > MAX_EXACT_DIGITS) {
+          return Double.parseDouble(getString(field));
+        }
+        mantissa = mantissa * 10 + (b - '0');
+        if (seenPoint) {
+          scale--;
+        }
+      } else if (b == '.' && !seenPoint) {
+        seenPoint = true;
+      } else {
+        // Exponents, white space, NaN, hex and so on.
+        return Double.parseDouble(getString(field));
+      }
+    }
+
+    if (!seenDigit || -scale >= EXACT_POWERS_OF_TEN.length) {
+      return Double.parseDouble(getString(field));
+    }
+    // Both operands are exact, so a single division is correctly rounded.
+    double value = scale == 0 ? mantissa : mantissa / EXACT_POWERS_OF_TEN[-scale];
+    return negative ? -value : value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    file.close();
+  }
+
+  private NumberFormatException numberFormatException(int field) {
+    return new NumberFormatException("For input string: \"" + getString(field) + "\"");
+  }
+
+  private void checkField(int field) {
+    if (field < 0 || field >= fieldCount) {
+      throw new IndexOutOfBoundsException("Field " + field + " of " + fieldCount);
+    }
+  }
+
+  private void map(long start) throws IOException {
+    windowStart = start;
+    windowLimit = (int) Math.min(windowSize, endOffset - start);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowLimit);
+    position = 0;
+  }
+
+  private boolean windowReachesEnd() {
+    return windowStart + windowLimit == endOffset;
+  }
+
+  private static final int RECORD = 0;
+  private static final int END_OF_INPUT = 1;
+  private static final int NEEDS_MORE_INPUT = 2;
+
+  /**
+   * Parses the record starting at the current position, following opencsv's
+   * {@code CSVParser.parseLineMulti}, which works a physical line at a time.
+   */
+  private int parseRecord() {
+    if (position == windowLimit && windowReachesEnd()) {
+      return END_OF_INPUT;
+    }
+
+    fieldCount = 0;
+    scratchLength = 0;
+    resetField();
+    boolean inQuotes = false;
+    int lineStart = position;
+
+    while (true) {
+      // Find the end of the line, as BufferedReader.readLine() would.
+      int lineEnd = lineStart;
+      while (lineEnd < windowLimit && window.get(lineEnd) != LF && window.get(lineEnd) != CR) {
+        lineEnd++;
+      }
+      int terminatorLength;
+      if (lineEnd == windowLimit) {
+        if (!windowReachesEnd()) {
+          return NEEDS_MORE_INPUT;
+        }
+        terminatorLength = 0;
+      } else if (window.get(lineEnd) == CR) {
+        if (lineEnd + 1 == windowLimit && !windowReachesEnd()) {
+          // Can't tell whether this is a CRLF yet.
+          return NEEDS_MORE_INPUT;
+        }
+        terminatorLength = lineEnd + 1 < windowLimit && window.get(lineEnd + 1) == LF ? 2 : 1;
+      } else {
+        terminatorLength = 1;
+      }
+
+      inQuotes = parseLine(lineStart, lineEnd, inQuotes);
+      position = lineEnd + terminatorLength;
+
+      if (!inQuotes) {
+        endField();
+        return RECORD;
+      }
+
+      if (position == windowLimit && windowReachesEnd()) {
+        // Like CSVReader, return whatever complete fields we have and drop the unterminated one.
+        return fieldCount > 0 ? RECORD : END_OF_INPUT;
+      }
+      // The quoted field continues on the next line, with the line break replaced by '\n'.
+      append(LF, lineEnd);
+      lineStart = position;
+    }
+  }
+
+  /**
+   * Splits a single line into fields, returning true if the line ends inside a quoted field.
+   * This is a byte-for-byte port of the opencsv logic. Its look-ahead and look-behind checks
+   * never cross the line's boundaries.
+   */
+  private boolean parseLine(int lineStart, int lineEnd, boolean inQuotes) {
+    // The index of the current character within the line, as opposed to the current byte.
+    int charIndex = -1;
+    for (int i = lineStart; i < lineEnd; i++) {
+      byte c = window.get(i);
+      if ((c & 0xC0) != 0x80) {
+        charIndex++;
+      }
+
+      if (c == ESCAPE) {
+        if ((inQuotes || inField) && i + 1 < lineEnd
+            && (window.get(i + 1) == QUOTE || window.get(i + 1) == ESCAPE)) {
+          append(window.get(i + 1), i + 1);
+          i++;
+          charIndex++;
+        }
+      } else if (c == QUOTE) {
+        if ((inQuotes || inField) && i + 1 < lineEnd && window.get(i + 1) == QUOTE) {
+          append(QUOTE, i + 1);
+          i++;
+          charIndex++;
+        } else {
+          // The tricky case of an embedded quote in the middle: a,bc"d"ef,g
+          if (charIndex > 2 && window.get(i - 1) != SEPARATOR
+              && i + 1 < lineEnd && window.get(i + 1) != SEPARATOR) {
+            if (currentEnd > currentStart && isCurrentFieldWhiteSpace()) {
+              // Discard white space leading up to the quote.
+              resetField();
+            } else {
+              append(c, i);
+            }
+          }
+          inQuotes = !inQuotes;
+        }
+        inField = !inField;
+      } else if (c == SEPARATOR && !inQuotes) {
+        endField();
+        inField = false;
+      } else {
+        append(c, i);
+        inField = true;
+      }
+    }
+    return inQuotes;
+  }
+
+  /**
+   * Appends a byte to the current field. While the field's bytes are contiguous in the window it
+   * is left there; otherwise it is copied to the scratch buffer.
+   */
+  private void append(byte b, int windowOffset) {
+    if (!currentInScratch) {
+      if (window.get(windowOffset) == b) {
+        if (currentStart == currentEnd) {
+          currentStart = windowOffset;
+          currentEnd = windowOffset + 1;
+          return;
+        } else if (currentEnd == windowOffset) {
+          currentEnd++;
+          return;
+        }
+      }
+      // Move the field so far into the scratch buffer.
+      int length = currentEnd - currentStart;
+      ensureScratch(length + 1);
+      for (int i = 0; i < length; i++) {
+        scratch[scratchLength + i] = window.get(currentStart + i);
+      }
+      currentStart = scratchLength;
+      currentEnd = scratchLength + length;
+      currentInScratch = true;
+    }
+    ensureScratch(1);
+    scratch[currentEnd++] = b;
+    scratchLength = currentEnd;
+  }
+
+  private void ensureScratch(int extra) {
+    if (scratchLength + extra > scratch.length) {
+      scratch = Arrays.copyOf(scratch, Math.max(scratchLength + extra, scratch.length * 2));
+    }
+  }
+
+  private boolean isCurrentFieldWhiteSpace() {
+    for (int i = currentStart; i < currentEnd; i++) {
+      byte b = currentInScratch ? scratch[i] : window.get(i);
+      if (b < 0) {
+        // Non-ASCII, so decode the field to apply the full Unicode definition.
+        String field = currentInScratch
+            ? new String(scratch, currentStart, currentEnd - currentStart, StandardCharsets.UTF_8)
+            : decodeWindow(currentStart, currentEnd);
+        for (int j = 0; j < field.length(); j++) {
+          if (!Character.isWhitespace(field.charAt(j))) {
+            return false;
+          }
+        }
+        return true;
+      }
+      if (!Character.isWhitespace((char) b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String decodeWindow(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = window.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void endField() {
+    if (fieldCount == fieldStart.length) {
+      int capacity = fieldCount * 2;
+      fieldStart = Arrays.copyOf(fieldStart, capacity);
+      fieldEnd = Arrays.copyOf(fieldEnd, capacity);
+      fieldInScratch = Arrays.copyOf(fieldInScratch, capacity);
+    }
+    fieldStart[fieldCount] = currentStart;
+    fieldEnd[fieldCount] = currentEnd;
+    fieldInScratch[fieldCount] = currentInScratch;
+    fieldCount++;
+    // The field's bytes now belong to it, so must not be released from the scratch buffer.
+    currentInScratch = false;
+    resetField();
+  }
+
+  /** Empties the current field, releasing any scratch space it used. */
+  private void resetField() {
+    if (currentInScratch) {
+      scratchLength = currentStart;
+    }
+    currentStart = 0;
+    currentEnd = 0;
+    currentInScratch = false;
+  }
+}
@@ -0,0 +1,132 @@
+package com.google.mapsengine.samples.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a CSV file on a fork-join pool, one {@link CsvSegment} per task, and hands the results
+ * back to the calling thread.
+ *
+ * Only a few segments per thread are parsed ahead of the caller, so memory use is bounded by the
+ * segment size rather than the file size. Results are delivered either in file order, so that
+ * the output is deterministic, or as soon as each segment is ready.
+ */
+public class ParallelCsvReader {
+
+  public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  /** The number of segments, per thread, that may be parsed ahead of the caller. */
+  private static final int SEGMENTS_AHEAD_PER_THREAD = 2;
+
+  /** Parses the records of one segment into a result. Called concurrently. */
+  public interface SegmentParser<T> {
+    T parse(CsvSegment segment, MappedCsvReader reader) throws IOException;
+  }
+
+  /** Receives each segment's result, always on the thread that called {@link #read}. */
+  public interface ResultHandler<T> {
+    void handle(T result) throws IOException;
+  }
+
+  private final File file;
+  private final ForkJoinPool pool;
+  private final long segmentSize;
+
+  public ParallelCsvReader(File file, ForkJoinPool pool) {
+    this(file, pool, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public ParallelCsvReader(File file, ForkJoinPool pool, long segmentSize) {
+    this.file = file;
+    this.pool = pool;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Parses every segment of the file, blocking until all the results have been handled.
+   *
+   * @param ordered If true, results are handled in file order. Otherwise they are handled as
+   *     they become available, which keeps every thread busy even when segments vary in cost.
+   */
+  public <T> void read(SegmentParser<T> parser, ResultHandler<T> handler, boolean ordered)
+      throws IOException {
+    List<CsvSegment> segments = CsvSegment.split(file, segmentSize, pool);
+    int maxAhead = pool.getParallelism() * SEGMENTS_AHEAD_PER_THREAD;
+    Iterator<CsvSegment> remaining = segments.iterator();
+    Queue<Future<T>> inFlight = new ArrayDeque<Future<T>>();
+    CompletionService<T> completed = new ExecutorCompletionService<T>(pool);
+    try {
+      while (remaining.hasNext() || !inFlight.isEmpty()) {
+        while (remaining.hasNext() && inFlight.size() < maxAhead) {
+          Callable<T> task = newTask(remaining.next(), parser);
+          inFlight.add(ordered ? pool.submit(task) : completed.submit(task));
+        }
+        Future<T> next;
+        if (ordered) {
+          next = inFlight.remove();
+        } else {
+          next = take(completed);
+          inFlight.remove(next);
+        }
+        handler.handle(get(next));
+      }
+    } finally {
+      // Only non-empty if we're bailing out early.
+      for (Future<T> future : inFlight) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private <T> Callable<T> newTask(final CsvSegment segment, final SegmentParser<T> parser) {
+    return new Callable<T>() {
+      @Override
+      public T call() throws IOException {
+        MappedCsvReader reader = new MappedCsvReader(file, segment);
+        try {
+          return parser.parse(segment, reader);
+        } finally {
+          reader.close();
+        }
+      }
+    };
+  }
+
+  private static <T> Future<T> take(CompletionService<T> completed) throws IOException {
+    try {
+      return completed.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing CSV file.", e);
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while parsing CSV file.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
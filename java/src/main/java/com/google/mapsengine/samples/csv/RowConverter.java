@@ -0,0 +1,75 @@
+package com.google.mapsengine.samples.csv;
+
+import java.util.List;
+
+/**
+ * Turns CSV records into typed feature properties, using converters worked out once from the
+ * table schema rather than looked up for every value.
+ *
+ * Each property has a slot, and the converter array holds, for each slot, the CSV column it is
+ * read from and the type it is read as. Converting a row is then a single pass over plain arrays.
+ * Converters are immutable, so one can be shared by every parsing thread.
+ */
+public class RowConverter {
+
+  private final String[] names;
+  private final int[] columns;
+  private final ColumnType[] converters;
+
+  /**
+   * @param names The name of each property.
+   * @param columns The CSV column each property is read from.
+   * @param types The type each property is read as.
+   */
+  public RowConverter(List<String> names, List<Integer> columns, List<ColumnType> types) {
+    if (names.size() != columns.size() || names.size() != types.size()) {
+      throw new IllegalArgumentException("Every property needs a name, column and type.");
+    }
+    this.names = names.toArray(new String[names.size()]);
+    this.columns = new int[columns.size()];
+    for (int i = 0; i < this.columns.length; i++) {
+      this.columns[i] = columns.get(i);
+    }
+    this.converters = types.toArray(new ColumnType[types.size()]);
+  }
+
+  /**
+   * Converts the reader's current record into an array of values, one per property in order. A
+   * property whose column is missing from the record, or empty in a typed column, is null.
+   */
+  public Object[] convertValues(MappedCsvReader reader) {
+    int fieldCount = reader.getFieldCount();
+    Object[] values = new Object[names.length];
+    for (int i = 0; i < values.length; i++) {
+      int column = columns[i];
+      if (column < fieldCount) {
+        values[i] = converters[i].read(reader, column);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Creates a columnar buffer that converts records with this converter's columns and types.
+   *
+   * @param latColumn The CSV column holding each point's latitude.
+   * @param lngColumn The CSV column holding each point's longitude.
+   * @param maxFeatures The most features allowed in one batch.
+   * @param maxBytes The largest payload allowed for one batch.
+   */
+  public FeatureColumns newColumns(int latColumn, int lngColumn, int maxFeatures, int maxBytes) {
+    return new FeatureColumns(names, columns, converters, latColumn, lngColumn, maxFeatures,
+        maxBytes, false);
+  }
+
+  /**
+   * Creates a columnar buffer for batchPatch requests. Its features name every property, with null
+   * for those the record has no value for, so that values removed from the file are removed from
+   * the table too.
+   */
+  public FeatureColumns newPatchColumns(int latColumn, int lngColumn, int maxFeatures,
+      int maxBytes) {
+    return new FeatureColumns(names, columns, converters, latColumn, lngColumn, maxFeatures,
+        maxBytes, true);
+  }
+}
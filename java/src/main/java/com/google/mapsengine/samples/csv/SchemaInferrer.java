@@ -0,0 +1,201 @@
+package com.google.mapsengine.samples.csv;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Infers the type of each CSV column from the rows fed to it, in a single pass.
+ *
+ * A column gets the first {@link ColumnType} that every one of its non-empty values is compatible
+ * with. Each value is reduced to a bit mask of compatible types, and the masks are tallied in
+ * plain counters, so the inferrer's memory use doesn't grow with the number of rows.
+ *
+ * By default every row is classified. Alternatively, a fixed-size reservoir sample of the rows
+ * can be classified instead, in which case the reservoir holds just one mask byte per column per
+ * sampled row.
+ *
+ * Inferrers are not thread-safe, but several can be fed different parts of the same file and then
+ * combined with {@link #merge}.
+ */
+public class SchemaInferrer {
+
+  private static final int TYPES = ColumnType.values().length;
+
+  private final int columns;
+
+  /** Maximum number of rows in the reservoir, or 0 to classify every row. */
+  private final int sampleSize;
+
+  /** The number of rows seen, whether or not they were classified. */
+  private long rows;
+
+  /** When classifying every row, the number of values compatible with each column and type. */
+  private final long[] compatible;
+  private final long[] nonEmpty;
+
+  /** When sampling, the type masks of each sampled row's values, one row after another. */
+  private byte[] reservoir;
+  private final Random random;
+
+  /** Creates an inferrer that classifies every row. */
+  public SchemaInferrer(int columns) {
+    this(columns, 0, null);
+  }
+
+  /**
+   * Creates an inferrer that classifies a uniform random sample of the rows.
+   *
+   * @param sampleSize The number of rows to sample, or 0 to classify every row.
+   */
+  public SchemaInferrer(int columns, int sampleSize, Random random) {
+    this.columns = columns;
+    this.sampleSize = sampleSize;
+    this.random = random == null ? new Random() : random;
+    this.compatible = new long[columns * TYPES];
+    this.nonEmpty = new long[columns];
+    if (sampleSize > 0) {
+      reservoir = new byte[sampleSize * columns];
+    }
+  }
+
+  /** Returns a new, empty inferrer with the same settings as this one. */
+  public SchemaInferrer newPartial() {
+    return new SchemaInferrer(columns, sampleSize, null);
+  }
+
+  /** Feeds the reader's current record to the inferrer. */
+  public void observe(MappedCsvReader reader) {
+    long row = rows++;
+    if (sampleSize == 0) {
+      int fields = Math.min(columns, reader.getFieldCount());
+      for (int i = 0; i < fields; i++) {
+        tally(i, ColumnType.classify(reader, i));
+      }
+      return;
+    }
+
+    // Reservoir sampling: the first sampleSize rows are kept, then each later row replaces a
+    // random one with a probability that keeps the sample uniform.
+    long slot = row < sampleSize ? row : (long) (random.nextDouble() * (row + 1));
+    if (slot < sampleSize) {
+      int offset = (int) slot * columns;
+      int fields = Math.min(columns, reader.getFieldCount());
+      for (int i = 0; i < columns; i++) {
+        reservoir[offset + i] = i < fields ? (byte) ColumnType.classify(reader, i) : 0;
+      }
+    }
+  }
+
+  /**
+   * Adds the rows seen by another inferrer to this one. When sampling, the merged reservoir is a
+   * uniform sample of the rows seen by both.
+   */
+  public void merge(SchemaInferrer other) {
+    if (other.columns != columns || other.sampleSize != sampleSize) {
+      throw new IllegalArgumentException("Only inferrers with the same settings can be merged.");
+    }
+    if (sampleSize == 0) {
+      for (int i = 0; i < compatible.length; i++) {
+        compatible[i] += other.compatible[i];
+      }
+      for (int i = 0; i < nonEmpty.length; i++) {
+        nonEmpty[i] += other.nonEmpty[i];
+      }
+      rows += other.rows;
+      return;
+    }
+
+    // Draw sampleSize rows, without replacement, from the combined rows. Each draw comes from
+    // one side or the other in proportion to the rows that side has left, and then from a random
+    // row of that side's reservoir, which is itself a uniform sample of that side.
+    byte[] mineSample = reservoir.clone();
+    byte[] theirsSample = other.reservoir.clone();
+    byte[] merged = new byte[reservoir.length];
+    long mine = rows;
+    long theirs = other.rows;
+    int mineLeft = sampled();
+    int theirsLeft = other.sampled();
+    int count = (int) Math.min(sampleSize, mine + theirs);
+    for (int i = 0; i < count; i++) {
+      if (random.nextDouble() * (mine + theirs) < mine) {
+        mine--;
+        take(mineSample, mineLeft--, merged, i);
+      } else {
+        theirs--;
+        take(theirsSample, theirsLeft--, merged, i);
+      }
+    }
+    reservoir = merged;
+    rows += other.rows;
+  }
+
+  /** Returns the number of rows seen. */
+  public long getRowCount() {
+    return rows;
+  }
+
+  /** Returns the inferred type of each column. Columns with no values are strings. */
+  public ColumnType[] getTypes() {
+    long[] counts = compatible;
+    long[] present = nonEmpty;
+    if (sampleSize > 0) {
+      counts = new long[compatible.length];
+      present = new long[columns];
+      int sampled = sampled();
+      for (int row = 0; row < sampled; row++) {
+        for (int i = 0; i < columns; i++) {
+          int mask = reservoir[row * columns + i];
+          if (mask != 0) {
+            present[i]++;
+            for (int type = 0; type < TYPES; type++) {
+              if ((mask & (1 << type)) != 0) {
+                counts[i * TYPES + type]++;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    ColumnType[] types = new ColumnType[columns];
+    Arrays.fill(types, ColumnType.STRING);
+    for (int i = 0; i < columns; i++) {
+      if (present[i] == 0) {
+        continue;
+      }
+      for (ColumnType type : ColumnType.values()) {
+        if (counts[i * TYPES + type.ordinal()] == present[i]) {
+          types[i] = type;
+          break;
+        }
+      }
+    }
+    return types;
+  }
+
+  /**
+   * Moves a random one of the first {@code left} rows of a sample to the given row of another,
+   * replacing it with the last of those rows so that it isn't taken twice.
+   */
+  private void take(byte[] sample, int left, byte[] target, int targetRow) {
+    int row = random.nextInt(left);
+    System.arraycopy(sample, row * columns, target, targetRow * columns, columns);
+    System.arraycopy(sample, (left - 1) * columns, sample, row * columns, columns);
+  }
+
+  private int sampled() {
+    return (int) Math.min(rows, sampleSize);
+  }
+
+  private void tally(int column, int mask) {
+    if (mask == 0) {
+      return;
+    }
+    nonEmpty[column]++;
+    for (int type = 0; type < TYPES; type++) {
+      if ((mask & (1 << type)) != 0) {
+        compatible[column * TYPES + type]++;
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.google.mapsengine.samples.csv;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores distinct strings once, as UTF-8 bytes in a single array, and gives each one an int code.
+ *
+ * Strings are interned straight from the bytes of a {@link MappedCsvReader} field, so no String is
+ * created until one is asked for with {@link #get}. Lookups use an open-addressing hash table of
+ * codes, so the dictionary holds no objects per entry at all.
+ *
+ * Not thread-safe.
+ */
+final class StringDictionary {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** The UTF-8 bytes of every string, one after another. */
+  private byte[] bytes = new byte[INITIAL_CAPACITY * 16];
+  private int bytesLength;
+
+  /** Where each code's bytes start in {@code bytes}; the next code's start is its end. */
+  private int[] offsets = new int[INITIAL_CAPACITY + 1];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int[] jsonLengths = new int[INITIAL_CAPACITY];
+  private int count;
+
+  /** Hash table of code + 1, with 0 marking an empty slot. The length is a power of two. */
+  private int[] table = new int[INITIAL_CAPACITY * 2];
+
+  /** Returns the code for the string in a reader's field, adding it if it is new. */
+  int intern(MappedCsvReader reader, int field) {
+    int length = reader.getLength(field);
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < length; i++) {
+      hash = (hash ^ reader.getByte(field, i)) * 0x01000193;
+    }
+    // Mix the high bits into the low ones used to pick a slot.
+    hash ^= hash >>> 16;
+
+    int mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int entry = table[slot];
+      if (entry == 0) {
+        break;
+      }
+      int code = entry - 1;
+      if (hashes[code] == hash && equals(code, reader, field, length)) {
+        return code;
+      }
+    }
+
+    // A new string.
+    if (count == hashes.length) {
+      hashes = Arrays.copyOf(hashes, count * 2);
+      jsonLengths = Arrays.copyOf(jsonLengths, count * 2);
+      offsets = Arrays.copyOf(offsets, count * 2 + 1);
+    }
+    if (bytesLength + length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytesLength + length, bytes.length * 2));
+    }
+    int jsonLength = 2;
+    for (int i = 0; i < length; i++) {
+      byte b = reader.getByte(field, i);
+      bytes[bytesLength + i] = b;
+      jsonLength += b == '"' || b == '\\' ? 2 : (b >= 0 && b < 0x20 ? 6 : 1);
+    }
+    bytesLength += length;
+    int code = count++;
+    hashes[code] = hash;
+    jsonLengths[code] = jsonLength;
+    offsets[code + 1] = bytesLength;
+    if (count * 2 > table.length) {
+      rehash();
+    } else {
+      insert(code);
+    }
+    return code;
+  }
+
+  /** Decodes the string with the given code. */
+  String get(int code) {
+    return new String(bytes, offsets[code], getByteLength(code), StandardCharsets.UTF_8);
+  }
+
+  /** Returns the number of UTF-8 bytes in the string with the given code. */
+  int getByteLength(int code) {
+    return offsets[code + 1] - offsets[code];
+  }
+
+  /** Returns the length of the string with the given code once quoted and escaped as JSON. */
+  int getJsonLength(int code) {
+    return jsonLengths[code];
+  }
+
+  /** Returns a byte of the string with the given code. */
+  byte getByte(int code, int index) {
+    return bytes[offsets[code] + index];
+  }
+
+  private boolean equals(int code, MappedCsvReader reader, int field, int length) {
+    int start = offsets[code];
+    if (offsets[code + 1] - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[start + i] != reader.getByte(field, i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    for (int code = 0; code < count; code++) {
+      insert(code);
+    }
+  }
+
+  private void insert(int code) {
+    int mask = table.length - 1;
+    int slot = hashes[code] & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = code + 1;
+  }
+}
@@ -0,0 +1,136 @@
+package com.google.mapsengine.samples.deletion;
+
+import com.google.mapsengine.samples.deletion.DeletionPlan.AssetType;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Records the assets deleted so far in a local file, so that a restarted run skips them instead of
+ * looking them up again.
+ *
+ * The file holds one line per deleted asset, its type and its ID, and each line is appended and
+ * flushed as soon as the asset is deleted. Appending keeps the cost of a record constant however
+ * long the run, where rewriting the file, as {@code UploadJournal} does, would cost more with
+ * every asset. A line left incomplete by a crash is ignored. Asset IDs are never reused, so the
+ * records stay true across runs, whatever tables those runs delete. Thread-safe.
+ */
+public class DeletionJournal implements Closeable {
+
+  private static final String SEPARATOR = " ";
+
+  private final File journalFile;
+  private final Set<String> deleted = new HashSet<String>();
+  private boolean endsWithNewline = true;
+  /** Opened when the first asset is recorded, so that a run that deletes nothing leaves no file. */
+  private Writer writer;
+
+  /** Opens the journal, loading any existing records. */
+  public DeletionJournal(File journalFile) throws IOException {
+    this.journalFile = journalFile;
+    if (journalFile.exists()) {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8));
+      try {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          String[] fields = line.split(SEPARATOR);
+          if (fields.length == 2 && isAssetType(fields[0]) && !fields[1].isEmpty()) {
+            deleted.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      endsWithNewline = journalFile.length() == 0 || endsWithNewline(journalFile);
+    }
+  }
+
+  /** Returns whether the asset is recorded as deleted. */
+  public synchronized boolean isDeleted(AssetType type, String id) {
+    return deleted.contains(key(type, id));
+  }
+
+  /** Returns the number of assets recorded as deleted. */
+  public synchronized int size() {
+    return deleted.size();
+  }
+
+  /** Records that the asset has been deleted. */
+  public synchronized void recordDeleted(AssetType type, String id) throws IOException {
+    String key = key(type, id);
+    if (deleted.add(key)) {
+      if (writer == null) {
+        open();
+      }
+      writer.write(key);
+      writer.write('\n');
+      writer.flush();
+    }
+  }
+
+  /** Closes and removes the journal, once everything it was kept for has been deleted. */
+  public synchronized void clear() throws IOException {
+    close();
+    deleted.clear();
+    if (journalFile.exists() && !journalFile.delete()) {
+      throw new IOException("Unable to delete " + journalFile);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  private void open() throws IOException {
+    File dir = journalFile.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+    if (!endsWithNewline) {
+      // Finish off the incomplete line, so that it doesn't run into the next record.
+      writer.write('\n');
+      endsWithNewline = true;
+    }
+  }
+
+  private static String key(AssetType type, String id) {
+    return type.name().toLowerCase(Locale.ENGLISH) + SEPARATOR + id;
+  }
+
+  private static boolean isAssetType(String name) {
+    for (AssetType type : AssetType.values()) {
+      if (type.name().toLowerCase(Locale.ENGLISH).equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean endsWithNewline(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(file.length() - 1);
+      return in.read() == '\n';
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.google.mapsengine.samples.deletion;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.services.mapsengine.MapsEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * The assets to delete along with a set of tables, and the order they have to be deleted in: a
+ * map before the layers it holds, and a layer before the table it displays.
+ *
+ * Each asset is deleted as soon as everything that depends on it has gone, with every deletion
+ * that is ready in flight at once, so a plan takes about as long as its longest chain of
+ * dependencies rather than one request per asset. Created by {@link DeletionPlanner}.
+ */
+public class DeletionPlan {
+
+  private static final Logger LOG = Logger.getLogger(DeletionPlan.class.getName());
+
+  /** The kinds of asset in a plan, in the order they are deleted. */
+  public enum AssetType {
+    MAP, LAYER, TABLE
+  }
+
+  private final List<Step> steps;
+
+  private DeletionPlan(List<Step> steps) {
+    this.steps = steps;
+  }
+
+  /** Returns the number of assets of the given type that the plan deletes. */
+  public int count(AssetType type) {
+    int count = 0;
+    for (Step step : steps) {
+      if (step.type == type) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the IDs of the assets of the given type that the plan deletes. */
+  public List<String> getIds(AssetType type) {
+    List<String> ids = new ArrayList<String>();
+    for (Step step : steps) {
+      if (step.type == type) {
+        ids.add(step.id);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Deletes the assets. Deletion stops at the first failure, once the deletions already in flight
+   * have finished, and that failure is thrown. The assets deleted by then stay deleted.
+   *
+   * @param engine The client used to delete the assets.
+   * @param executor Runs the deletions, as many at once as it has threads.
+   * @param journal Records each asset as it is deleted, or null.
+   */
+  public void execute(MapsEngine engine, Executor executor, DeletionJournal journal)
+      throws IOException {
+    new Execution(engine, executor, journal).run();
+  }
+
+  /**
+   * Sends the request that deletes one asset. An asset that has already gone, for example because
+   * a previous run deleted it but stopped before recording it, counts as deleted.
+   */
+  private static void delete(MapsEngine engine, Step step) throws IOException {
+    try {
+      sendDelete(engine, step);
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+        throw e;
+      }
+      LOG.info("The " + step + " has already been deleted.");
+    }
+  }
+
+  private static void sendDelete(MapsEngine engine, Step step) throws IOException {
+    switch (step.type) {
+      case MAP:
+        engine.maps().delete(step.id).execute();
+        break;
+      case LAYER:
+        engine.layers().delete(step.id).execute();
+        break;
+      case TABLE:
+        engine.tables().delete(step.id).execute();
+        break;
+      default:
+        throw new AssertionError("Unknown asset type " + step.type);
+    }
+  }
+
+  /** One asset to delete, and the deletions that wait for it. */
+  private static class Step {
+    final AssetType type;
+    final String id;
+    final int index;
+    /** The number of assets that have to be deleted before this one. */
+    int prerequisites;
+    final List<Step> dependents = new ArrayList<Step>();
+
+    Step(AssetType type, String id, int index) {
+      this.type = type;
+      this.id = id;
+      this.index = index;
+    }
+
+    @Override
+    public String toString() {
+      return type.name().toLowerCase(Locale.ENGLISH) + " " + id;
+    }
+  }
+
+  /** A single run of the plan. Guarded by itself. */
+  private class Execution {
+    private final MapsEngine engine;
+    private final Executor executor;
+    private final DeletionJournal journal;
+    /** The number of prerequisites of each step that haven't been deleted yet. */
+    private final int[] waitingFor = new int[steps.size()];
+    private int running;
+    private Exception failure;
+
+    Execution(MapsEngine engine, Executor executor, DeletionJournal journal) {
+      this.engine = engine;
+      this.executor = executor;
+      this.journal = journal;
+    }
+
+    synchronized void run() throws IOException {
+      for (Step step : steps) {
+        waitingFor[step.index] = step.prerequisites;
+      }
+      for (Step step : steps) {
+        if (step.prerequisites == 0) {
+          start(step);
+        }
+      }
+      try {
+        while (running > 0) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = new IOException("Interrupted while deleting assets.", e);
+      }
+
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+
+    /** Hands the step to the executor. Must hold the lock. */
+    private void start(final Step step) {
+      running++;
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            Exception error = null;
+            try {
+              delete(engine, step);
+              if (journal != null) {
+                journal.recordDeleted(step.type, step.id);
+              }
+            } catch (IOException e) {
+              error = e;
+            } catch (RuntimeException e) {
+              error = e;
+            }
+            finished(step, error);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        running--;
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+
+    private synchronized void finished(Step step, Exception error) {
+      running--;
+      if (error != null) {
+        LOG.warning("Failed to delete " + step + ": " + error);
+        if (failure == null) {
+          failure = error;
+        }
+      } else {
+        LOG.info("Deleted " + step + ".");
+        if (failure == null) {
+          for (Step dependent : step.dependents) {
+            if (--waitingFor[dependent.index] == 0) {
+              start(dependent);
+            }
+          }
+        }
+      }
+      notifyAll();
+    }
+  }
+
+  /** Collects the assets of a plan, and the dependencies between them. */
+  static class Builder {
+    private final List<Step> steps = new ArrayList<Step>();
+    private final LinkedHashMap<String, Step> tables = new LinkedHashMap<String, Step>();
+    private final LinkedHashMap<String, Step> layers = new LinkedHashMap<String, Step>();
+    private final LinkedHashMap<String, Step> maps = new LinkedHashMap<String, Step>();
+
+    /** Adds a table, which has to wait for the layers displaying it. */
+    void addTable(String tableId, Collection<String> layerIds) {
+      Step table = step(tables, AssetType.TABLE, tableId);
+      for (String layerId : layerIds) {
+        link(step(layers, AssetType.LAYER, layerId), table);
+      }
+    }
+
+    void addLayer(String layerId) {
+      step(layers, AssetType.LAYER, layerId);
+    }
+
+    /** Adds a map, which has to be deleted before those of its layers that are in the plan. */
+    void addMap(String mapId, Collection<String> layerIds) {
+      Step map = step(maps, AssetType.MAP, mapId);
+      for (String layerId : layerIds) {
+        Step layer = layers.get(layerId);
+        if (layer != null) {
+          link(map, layer);
+        }
+      }
+    }
+
+    DeletionPlan build() {
+      return new DeletionPlan(steps);
+    }
+
+    private Step step(LinkedHashMap<String, Step> ofType, AssetType type, String id) {
+      Step step = ofType.get(id);
+      if (step == null) {
+        step = new Step(type, id, steps.size());
+        steps.add(step);
+        ofType.put(id, step);
+      }
+      return step;
+    }
+
+    private static void link(Step first, Step then) {
+      first.dependents.add(then);
+      then.prerequisites++;
+    }
+  }
+}
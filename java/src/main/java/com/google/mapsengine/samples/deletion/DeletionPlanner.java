@@ -0,0 +1,285 @@
+package com.google.mapsengine.samples.deletion;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.model.Asset;
+import com.google.api.services.mapsengine.model.Map;
+import com.google.api.services.mapsengine.model.Parent;
+import com.google.api.services.mapsengine.model.ParentsListResponse;
+import com.google.mapsengine.samples.deletion.DeletionPlan.AssetType;
+import com.google.mapsengine.samples.maps.MapContents;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Finds every layer and map that has to be deleted along with a set of tables, and checks that
+ * they can be.
+ *
+ * The dependency graph is discovered a level at a time, with every request of a level in flight
+ * at once: first the parents of each table, then the parents and published version of each
+ * layer, then each map. Every asset is fetched at most once, however many tables or layers lead
+ * to it, so discovery takes a few round trips per level of the graph rather than several per
+ * asset. Thread-safe.
+ */
+public class DeletionPlanner {
+
+  private static final Logger LOG = Logger.getLogger(DeletionPlanner.class.getName());
+
+  private static final String PUBLISHED = "published";
+
+  private final MapsEngine engine;
+  private final Executor executor;
+
+  /** Each asset fetched so far, or being fetched. */
+  private final ConcurrentMap<String, Future<Asset>> tables =
+      new ConcurrentHashMap<String, Future<Asset>>();
+  private final ConcurrentMap<String, Future<List<String>>> tableParents =
+      new ConcurrentHashMap<String, Future<List<String>>>();
+  private final ConcurrentMap<String, Future<List<String>>> layerParents =
+      new ConcurrentHashMap<String, Future<List<String>>>();
+  private final ConcurrentMap<String, Future<Boolean>> publishedLayers =
+      new ConcurrentHashMap<String, Future<Boolean>>();
+  private final ConcurrentMap<String, Future<Map>> maps =
+      new ConcurrentHashMap<String, Future<Map>>();
+
+  /**
+   * @param engine The client used to discover the assets.
+   * @param executor Runs the requests, as many at once as it has threads.
+   */
+  public DeletionPlanner(MapsEngine engine, Executor executor) {
+    this.engine = engine;
+    this.executor = executor;
+  }
+
+  /**
+   * Plans the deletion of the given tables, and the layers and maps that use them. Tables shared
+   * by more than one of them are deleted once.
+   *
+   * @param journal The assets deleted by earlier runs, which are left out of the plan without
+   *     being looked up, or null.
+   * @throws IllegalStateException if any of the IDs isn't a table, any of the layers or maps is
+   *     published, or a map also holds layers that aren't being deleted. Nothing has been deleted
+   *     at that point.
+   */
+  public DeletionPlan plan(Collection<String> tableIds, DeletionJournal journal)
+      throws IOException {
+    Set<String> remainingTableIds = new LinkedHashSet<String>();
+    for (String tableId : tableIds) {
+      if (!isDeleted(journal, AssetType.TABLE, tableId)) {
+        remainingTableIds.add(tableId);
+      }
+    }
+
+    LOG.info("Finding layers belonging to " + remainingTableIds.size() + " table(s).");
+    LinkedHashMap<String, Future<Asset>> tableAssets = new LinkedHashMap<String, Future<Asset>>();
+    LinkedHashMap<String, Future<List<String>>> tableLayers =
+        new LinkedHashMap<String, Future<List<String>>>();
+    for (String tableId : remainingTableIds) {
+      tableAssets.put(tableId, getTable(tableId));
+      tableLayers.put(tableId, getTableParents(tableId));
+    }
+    DeletionPlan.Builder plan = new DeletionPlan.Builder();
+    List<String> problems = new ArrayList<String>();
+    Set<String> layerIds = new LinkedHashSet<String>();
+    for (String tableId : remainingTableIds) {
+      Asset asset = await(tableAssets.get(tableId));
+      if (asset == null || !"table".equalsIgnoreCase(asset.getType())) {
+        problems.add("Asset ID " + tableId + " is not a table, missing, invalid or you don't have "
+            + "access.");
+        continue;
+      }
+      List<String> layers = new ArrayList<String>();
+      for (String layerId : await(tableLayers.get(tableId))) {
+        if (!isDeleted(journal, AssetType.LAYER, layerId)) {
+          layers.add(layerId);
+        }
+      }
+      plan.addTable(tableId, layers);
+      layerIds.addAll(layers);
+    }
+
+    LOG.info("Finding maps using " + layerIds.size() + " layer(s).");
+    LinkedHashMap<String, Future<List<String>>> layerMaps =
+        new LinkedHashMap<String, Future<List<String>>>();
+    LinkedHashMap<String, Future<Boolean>> layerPublished =
+        new LinkedHashMap<String, Future<Boolean>>();
+    for (String layerId : layerIds) {
+      layerMaps.put(layerId, getLayerParents(layerId));
+      layerPublished.put(layerId, isLayerPublished(layerId));
+    }
+    Set<String> mapIds = new LinkedHashSet<String>();
+    for (String layerId : layerIds) {
+      plan.addLayer(layerId);
+      for (String mapId : await(layerMaps.get(layerId))) {
+        if (!isDeleted(journal, AssetType.MAP, mapId)) {
+          mapIds.add(mapId);
+        }
+      }
+      if (await(layerPublished.get(layerId))) {
+        problems.add("Layer ID " + layerId + " is published, please un-publish before deleting.");
+      }
+    }
+
+    LOG.info("Checking the layers of " + mapIds.size() + " map(s).");
+    LinkedHashMap<String, Future<Map>> mapsToDelete = new LinkedHashMap<String, Future<Map>>();
+    for (String mapId : mapIds) {
+      mapsToDelete.put(mapId, getMap(mapId));
+    }
+    for (String mapId : mapIds) {
+      Map map = await(mapsToDelete.get(mapId));
+      if (map.getVersions() != null && map.getVersions().contains(PUBLISHED)) {
+        problems.add("Map ID " + mapId + " is published, please un-publish before deleting.");
+      }
+      // Maps are shared by every layer that leads to them, so their contents are only read.
+      Set<String> mapLayerIds = MapContents.of(map).getLayerIds();
+      Set<String> otherLayerIds = new LinkedHashSet<String>(mapLayerIds);
+      otherLayerIds.removeAll(layerIds);
+      if (!otherLayerIds.isEmpty()) {
+        // TODO(macd): Update this to edit the map, once available in the API.
+        problems.add("Map " + mapId + " contains layers not scheduled for deletion: "
+            + otherLayerIds + ". You will need to remove them before we can delete this map.");
+      }
+      plan.addMap(mapId, mapLayerIds);
+    }
+
+    if (!problems.isEmpty()) {
+      StringBuilder message = new StringBuilder("Nothing has been deleted:");
+      for (String problem : problems) {
+        message.append("\n  ").append(problem);
+      }
+      throw new IllegalStateException(message.toString());
+    }
+    return plan.build();
+  }
+
+  /** Fetches the table's asset, or null if it's missing or the ID is invalid. */
+  private Future<Asset> getTable(final String tableId) {
+    return fetch(tables, tableId, new Callable<Asset>() {
+      @Override
+      public Asset call() throws IOException {
+        try {
+          return engine.assets().get(tableId).execute();
+        } catch (GoogleJsonResponseException ex) {
+          // A "400 Bad Request" is thrown when the asset ID is missing or invalid
+          return null;
+        }
+      }
+    });
+  }
+
+  private Future<List<String>> getTableParents(final String tableId) {
+    return fetch(tableParents, tableId, new Callable<List<String>>() {
+      @Override
+      public List<String> call() throws IOException {
+        List<String> ids = new ArrayList<String>();
+        String pageToken = null;
+        do {
+          ParentsListResponse page =
+              engine.tables().parents().list(tableId).setPageToken(pageToken).execute();
+          pageToken = addParentIds(page, ids);
+        } while (pageToken != null);
+        return ids;
+      }
+    });
+  }
+
+  private Future<List<String>> getLayerParents(final String layerId) {
+    return fetch(layerParents, layerId, new Callable<List<String>>() {
+      @Override
+      public List<String> call() throws IOException {
+        List<String> ids = new ArrayList<String>();
+        String pageToken = null;
+        do {
+          ParentsListResponse page =
+              engine.layers().parents().list(layerId).setPageToken(pageToken).execute();
+          pageToken = addParentIds(page, ids);
+        } while (pageToken != null);
+        return ids;
+      }
+    });
+  }
+
+  private Future<Boolean> isLayerPublished(final String layerId) {
+    return fetch(publishedLayers, layerId, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        try {
+          engine.layers().get(layerId).setVersion(PUBLISHED).execute();
+          return true;
+        } catch (GoogleJsonResponseException ex) {
+          // The API failed to retrieve a published version.
+          return false;
+        }
+      }
+    });
+  }
+
+  private Future<Map> getMap(final String mapId) {
+    return fetch(maps, mapId, new Callable<Map>() {
+      @Override
+      public Map call() throws IOException {
+        return engine.maps().get(mapId).execute();
+      }
+    });
+  }
+
+  private static boolean isDeleted(DeletionJournal journal, AssetType type, String id) {
+    return journal != null && journal.isDeleted(type, id);
+  }
+
+  /** Adds the IDs on a page of parents to the list, and returns the next page's token. */
+  private static String addParentIds(ParentsListResponse page, List<String> ids) {
+    if (page.getParents() != null) {
+      for (Parent parent : page.getParents()) {
+        ids.add(parent.getId());
+      }
+    }
+    return page.getNextPageToken();
+  }
+
+  /** Returns the asset's fetch, starting it if it hasn't been started already. */
+  private <T> Future<T> fetch(ConcurrentMap<String, Future<T>> fetched, String id,
+      Callable<T> request) {
+    Future<T> existing = fetched.get(id);
+    if (existing != null) {
+      return existing;
+    }
+    FutureTask<T> task = new FutureTask<T>(request);
+    existing = fetched.putIfAbsent(id, task);
+    if (existing != null) {
+      return existing;
+    }
+    executor.execute(task);
+    return task;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while finding assets to delete.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to find assets to delete.", e.getCause());
+    }
+  }
+}
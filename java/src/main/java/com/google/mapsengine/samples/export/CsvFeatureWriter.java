@@ -0,0 +1,102 @@
+package com.google.mapsengine.samples.export;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Data;
+import com.google.api.services.mapsengine.model.Feature;
+import com.google.api.services.mapsengine.model.GeoJsonPoint;
+import com.google.api.services.mapsengine.model.Schema;
+import com.google.api.services.mapsengine.model.TableColumn;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes features as rows of a CSV file, with a column for each of the table's properties.
+ *
+ * A table of points gets a "lat" and a "lng" column, the layout the {@code CsvBatchInsert} and
+ * {@code CsvSync} samples read, so an export can be edited and loaded back. Any other table gets a
+ * "geometry" column holding each feature's geometry as GeoJSON.
+ */
+public class CsvFeatureWriter implements FeatureWriter {
+
+  private final CSVWriter out;
+  private final JsonFactory jsonFactory;
+  private final boolean points;
+  private final String[] propertyNames;
+  private final String[] row;
+
+  /** Writes the header row, taking the columns from the table's schema. */
+  public CsvFeatureWriter(Writer out, JsonFactory jsonFactory, Schema schema) {
+    this.out = new CSVWriter(out);
+    this.jsonFactory = jsonFactory;
+    List<String> header = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    boolean pointTable = false;
+    for (TableColumn column : schema.getColumns()) {
+      if (FeatureBatcher.GEOMETRY_TYPES.contains(column.getType())) {
+        pointTable = "points".equals(column.getType());
+      } else {
+        names.add(column.getName());
+      }
+    }
+    points = pointTable;
+    if (points) {
+      header.add("lat");
+      header.add("lng");
+    } else {
+      header.add("geometry");
+    }
+    header.addAll(names);
+    propertyNames = names.toArray(new String[names.size()]);
+    row = new String[header.size()];
+    this.out.writeNext(header.toArray(new String[header.size()]));
+  }
+
+  @Override
+  public void write(Feature feature) throws IOException {
+    int column = 0;
+    if (points) {
+      List<Double> coordinates = feature.getGeometry() instanceof GeoJsonPoint
+          ? ((GeoJsonPoint) feature.getGeometry()).getCoordinates() : null;
+      boolean hasPoint = coordinates != null && coordinates.size() >= 2;
+      // GeoJSON puts the longitude first.
+      row[column++] = hasPoint ? coordinates.get(1).toString() : "";
+      row[column++] = hasPoint ? coordinates.get(0).toString() : "";
+    } else {
+      row[column++] =
+          feature.getGeometry() != null ? jsonFactory.toString(feature.getGeometry()) : "";
+    }
+    Map<String, Object> properties = feature.getProperties();
+    for (String name : propertyNames) {
+      row[column++] = format(properties != null ? properties.get(name) : null);
+    }
+    out.writeNext(row);
+  }
+
+  @Override
+  public void close() throws IOException {
+    // CSVWriter keeps write errors to itself until asked.
+    boolean failed = out.checkError();
+    out.close();
+    if (failed) {
+      throw new IOException("Failed to write the CSV file.");
+    }
+  }
+
+  private static String format(Object value) {
+    if (value == null || Data.isNull(value)) {
+      return "";
+    } else if (value instanceof BigDecimal) {
+      // Numbers are parsed as BigDecimal, whose toString() may use an exponent.
+      return ((BigDecimal) value).toPlainString();
+    }
+    return value.toString();
+  }
+}
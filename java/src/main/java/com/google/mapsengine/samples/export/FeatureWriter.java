@@ -0,0 +1,11 @@
+package com.google.mapsengine.samples.export;
+
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Writes features to a file, one at a time, in some format. Closing it finishes the file. */
+public interface FeatureWriter extends Closeable {
+  void write(Feature feature) throws IOException;
+}
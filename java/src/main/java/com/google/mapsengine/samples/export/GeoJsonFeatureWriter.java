@@ -0,0 +1,39 @@
+package com.google.mapsengine.samples.export;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes features as a GeoJSON FeatureCollection, streaming each feature into the collection's
+ * array as it is written.
+ */
+public class GeoJsonFeatureWriter implements FeatureWriter {
+
+  private final JsonGenerator generator;
+
+  public GeoJsonFeatureWriter(Writer out, JsonFactory jsonFactory) throws IOException {
+    generator = jsonFactory.createJsonGenerator(out);
+    generator.writeStartObject();
+    generator.writeFieldName("type");
+    generator.writeString("FeatureCollection");
+    generator.writeFieldName("features");
+    generator.writeStartArray();
+  }
+
+  @Override
+  public void write(Feature feature) throws IOException {
+    generator.serialize(feature);
+  }
+
+  /** Ends the collection, and closes the underlying writer. */
+  @Override
+  public void close() throws IOException {
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.close();
+  }
+}
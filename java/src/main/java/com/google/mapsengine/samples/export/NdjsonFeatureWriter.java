@@ -0,0 +1,30 @@
+package com.google.mapsengine.samples.export;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.mapsengine.model.Feature;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** Writes each feature as a GeoJSON object on a line of its own. */
+public class NdjsonFeatureWriter implements FeatureWriter {
+
+  private final Writer out;
+  private final JsonFactory jsonFactory;
+
+  public NdjsonFeatureWriter(Writer out, JsonFactory jsonFactory) {
+    this.out = out;
+    this.jsonFactory = jsonFactory;
+  }
+
+  @Override
+  public void write(Feature feature) throws IOException {
+    out.write(jsonFactory.toString(feature));
+    out.write('\n');
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
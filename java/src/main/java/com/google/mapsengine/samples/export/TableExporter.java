@@ -0,0 +1,247 @@
+package com.google.mapsengine.samples.export;
+
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.model.Feature;
+import com.google.api.services.mapsengine.model.FeaturesListResponse;
+import com.google.api.services.mapsengine.model.GeoJsonGeometry;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads every feature of a table and hands them to a {@link FeatureWriter}, a page at a time.
+ *
+ * Each page of a listing holds the token for the next, so one listing can only be read a round
+ * trip at a time. To read several pages at once, the table is split into bands of longitude, each
+ * listed on its own with an intersects filter, by a pool of workers. There are a few bands per
+ * worker, so that a worker that finishes a sparse band moves on to another. A feature that
+ * crosses bands is listed for each of them, and only written for the band holding its first
+ * vertex.
+ *
+ * Pages wait in a short queue for the writer, and the workers wait while it is full, so only a few
+ * pages per worker are held in memory however large the table. Features are written in the order
+ * their pages arrive, not the table's order.
+ */
+public class TableExporter {
+
+  private static final int BANDS_PER_WORKER = 4;
+
+  /** Number of pages, per worker, that may wait to be written before the workers block. */
+  private static final int QUEUED_PAGES_PER_WORKER = 2;
+
+  /** Marks the end of a band in the queue of pages. */
+  private static final List<Feature> END = Collections.unmodifiableList(new ArrayList<Feature>());
+
+  private final MapsEngine engine;
+  private final String tableId;
+  private int workers = 1;
+  private String where;
+
+  private final AtomicLong pageCount = new AtomicLong();
+
+  public TableExporter(MapsEngine engine, String tableId) {
+    this.engine = engine;
+    this.tableId = tableId;
+  }
+
+  /**
+   * Sets the number of pages to request at once. Defaults to 1, which lists the table without
+   * splitting it.
+   */
+  public TableExporter setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("At least one worker is required.");
+    }
+    this.workers = workers;
+    return this;
+  }
+
+  /** Sets a filter on the features to export, in the API's SQL-like where syntax. */
+  public TableExporter setWhere(String where) {
+    this.where = where;
+    return this;
+  }
+
+  /** Returns the number of pages read so far. */
+  public long getPageCount() {
+    return pageCount.get();
+  }
+
+  /**
+   * Writes every feature of the table, blocking until they have all been written. The writer is
+   * left open.
+   *
+   * @return The number of features written.
+   */
+  public long export(FeatureWriter writer) throws IOException {
+    List<Band> bands = new ArrayList<Band>();
+    if (workers == 1) {
+      bands.add(null);
+    } else {
+      int count = workers * BANDS_PER_WORKER;
+      for (int i = 0; i < count; i++) {
+        bands.add(new Band(-180 + 360.0 * i / count, -180 + 360.0 * (i + 1) / count,
+            i == count - 1));
+      }
+    }
+
+    final BlockingQueue<List<Feature>> pages =
+        new ArrayBlockingQueue<List<Feature>>(workers * QUEUED_PAGES_PER_WORKER);
+    final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    ExecutorService fetchers = Executors.newFixedThreadPool(workers);
+    long featureCount = 0;
+    try {
+      for (final Band band : bands) {
+        fetchers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fetch(band, pages);
+              pages.put(END);
+            } catch (InterruptedException e) {
+              // The export has stopped, so nothing is waiting for the rest of the band.
+            } catch (IOException e) {
+              failure.compareAndSet(null, e);
+              pages.offer(END);
+            } catch (RuntimeException e) {
+              failure.compareAndSet(null, new IOException("Listing features failed.", e));
+              pages.offer(END);
+            }
+          }
+        });
+      }
+
+      int remaining = bands.size();
+      while (remaining > 0) {
+        List<Feature> page = take(pages);
+        checkFailure(failure);
+        if (page == END) {
+          remaining--;
+          continue;
+        }
+        for (Feature feature : page) {
+          writer.write(feature);
+        }
+        featureCount += page.size();
+      }
+    } finally {
+      // Stop any workers still listing, if the export failed part way.
+      fetchers.shutdownNow();
+    }
+    return featureCount;
+  }
+
+  /** Lists the features of a band, or of the whole table, queueing each page as it arrives. */
+  private void fetch(Band band, BlockingQueue<List<Feature>> pages)
+      throws IOException, InterruptedException {
+    String pageToken = null;
+    do {
+      MapsEngine.Tables.Features.List request = engine.tables().features().list(tableId)
+          .setMaxResults(FeatureBatcher.MAX_FEATURES_PER_PAGE)
+          .setPageToken(pageToken);
+      if (band != null) {
+        request.setIntersects(band.toWkt());
+      }
+      if (where != null) {
+        request.setWhere(where);
+      }
+      FeaturesListResponse page = request.execute();
+      pageCount.incrementAndGet();
+      if (page.getFeatures() != null) {
+        List<Feature> features = page.getFeatures();
+        if (band != null) {
+          features = new ArrayList<Feature>(features.size());
+          for (Feature feature : page.getFeatures()) {
+            if (band.owns(feature)) {
+              features.add(feature);
+            }
+          }
+        }
+        if (!features.isEmpty()) {
+          pages.put(features);
+        }
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private static List<Feature> take(BlockingQueue<List<Feature>> pages) throws IOException {
+    try {
+      return pages.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for features.", e);
+    }
+  }
+
+  private static void checkFailure(AtomicReference<IOException> failure) throws IOException {
+    IOException e = failure.get();
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /** A band of longitude, from pole to pole, that includes its west edge but not its east. */
+  private static class Band {
+    final double west;
+    final double east;
+    /** Whether the band also includes its east edge, the antimeridian. */
+    final boolean last;
+
+    Band(double west, double east, boolean last) {
+      this.west = west;
+      this.east = east;
+      this.last = last;
+    }
+
+    String toWkt() {
+      return String.format(Locale.ENGLISH, "POLYGON((%1$s -90, %2$s -90, %2$s 90, %1$s 90, "
+          + "%1$s -90))", west, east);
+    }
+
+    /** Returns whether the feature's first vertex is in the band. */
+    boolean owns(Feature feature) {
+      Object position = feature.getGeometry() != null ? firstPosition(feature.getGeometry()) : null;
+      if (!(position instanceof List) || ((List<?>) position).isEmpty()
+          || !(((List<?>) position).get(0) instanceof Number)) {
+        // Without a position to go by, keep it in the first band that lists it: the first one.
+        return west == -180;
+      }
+      double lng = ((Number) ((List<?>) position).get(0)).doubleValue();
+      return lng >= west && (lng < east || last && lng == east);
+    }
+  }
+
+  /** Returns the first position of a geometry, whatever its type, or null if it has none. */
+  private static Object firstPosition(GeoJsonGeometry geometry) {
+    Object geometries = geometry.get("geometries");
+    if (geometries instanceof List) {
+      for (Object member : (List<?>) geometries) {
+        if (member instanceof GeoJsonGeometry) {
+          Object position = firstPosition((GeoJsonGeometry) member);
+          if (position != null) {
+            return position;
+          }
+        }
+      }
+      return null;
+    }
+    Object coordinates = geometry.get("coordinates");
+    // Descend to the innermost list, which holds the numbers of one position.
+    while (coordinates instanceof List && !((List<?>) coordinates).isEmpty()
+        && ((List<?>) coordinates).get(0) instanceof List) {
+      coordinates = ((List<?>) coordinates).get(0);
+    }
+    return coordinates;
+  }
+}
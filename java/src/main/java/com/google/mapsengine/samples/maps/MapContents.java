@@ -0,0 +1,112 @@
+package com.google.mapsengine.samples.maps;
+
+import com.google.api.services.mapsengine.model.Map;
+import com.google.api.services.mapsengine.model.MapFolder;
+import com.google.api.services.mapsengine.model.MapItem;
+import com.google.api.services.mapsengine.model.MapKmlLink;
+import com.google.api.services.mapsengine.model.MapLayer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The layers, folders and KML links of a map, including those nested in folders, in the order they
+ * appear in the map.
+ *
+ * The contents are walked once, depth first, with an explicit stack of the folders being walked,
+ * so the walk takes time in proportion to the number of items however deeply they are nested. The
+ * map itself is only read, so a map model can be shared by any number of callers.
+ */
+public class MapContents {
+
+  /** Separates the names of nested folders in a folder path. */
+  public static final String PATH_SEPARATOR = "/";
+
+  private final Set<String> layerIds = new LinkedHashSet<String>();
+  private final List<String> folderPaths = new ArrayList<String>();
+  private final List<MapKmlLink> kmlLinks = new ArrayList<MapKmlLink>();
+  private int itemCount;
+
+  private MapContents() {}
+
+  /** Walks the contents of the map. */
+  public static MapContents of(Map map) {
+    return of(map.getContents());
+  }
+
+  /** Walks the given map items, and the items in their folders. The list may be null. */
+  public static MapContents of(List<MapItem> items) {
+    MapContents contents = new MapContents();
+    contents.walk(items);
+    return contents;
+  }
+
+  /** Returns the IDs of the layers, each once. */
+  public Set<String> getLayerIds() {
+    return Collections.unmodifiableSet(layerIds);
+  }
+
+  /**
+   * Returns the path of each folder: the names of the folders holding it and its own, separated by
+   * {@link #PATH_SEPARATOR}. A folder without a name is named by its key.
+   */
+  public List<String> getFolderPaths() {
+    return Collections.unmodifiableList(folderPaths);
+  }
+
+  /** Returns the KML links. They have no IDs. */
+  public List<MapKmlLink> getKmlLinks() {
+    return Collections.unmodifiableList(kmlLinks);
+  }
+
+  /** Returns the number of items of every kind, folders included. */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  private void walk(List<MapItem> items) {
+    Deque<Folder> folders = new ArrayDeque<Folder>();
+    if (items != null) {
+      folders.push(new Folder(items, ""));
+    }
+    while (!folders.isEmpty()) {
+      Folder folder = folders.peek();
+      if (folder.next == folder.items.size()) {
+        folders.pop();
+        continue;
+      }
+      MapItem item = folder.items.get(folder.next++);
+      itemCount++;
+      if (item instanceof MapLayer) {
+        layerIds.add(((MapLayer) item).getId());
+      } else if (item instanceof MapKmlLink) {
+        kmlLinks.add((MapKmlLink) item);
+      } else if (item instanceof MapFolder) {
+        MapFolder child = (MapFolder) item;
+        String name = child.getName() != null ? child.getName() : child.getKey();
+        String path = folder.path.isEmpty() ? name : folder.path + PATH_SEPARATOR + name;
+        folderPaths.add(path);
+        if (child.getContents() != null) {
+          folders.push(new Folder(child.getContents(), path));
+        }
+      }
+    }
+  }
+
+  /** A list of items being walked, and how far the walk has got through it. */
+  private static class Folder {
+    final List<MapItem> items;
+    final String path;
+    int next;
+
+    Folder(List<MapItem> items, String path) {
+      this.items = items;
+      this.path = path;
+    }
+  }
+}
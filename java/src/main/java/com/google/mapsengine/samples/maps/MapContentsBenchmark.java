@@ -0,0 +1,117 @@
+package com.google.mapsengine.samples.maps;
+
+import com.google.api.services.mapsengine.model.Map;
+import com.google.api.services.mapsengine.model.MapFolder;
+import com.google.api.services.mapsengine.model.MapItem;
+import com.google.api.services.mapsengine.model.MapKmlLink;
+import com.google.api.services.mapsengine.model.MapLayer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Times {@link MapContents} against the walk TableDelete used to find a map's layers, which took
+ * items off the front of an ArrayList and appended the contents of each folder to its end, on
+ * synthetic maps of nested folders, layers and KML links. No credentials are needed.
+ */
+class MapContentsBenchmark {
+
+  private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+  private static final int DEFAULT_ITERATIONS = 20;
+  /** The number of items in each folder. */
+  private static final int FOLDER_SIZE = 10;
+  private static final int MAX_DEPTH = 4;
+
+  public static void main(String[] args) {
+    if (args.length > 2) {
+      System.err.println("Usage: java ... MapContentsBenchmark [items] [iterations]");
+      System.err.println(" items is the number of items in the map, by default each of 1000, "
+          + "10000 and 100000.");
+      System.err.println(" iterations is the number of times to walk each map, defaults to "
+          + DEFAULT_ITERATIONS);
+      System.exit(1);
+    }
+    int[] sizes = args.length > 0 ? new int[] {Integer.parseInt(args[0])} : DEFAULT_SIZES;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+    System.out.println("items    layers  remove(0) ms  MapContents ms");
+    for (int size : sizes) {
+      Map map = new Map().setContents(new SyntheticMap(size).items);
+      Set<String> expected = getLayerIdsByRemoval(map);
+      if (!MapContents.of(map).getLayerIds().equals(expected)) {
+        throw new AssertionError("The walks found different layers.");
+      }
+
+      // Warm up the JIT before timing anything.
+      for (int i = 0; i < iterations; i++) {
+        getLayerIdsByRemoval(map);
+        MapContents.of(map);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        getLayerIdsByRemoval(map);
+      }
+      long removal = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        MapContents.of(map);
+      }
+      long deque = System.nanoTime() - start;
+
+      System.out.println(String.format("%-7d  %6d  %12.3f  %14.3f", size, expected.size(),
+          removal / 1e6 / iterations, deque / 1e6 / iterations));
+    }
+  }
+
+  /**
+   * The old walk. It consumed the map's own list of contents, so it is given a copy here; copying
+   * the top level of the map is a small part of the time it takes.
+   */
+  private static Set<String> getLayerIdsByRemoval(Map map) {
+    Set<String> layerIds = new LinkedHashSet<String>();
+    List<MapItem> mapContents = new ArrayList<MapItem>(map.getContents());
+    while (!mapContents.isEmpty()) {
+      MapItem item = mapContents.remove(0);
+      if (item instanceof MapLayer) {
+        layerIds.add(((MapLayer) item).getId());
+      } else if (item instanceof MapFolder && ((MapFolder) item).getContents() != null) {
+        mapContents.addAll(((MapFolder) item).getContents());
+      }
+    }
+    return layerIds;
+  }
+
+  /**
+   * A map of the given number of items. Every third item of a folder is another folder, down to
+   * the maximum depth, and one in ten of the rest is a KML link.
+   */
+  private static class SyntheticMap {
+    final List<MapItem> items = new ArrayList<MapItem>();
+    private int remaining;
+    private int created;
+
+    SyntheticMap(int size) {
+      remaining = size;
+      while (remaining > 0) {
+        items.add(newItem(0));
+      }
+    }
+
+    private MapItem newItem(int depth) {
+      remaining--;
+      int n = created++;
+      if (depth < MAX_DEPTH && n % 3 == 0) {
+        List<MapItem> contents = new ArrayList<MapItem>();
+        for (int i = 0; i < FOLDER_SIZE && remaining > 0; i++) {
+          contents.add(newItem(depth + 1));
+        }
+        return new MapFolder().setName("Folder " + n).setContents(contents);
+      } else if (n % 10 == 1) {
+        return new MapKmlLink().setName("Link " + n).setKmlUrl("http://example.com/" + n + ".kml");
+      }
+      return new MapLayer().setId("layer-" + n);
+    }
+  }
+}
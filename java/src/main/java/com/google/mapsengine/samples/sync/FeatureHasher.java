@@ -0,0 +1,175 @@
+package com.google.mapsengine.samples.sync;
+
+import com.google.api.services.mapsengine.model.Feature;
+import com.google.api.services.mapsengine.model.GeoJsonPoint;
+import com.google.api.services.mapsengine.model.Schema;
+import com.google.api.services.mapsengine.model.TableColumn;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stable 64-bit hashes of primary keys and of feature contents, for telling which rows of a table
+ * differ from a local copy without comparing the rows themselves.
+ *
+ * A row is hashed from its point and its property values, in schema order, each put into a
+ * canonical form first, so that a row read from a CSV file and the same row read back from the
+ * API hash alike: integral numbers hash the same whether they arrive as a long, a double or a
+ * BigDecimal, an empty string hashes as a missing value, and coordinates are rounded to a
+ * billionth of a degree. The hashes don't depend on the JVM or the run, so they can be stored.
+ */
+public final class FeatureHasher {
+
+  /** The row hash of a feature that a row of a file can't match, such as a polygon. */
+  public static final long UNKNOWN_ROW_HASH = 0;
+
+  private static final long KEY_SEED = 0x6a09e667f3bcc908L;
+  private static final long ROW_SEED = 0xbb67ae8584caa73bL;
+  private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+  private static final double COORDINATE_SCALE = 1e9;
+  private static final double LONG_LIMIT = 0x1p63;
+
+  private static final long MISSING = 1;
+  private static final long INTEGER = 2;
+  private static final long DOUBLE = 3;
+  private static final long STRING = 4;
+
+  private FeatureHasher() {}
+
+  /** Hashes a primary key. The hash is never 0, so 0 can mark an empty slot in an index. */
+  public static long hashKey(String primaryKey) {
+    long hash = mix(addString(KEY_SEED, primaryKey));
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * Hashes a point feature.
+   *
+   * @param values The feature's property values, in schema order, with null for a missing value.
+   */
+  public static long hashRow(double lat, double lng, Object[] values) {
+    long hash = add(ROW_SEED, Math.round(lat * COORDINATE_SCALE));
+    hash = add(hash, Math.round(lng * COORDINATE_SCALE));
+    for (Object value : values) {
+      hash = addValue(hash, value);
+    }
+    return mix(hash ^ values.length);
+  }
+
+  /**
+   * Hashes a feature as read from or sent to the API, or returns {@link #UNKNOWN_ROW_HASH} if it
+   * isn't a point.
+   *
+   * @param propertyNames The table's properties, in schema order, as returned by
+   *     {@link #propertyNames}.
+   */
+  public static long hashFeature(Feature feature, String[] propertyNames) {
+    if (!(feature.getGeometry() instanceof GeoJsonPoint)) {
+      return UNKNOWN_ROW_HASH;
+    }
+    List<Double> coordinates = ((GeoJsonPoint) feature.getGeometry()).getCoordinates();
+    if (coordinates == null || coordinates.size() < 2) {
+      return UNKNOWN_ROW_HASH;
+    }
+    Map<String, Object> properties = feature.getProperties();
+    Object[] values = new Object[propertyNames.length];
+    for (int i = 0; i < values.length && properties != null; i++) {
+      values[i] = properties.get(propertyNames[i]);
+    }
+    // GeoJSON puts the longitude first.
+    return hashRow(coordinates.get(1), coordinates.get(0), values);
+  }
+
+  /** Returns the names of a table's properties, its columns other than geometry, in order. */
+  public static String[] propertyNames(Schema schema) {
+    List<String> names = new ArrayList<String>();
+    for (TableColumn column : schema.getColumns()) {
+      if (!FeatureBatcher.GEOMETRY_TYPES.contains(column.getType())) {
+        names.add(column.getName());
+      }
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Returns a primary key value in the form it is sent in a batchDelete request: integral numbers
+   * without a fraction, whatever type they were read as, and anything else as its string.
+   */
+  public static String keyString(Object value) {
+    if (value instanceof Number) {
+      Number number = (Number) value;
+      if (isIntegral(number)) {
+        return Long.toString(toLong(number));
+      }
+    }
+    return String.valueOf(value);
+  }
+
+  private static long addValue(long hash, Object value) {
+    if (value == null || "".equals(value)) {
+      return add(hash, MISSING);
+    } else if (value instanceof Number) {
+      Number number = (Number) value;
+      if (isIntegral(number)) {
+        return add(add(hash, INTEGER), toLong(number));
+      }
+      // Adding zero turns -0.0 into 0.0.
+      return add(add(hash, DOUBLE), Double.doubleToLongBits(number.doubleValue() + 0.0));
+    }
+    return addString(add(hash, STRING), value.toString());
+  }
+
+  /** Whether the number is a whole number that fits in a long. */
+  private static boolean isIntegral(Number number) {
+    if (number instanceof Long || number instanceof Integer || number instanceof Short
+        || number instanceof Byte) {
+      return true;
+    } else if (number instanceof BigInteger) {
+      return ((BigInteger) number).bitLength() < Long.SIZE;
+    } else if (number instanceof BigDecimal) {
+      try {
+        ((BigDecimal) number).longValueExact();
+        return true;
+      } catch (ArithmeticException e) {
+        return false;
+      }
+    }
+    double value = number.doubleValue();
+    return value == Math.rint(value) && Math.abs(value) < LONG_LIMIT;
+  }
+
+  private static long toLong(Number number) {
+    return number instanceof BigDecimal
+        ? ((BigDecimal) number).longValueExact() : number.longValue();
+  }
+
+  private static long addString(long hash, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    hash = add(hash, bytes.length);
+    long word = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      word = word << 8 | (bytes[i] & 0xff);
+      if ((i & 7) == 7) {
+        hash = add(hash, word);
+        word = 0;
+      }
+    }
+    return (bytes.length & 7) == 0 ? hash : add(hash, word);
+  }
+
+  private static long add(long hash, long value) {
+    return Long.rotateLeft(hash ^ mix(value), 31) * MULTIPLIER;
+  }
+
+  /** The 64-bit finalizer of MurmurHash3, which spreads every input bit over the whole hash. */
+  private static long mix(long value) {
+    value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+    value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return value ^ (value >>> 33);
+  }
+}
@@ -0,0 +1,474 @@
+package com.google.mapsengine.samples.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table's rows as they were when it was last synced, kept on disk: for each row, the hash of its
+ * primary key, the hash of its contents, and where to find the key itself.
+ *
+ * The index file is a hash table of 24-byte slots, memory-mapped in chunks and searched by linear
+ * probing from the key hash, so a lookup reads a slot or two straight from the mapping and creates
+ * no objects, however many rows there are. The keys are only needed to delete rows, so they are
+ * appended to a second file, which the slots point into. A table of 100 million rows takes about
+ * 6GB of index, of which only the pages actually touched are read.
+ *
+ * The index is marked dirty before it is first changed, and clean once everything has been
+ * forced to disk, so an index left by a run that stopped part way can be told apart and rebuilt.
+ * While it is open, each row also has a seen mark, kept in memory, for finding the rows that a
+ * sync didn't touch. A key that a lookup doesn't find is reserved in the index straight away, and
+ * marked as seen, so that a second row with the same key is caught without keeping the new keys
+ * anywhere else; {@link #put} then fills in the reserved row once it has been sent. An index
+ * opened with {@link #openScratch} keeps all of this to itself and leaves the files alone.
+ * Thread-safe.
+ */
+public class MappedRowHashIndex implements Closeable {
+
+  /** What {@link #lookup} found. */
+  public enum Lookup {
+    /** The key isn't in the index. */
+    ABSENT,
+    /** The row has the given contents. */
+    UNCHANGED,
+    /** The row has different contents. */
+    CHANGED,
+    /** The key has already been seen since the index was opened. */
+    REPEATED
+  }
+
+  private static final long MAGIC = 0x4d45524f57494458L;
+  private static final int VERSION = 1;
+
+  // The header, and where each of its fields is.
+  private static final int HEADER_BYTES = 64;
+  private static final int MAGIC_FIELD = 0;
+  private static final int VERSION_FIELD = 8;
+  private static final int STATE_FIELD = 12;
+  private static final int CAPACITY_FIELD = 16;
+  private static final int SIZE_FIELD = 24;
+  private static final int USED_FIELD = 32;
+  private static final int FINGERPRINT_FIELD = 40;
+  private static final int KEYS_LENGTH_FIELD = 48;
+
+  private static final int CLEAN = 1;
+  private static final int DIRTY = 2;
+
+  // A slot, and where each of its fields is.
+  private static final int SLOT_BYTES = 24;
+  private static final int KEY_HASH_FIELD = 0;
+  private static final int ROW_HASH_FIELD = 8;
+  private static final int KEY_OFFSET_FIELD = 16;
+
+  /** The key hash of an empty slot. {@link FeatureHasher#hashKey} never returns it. */
+  private static final long EMPTY = 0;
+  /** The key offset of a deleted row, whose slot is kept so that probes carry on past it. */
+  private static final long DELETED = -1;
+  /** The key offset of a reserved row, which has been looked up but not yet put. */
+  private static final long PENDING = -2;
+
+  /** Each mapping holds 2^25 slots, 768MB, as a mapping can't be larger than 2GB. */
+  private static final int CHUNK_SHIFT = 25;
+  private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+  private static final double MAX_LOAD = 0.7;
+  private static final int MIN_CAPACITY = 1024;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private final File file;
+  private final File keysFile;
+  private final boolean scratch;
+  /** The temporary files a scratch index has grown into, deleted when it is closed. */
+  private final List<File> scratchFiles = new ArrayList<File>();
+  private MappedByteBuffer header;
+  private MappedByteBuffer[] chunks;
+  private FileChannel keys;
+  private int capacity;
+  private long size;
+  /** The number of slots in use, deleted rows included. */
+  private long used;
+  private long keysLength;
+  private long[] seen;
+
+  private MappedRowHashIndex(File file, File keysFile, boolean scratch) {
+    this.file = file;
+    this.keysFile = keysFile;
+    this.scratch = scratch;
+  }
+
+  /**
+   * Creates an empty index, replacing any existing one. It is dirty until {@link #markClean}.
+   *
+   * @param fingerprint Identifies what the index was built from, such as a table and its schema.
+   */
+  public static MappedRowHashIndex create(File file, long fingerprint) throws IOException {
+    return create(file, keysFileOf(file), fingerprint, MIN_CAPACITY);
+  }
+
+  /** Opens an existing index. */
+  public static MappedRowHashIndex open(File file) throws IOException {
+    return open(file, false);
+  }
+
+  /**
+   * Opens an existing index without ever changing its files, as for a dry run. Changes are copied
+   * into memory, or into temporary files if the index has to grow, and are lost when it is closed.
+   * Rows can be looked up, but not put or removed.
+   */
+  public static MappedRowHashIndex openScratch(File file) throws IOException {
+    return open(file, true);
+  }
+
+  private static MappedRowHashIndex open(File file, boolean scratch) throws IOException {
+    MappedRowHashIndex index = new MappedRowHashIndex(file, keysFileOf(file), scratch);
+    FileChannel.MapMode mode =
+        scratch ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_WRITE;
+    // A private mapping needs a writable channel, though it never writes through to the file.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER_BYTES) {
+        throw new IOException("Not a row hash index: " + file);
+      }
+      index.header = channel.map(mode, 0, HEADER_BYTES);
+      if (index.header.getLong(MAGIC_FIELD) != MAGIC
+          || index.header.getInt(VERSION_FIELD) != VERSION) {
+        throw new IOException("Not a row hash index: " + file);
+      }
+      index.capacity = (int) index.header.getLong(CAPACITY_FIELD);
+      if (channel.size() < HEADER_BYTES + (long) index.capacity * SLOT_BYTES) {
+        throw new IOException("Row hash index " + file + " is truncated.");
+      }
+      index.chunks = map(channel, mode, index.capacity);
+    } finally {
+      raf.close();
+    }
+    index.size = index.header.getLong(SIZE_FIELD);
+    index.used = index.header.getLong(USED_FIELD);
+    index.keysLength = index.header.getLong(KEYS_LENGTH_FIELD);
+    index.seen = new long[bitmapLength(index.capacity)];
+    index.keys = new RandomAccessFile(index.keysFile, scratch ? "r" : "rw").getChannel();
+    return index;
+  }
+
+  /** Returns whether the index was marked clean, and hasn't been changed since. */
+  public synchronized boolean isClean() {
+    return header.getInt(STATE_FIELD) == CLEAN;
+  }
+
+  public synchronized long getFingerprint() {
+    return header.getLong(FINGERPRINT_FIELD);
+  }
+
+  /** Returns the number of rows. */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Looks up a row, comparing its contents with the given row hash, and marks it as seen. A row
+   * that is {@link Lookup#ABSENT} is reserved, until it is put, so that its key is seen too.
+   */
+  public synchronized Lookup lookup(long keyHash, long rowHash) throws IOException {
+    int slot = probe(keyHash);
+    long keyOffset = getLong(slot, KEY_OFFSET_FIELD);
+    if (getLong(slot, KEY_HASH_FIELD) != EMPTY && keyOffset != DELETED) {
+      if (isSeen(slot)) {
+        return Lookup.REPEATED;
+      }
+      setSeen(slot);
+      if (keyOffset != PENDING) {
+        return getLong(slot, ROW_HASH_FIELD) == rowHash ? Lookup.UNCHANGED : Lookup.CHANGED;
+      }
+      // Reserved by a run that didn't finish, which leaves the index dirty, so not in the table.
+      return Lookup.ABSENT;
+    }
+    markDirty();
+    if (used + 1 > capacity * MAX_LOAD) {
+      rehash(capacity * 2);
+    }
+    setSeen(reserve(keyHash, rowHash));
+    return Lookup.ABSENT;
+  }
+
+  /** Adds a row, or updates its row hash if it is already present, and marks it as seen. */
+  public synchronized void put(long keyHash, long rowHash, String key) throws IOException {
+    checkWritable();
+    markDirty();
+    if (used + 1 > capacity * MAX_LOAD) {
+      rehash(capacity * 2);
+    }
+    setSeen(store(keyHash, rowHash, key));
+  }
+
+  /** Removes a row, if it is present. */
+  public synchronized void remove(long keyHash) throws IOException {
+    checkWritable();
+    int slot = probe(keyHash);
+    if (getLong(slot, KEY_HASH_FIELD) != EMPTY && getLong(slot, KEY_OFFSET_FIELD) >= 0) {
+      markDirty();
+      putLong(slot, KEY_OFFSET_FIELD, DELETED);
+      size--;
+    }
+  }
+
+  /**
+   * Adds the keys of rows that haven't been seen to the list, starting from a slot, until the list
+   * holds the given number of keys.
+   *
+   * @return The slot to carry on from, or -1 once every slot has been checked.
+   */
+  public synchronized int collectUnseen(int fromSlot, List<String> unseen, int max)
+      throws IOException {
+    for (int slot = fromSlot; slot < capacity; slot++) {
+      if (unseen.size() == max) {
+        return slot;
+      }
+      if (getLong(slot, KEY_HASH_FIELD) != EMPTY && !isSeen(slot)) {
+        long keyOffset = getLong(slot, KEY_OFFSET_FIELD);
+        if (keyOffset >= 0) {
+          unseen.add(readKey(keyOffset));
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** Writes every change to disk, then marks the index clean. */
+  public synchronized void markClean() throws IOException {
+    checkWritable();
+    for (MappedByteBuffer chunk : chunks) {
+      chunk.force();
+    }
+    keys.force(false);
+    header.putLong(SIZE_FIELD, size);
+    header.putLong(USED_FIELD, used);
+    header.putLong(KEYS_LENGTH_FIELD, keysLength);
+    header.putInt(STATE_FIELD, CLEAN);
+    header.force();
+  }
+
+  /**
+   * Closes the keys file, and deletes a scratch index's temporary files. The mappings are released
+   * once they are no longer referenced.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    keys.close();
+    for (File scratchFile : scratchFiles) {
+      Files.deleteIfExists(scratchFile.toPath());
+    }
+  }
+
+  private void checkWritable() {
+    if (scratch) {
+      throw new IllegalStateException("Rows can't be put into or removed from a scratch index.");
+    }
+  }
+
+  /**
+   * Marks the index as not matching the table, until {@link #markClean}, such as before changing
+   * the table. Changes to the index mark it as well.
+   */
+  public synchronized void markDirty() {
+    if (!scratch && header.getInt(STATE_FIELD) != DIRTY) {
+      header.putInt(STATE_FIELD, DIRTY);
+      header.force();
+    }
+  }
+
+  /** Adds or updates a row, returning its slot. There must be room for it. */
+  private int store(long keyHash, long rowHash, String key) throws IOException {
+    int slot = probe(keyHash);
+    boolean empty = getLong(slot, KEY_HASH_FIELD) == EMPTY;
+    if (empty || getLong(slot, KEY_OFFSET_FIELD) < 0) {
+      putLong(slot, ROW_HASH_FIELD, rowHash);
+      putLong(slot, KEY_OFFSET_FIELD, appendKey(key));
+      // The key hash goes in last, as it is what puts the slot in use.
+      putLong(slot, KEY_HASH_FIELD, keyHash);
+      size++;
+      if (empty) {
+        used++;
+      }
+    } else {
+      putLong(slot, ROW_HASH_FIELD, rowHash);
+    }
+    return slot;
+  }
+
+  /**
+   * Reserves a slot for a row that isn't in the index, returning it. There must be room for it.
+   * The row isn't counted in the size until it is put.
+   */
+  private int reserve(long keyHash, long rowHash) {
+    int slot = probe(keyHash);
+    if (getLong(slot, KEY_HASH_FIELD) == EMPTY) {
+      used++;
+    }
+    putLong(slot, ROW_HASH_FIELD, rowHash);
+    putLong(slot, KEY_OFFSET_FIELD, PENDING);
+    putLong(slot, KEY_HASH_FIELD, keyHash);
+    return slot;
+  }
+
+  /** Returns the slot holding the key, or the empty slot where it belongs. */
+  private int probe(long keyHash) {
+    int mask = capacity - 1;
+    int slot = (int) keyHash & mask;
+    long slotKey = getLong(slot, KEY_HASH_FIELD);
+    while (slotKey != EMPTY && slotKey != keyHash) {
+      slot = (slot + 1) & mask;
+      slotKey = getLong(slot, KEY_HASH_FIELD);
+    }
+    return slot;
+  }
+
+  private long getLong(int slot, int field) {
+    return chunks[slot >>> CHUNK_SHIFT].getLong((slot & CHUNK_MASK) * SLOT_BYTES + field);
+  }
+
+  private void putLong(int slot, int field, long value) {
+    chunks[slot >>> CHUNK_SHIFT].putLong((slot & CHUNK_MASK) * SLOT_BYTES + field, value);
+  }
+
+  private boolean isSeen(int slot) {
+    return (seen[slot >>> 6] & (1L << slot)) != 0;
+  }
+
+  private void setSeen(int slot) {
+    seen[slot >>> 6] |= 1L << slot;
+  }
+
+  /** Appends a key to the keys file, as its length and its UTF-8 bytes, returning its offset. */
+  private long appendKey(String key) throws IOException {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(4 + bytes.length);
+    record.putInt(bytes.length).put(bytes).flip();
+    long offset = keysLength;
+    while (record.hasRemaining()) {
+      keysLength += keys.write(record, keysLength);
+    }
+    return offset;
+  }
+
+  private String readKey(long offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset);
+    ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+    readFully(bytes, offset + 4);
+    return new String(bytes.array(), StandardCharsets.UTF_8);
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (keys.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Row hash index keys " + keysFile + " are truncated.");
+      }
+    }
+  }
+
+  /**
+   * Moves the rows into a larger index, leaving deleted rows and their keys behind, and puts it in
+   * place of this one. The new files are written alongside and then renamed over the old ones, or
+   * for a scratch index, kept as temporary files.
+   */
+  private void rehash(int newCapacity) throws IOException {
+    if (capacity == MAX_CAPACITY) {
+      throw new IllegalStateException("The row hash index is full at " + size + " rows.");
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    File grownFile = scratch
+        ? File.createTempFile(file.getName(), ".scratch", dir) : new File(file.getPath() + ".tmp");
+    File grownKeysFile = scratch
+        ? File.createTempFile(keysFile.getName(), ".scratch", dir)
+        : new File(keysFile.getPath() + ".tmp");
+    if (scratch) {
+      scratchFiles.add(grownFile);
+      scratchFiles.add(grownKeysFile);
+    }
+    MappedRowHashIndex grown = create(grownFile, grownKeysFile,
+        header.getLong(FINGERPRINT_FIELD), newCapacity);
+    for (int slot = 0; slot < capacity; slot++) {
+      long keyOffset = getLong(slot, KEY_OFFSET_FIELD);
+      if (getLong(slot, KEY_HASH_FIELD) == EMPTY || keyOffset == DELETED) {
+        continue;
+      }
+      long keyHash = getLong(slot, KEY_HASH_FIELD);
+      long rowHash = getLong(slot, ROW_HASH_FIELD);
+      int grownSlot = keyOffset == PENDING
+          ? grown.reserve(keyHash, rowHash) : grown.store(keyHash, rowHash, readKey(keyOffset));
+      if (isSeen(slot)) {
+        grown.setSeen(grownSlot);
+      }
+    }
+
+    if (!scratch) {
+      // Renaming a file leaves its mappings and open channels pointing at it.
+      Files.move(grownKeysFile.toPath(), keysFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.move(grownFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    keys.close();
+    header = grown.header;
+    chunks = grown.chunks;
+    keys = grown.keys;
+    capacity = grown.capacity;
+    size = grown.size;
+    used = grown.used;
+    keysLength = grown.keysLength;
+    seen = grown.seen;
+  }
+
+  private static MappedRowHashIndex create(File file, File keysFile, long fingerprint,
+      int capacity) throws IOException {
+    Files.deleteIfExists(keysFile.toPath());
+    MappedRowHashIndex index = new MappedRowHashIndex(file, keysFile, false);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // The file is zeroed, which makes every slot empty.
+      raf.setLength(0);
+      raf.setLength(HEADER_BYTES + (long) capacity * SLOT_BYTES);
+      FileChannel channel = raf.getChannel();
+      index.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      index.chunks = map(channel, FileChannel.MapMode.READ_WRITE, capacity);
+    } finally {
+      raf.close();
+    }
+    index.header.putLong(MAGIC_FIELD, MAGIC);
+    index.header.putInt(VERSION_FIELD, VERSION);
+    index.header.putInt(STATE_FIELD, DIRTY);
+    index.header.putLong(CAPACITY_FIELD, capacity);
+    index.header.putLong(FINGERPRINT_FIELD, fingerprint);
+    index.capacity = capacity;
+    index.seen = new long[bitmapLength(capacity)];
+    index.keys = new RandomAccessFile(keysFile, "rw").getChannel();
+    return index;
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode,
+      int capacity) throws IOException {
+    int chunkSlots = Math.min(capacity, 1 << CHUNK_SHIFT);
+    MappedByteBuffer[] chunks = new MappedByteBuffer[capacity / chunkSlots];
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = channel.map(mode,
+          HEADER_BYTES + (long) i * chunkSlots * SLOT_BYTES, (long) chunkSlots * SLOT_BYTES);
+    }
+    return chunks;
+  }
+
+  private static File keysFileOf(File file) {
+    return new File(file.getPath() + ".keys");
+  }
+
+  private static int bitmapLength(int capacity) {
+    return (capacity + 63) >>> 6;
+  }
+}
@@ -0,0 +1,504 @@
+package com.google.mapsengine.samples.sync;
+
+import com.google.api.services.mapsengine.MapsEngine;
+import com.google.api.services.mapsengine.model.Feature;
+import com.google.api.services.mapsengine.model.FeaturesListResponse;
+import com.google.api.services.mapsengine.model.Schema;
+import com.google.api.services.mapsengine.model.TableColumn;
+import com.google.mapsengine.samples.batch.BatchSink;
+import com.google.mapsengine.samples.batch.FeatureBatcher;
+import com.google.mapsengine.samples.batch.ParallelBatchSink;
+import com.google.mapsengine.samples.clients.StreamingFeatureClient;
+import com.google.mapsengine.samples.csv.ColumnType;
+import com.google.mapsengine.samples.csv.CsvSegment;
+import com.google.mapsengine.samples.csv.FeatureColumns;
+import com.google.mapsengine.samples.csv.MappedCsvReader;
+import com.google.mapsengine.samples.csv.ParallelCsvReader;
+import com.google.mapsengine.samples.csv.RowConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Brings a table of points up to date with a CSV file, sending only the rows that have changed.
+ *
+ * The table's rows are kept in a {@link MappedRowHashIndex} as hashes of their primary keys and
+ * contents. Each row of the file is looked up there: rows that aren't in the index are inserted,
+ * and rows whose contents hash differently are patched. Once the whole file has been read, rows
+ * of the index that weren't in the file are deleted. Inserts, patches and deletes are sent in full
+ * batches from a pool of workers, and as each batch succeeds its rows are updated in the index.
+ *
+ * Given an index file, the index is kept between syncs, so a sync only needs to read the file.
+ * The table is downloaded to build the index when there isn't one, when the table's schema has
+ * changed, or when the last sync didn't finish; an index is only trusted once every change has
+ * been sent. A {@link com.google.mapsengine.samples.batch.MutationBuffer} given the index keeps
+ * it up to date with the edits it sends; changes made to the table any other way aren't noticed,
+ * so rebuild the index after them. Without an index file, the index is built in a temporary file
+ * on every sync.
+ *
+ * The file needs a "lat" and a "lng" column, and a column for each of the table's properties,
+ * named as in the table schema. Its values are read as the types of the table's columns. Not
+ * thread-safe; each instance syncs once.
+ */
+public class TableSync {
+
+  private static final Logger LOG = Logger.getLogger(TableSync.class.getName());
+
+  private static final String LAT_COLUMN_NAME = "lat";
+  private static final String LNG_COLUMN_NAME = "lng";
+
+  /** Number of batches, per worker, that may wait to be sent before the readers block. */
+  private static final int QUEUED_BATCHES_PER_WORKER = 2;
+
+  private final MapsEngine engine;
+  private final StreamingFeatureClient featureClient;
+  private final String tableId;
+  private final File csvFile;
+  private final ForkJoinPool parsers;
+  private int workers = 1;
+  private boolean dryRun;
+  private File indexFile;
+  private boolean rebuildIndex;
+
+  private String primaryKey;
+  private String[] propertyNames;
+  private RowConverter converter;
+  private int keyColumn;
+  private ColumnType keyType;
+  private int latColumn;
+  private int lngColumn;
+  private MappedRowHashIndex index;
+
+  private long rowCount;
+  private long insertCount;
+  private long patchCount;
+  private long deleteCount;
+
+  /**
+   * @param engine The client used to read and update the table.
+   * @param tableId The table to update.
+   * @param csvFile The file holding every row the table should have once updated.
+   * @param parsers Parses the file, one segment per task.
+   */
+  public TableSync(MapsEngine engine, String tableId, File csvFile, ForkJoinPool parsers) {
+    this.engine = engine;
+    this.featureClient = new StreamingFeatureClient(engine);
+    this.tableId = tableId;
+    this.csvFile = csvFile;
+    this.parsers = parsers;
+  }
+
+  /** Returns where the samples keep a table's index between syncs, under ~/.credentials. */
+  public static File defaultIndexFile(String tableId) {
+    return new File(System.getProperty("user.home"),
+        ".credentials/mapsengine-sync-" + tableId + ".index");
+  }
+
+  /** Sets the number of batch requests to send at once. Defaults to 1. */
+  public TableSync setWorkers(int workers) {
+    this.workers = workers;
+    return this;
+  }
+
+  /** Sets whether to only count the changes, without sending them. */
+  public TableSync setDryRun(boolean dryRun) {
+    this.dryRun = dryRun;
+    return this;
+  }
+
+  /** Sets the file to keep the table's index in between syncs. Its keys go alongside. */
+  public TableSync setIndexFile(File indexFile) {
+    this.indexFile = indexFile;
+    return this;
+  }
+
+  /** Sets whether to download the table to build the index, even if the index looks current. */
+  public TableSync setRebuildIndex(boolean rebuildIndex) {
+    this.rebuildIndex = rebuildIndex;
+    return this;
+  }
+
+  /** Updates the table, blocking until every change has been sent. */
+  public void run() throws IOException {
+    Schema schema = engine.tables().get(tableId).execute().getSchema();
+    mapColumns(schema, readHeader());
+
+    boolean temporary = indexFile == null;
+    File file = temporary ? File.createTempFile("mapsengine-sync", ".index") : indexFile;
+    index = openIndex(file, fingerprint(schema), temporary || rebuildIndex);
+    try {
+      LOG.info("Comparing the rows of " + csvFile + " with the " + index.size()
+          + " rows of the index.");
+      ParallelBatchSink<Mutation> sender = newSender();
+      try {
+        sendChanges(sender);
+      } finally {
+        // Wait for the queued batches to finish, re-throwing any failure.
+        sender.close();
+      }
+      // Rows are only known to be missing from the file once all of it has been read.
+      ParallelBatchSink<Mutation> deleter = newSender();
+      try {
+        sendDeletes(deleter);
+      } finally {
+        deleter.close();
+      }
+      if (!dryRun) {
+        index.markClean();
+      }
+    } finally {
+      index.close();
+      if (temporary) {
+        deleteIndex(file);
+      }
+    }
+  }
+
+  /** Returns the number of rows inserted, or to insert in a dry run. */
+  public long getInsertCount() {
+    return insertCount;
+  }
+
+  /** Returns the number of features patched, or to patch in a dry run. */
+  public long getPatchCount() {
+    return patchCount;
+  }
+
+  /** Returns the number of features deleted, or to delete in a dry run. */
+  public long getDeleteCount() {
+    return deleteCount;
+  }
+
+  /** Returns the number of rows that were already up to date. */
+  public long getUnchangedCount() {
+    return rowCount - insertCount - patchCount;
+  }
+
+  private ParallelBatchSink<Mutation> newSender() {
+    return new ParallelBatchSink<Mutation>(
+        new BatchSink<Mutation>() {
+          @Override
+          public void send(Mutation mutation) throws IOException {
+            if (!dryRun) {
+              mutation.send();
+            }
+          }
+        }, workers, workers * QUEUED_BATCHES_PER_WORKER);
+  }
+
+  private String[] readHeader() throws IOException {
+    MappedCsvReader reader = new MappedCsvReader(csvFile);
+    try {
+      if (!reader.next()) {
+        throw new IllegalArgumentException("CSV file " + csvFile + " has no header row.");
+      }
+      return reader.getStrings();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Works out which column of the file holds each of the table's properties. */
+  private void mapColumns(Schema schema, String[] header) {
+    Map<String, Integer> columns = new HashMap<String, Integer>();
+    for (int i = 0; i < header.length; i++) {
+      columns.put(header[i], i);
+    }
+    if (!columns.containsKey(LAT_COLUMN_NAME) || !columns.containsKey(LNG_COLUMN_NAME)) {
+      throw new IllegalArgumentException("Input CSV does not contain both 'lat' and 'lng' columns");
+    }
+    latColumn = columns.get(LAT_COLUMN_NAME);
+    lngColumn = columns.get(LNG_COLUMN_NAME);
+    primaryKey = schema.getPrimaryKey() != null
+        ? schema.getPrimaryKey() : FeatureBatcher.DEFAULT_PRIMARY_KEY;
+    keyType = ColumnType.STRING;
+
+    List<String> names = new ArrayList<String>();
+    List<Integer> sourceColumns = new ArrayList<Integer>();
+    List<ColumnType> types = new ArrayList<ColumnType>();
+    for (TableColumn column : schema.getColumns()) {
+      if (FeatureBatcher.GEOMETRY_TYPES.contains(column.getType())) {
+        continue;
+      }
+      Integer sourceColumn = columns.get(column.getName());
+      if (sourceColumn == null) {
+        throw new IllegalArgumentException("Input CSV does not contain the table's '"
+            + column.getName() + "' column");
+      }
+      ColumnType type = columnType(column.getType());
+      names.add(column.getName());
+      sourceColumns.add(sourceColumn);
+      types.add(type);
+      if (column.getName().equals(primaryKey)) {
+        keyType = type;
+      }
+    }
+    if (!columns.containsKey(primaryKey)) {
+      throw new IllegalArgumentException("Input CSV does not contain the primary key column '"
+          + primaryKey + "'");
+    }
+    keyColumn = columns.get(primaryKey);
+    propertyNames = names.toArray(new String[names.size()]);
+    converter = new RowConverter(names, sourceColumns, types);
+  }
+
+  /** Returns the type to read a column of the given table column type as. */
+  private static ColumnType columnType(String tableColumnType) {
+    if ("integer".equals(tableColumnType)) {
+      return ColumnType.INTEGER;
+    } else if ("double".equals(tableColumnType)) {
+      return ColumnType.DOUBLE;
+    } else if ("datetime".equals(tableColumnType)) {
+      return ColumnType.DATETIME;
+    }
+    return ColumnType.STRING;
+  }
+
+  /**
+   * Returns a hash of what the index's row hashes depend on: the table, its primary key, and the
+   * names and types of its properties.
+   */
+  private long fingerprint(Schema schema) {
+    StringBuilder description = new StringBuilder(tableId).append('\n').append(primaryKey);
+    for (TableColumn column : schema.getColumns()) {
+      if (!FeatureBatcher.GEOMETRY_TYPES.contains(column.getType())) {
+        description.append('\n').append(column.getName()).append(':').append(column.getType());
+      }
+    }
+    return FeatureHasher.hashKey(description.toString());
+  }
+
+  /**
+   * Opens the index in the file if it is clean and was built for the table as it is now, and
+   * otherwise builds it from the table's features.
+   */
+  private MappedRowHashIndex openIndex(File file, long fingerprint, boolean rebuild)
+      throws IOException {
+    if (!rebuild && file.exists()) {
+      try {
+        MappedRowHashIndex existing = openExisting(file);
+        if (existing.isClean() && existing.getFingerprint() == fingerprint) {
+          return existing;
+        }
+        LOG.info("The index in " + file + (existing.isClean()
+            ? " was built for a different table or schema."
+            : " is from a sync that didn't finish."));
+        existing.close();
+      } catch (IOException e) {
+        LOG.warning("Could not read the index in " + file + ": " + e.getMessage());
+      }
+    }
+
+    LOG.info("Building the index in " + file + " from the table's features.");
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Unable to create directory " + dir);
+    }
+    MappedRowHashIndex built = MappedRowHashIndex.create(file, fingerprint);
+    try {
+      loadTable(built);
+      built.markClean();
+    } finally {
+      built.close();
+    }
+    // Open it again, so that none of its rows are marked as seen.
+    return openExisting(file);
+  }
+
+  /** Opens an index file, leaving it as it is in a dry run. */
+  private MappedRowHashIndex openExisting(File file) throws IOException {
+    return dryRun ? MappedRowHashIndex.openScratch(file) : MappedRowHashIndex.open(file);
+  }
+
+  /** Adds every feature of the table to the index, a page at a time. */
+  private void loadTable(MappedRowHashIndex built) throws IOException {
+    String pageToken = null;
+    do {
+      FeaturesListResponse page = engine.tables().features().list(tableId)
+          .setMaxResults(FeatureBatcher.MAX_FEATURES_PER_PAGE)
+          .setPageToken(pageToken)
+          .execute();
+      if (page.getFeatures() != null) {
+        for (Feature feature : page.getFeatures()) {
+          Object value = feature.getProperties() != null
+              ? feature.getProperties().get(primaryKey) : null;
+          String key = FeatureHasher.keyString(value);
+          built.put(FeatureHasher.hashKey(key),
+              FeatureHasher.hashFeature(feature, propertyNames), key);
+        }
+      }
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  private static void deleteIndex(File file) {
+    File keysFile = new File(file.getPath() + ".keys");
+    if (!file.delete() || !keysFile.delete()) {
+      LOG.warning("Could not delete the temporary index in " + file);
+    }
+  }
+
+  /** Reads the file, inserting its new rows and patching its changed ones. */
+  private void sendChanges(final BatchSink<Mutation> sender) throws IOException {
+    new ParallelCsvReader(csvFile, parsers).read(
+        new ParallelCsvReader.SegmentParser<Changes>() {
+          @Override
+          public Changes parse(CsvSegment segment, MappedCsvReader reader) throws IOException {
+            return parseChanges(segment, reader);
+          }
+        },
+        new ParallelCsvReader.ResultHandler<Changes>() {
+          @Override
+          public void handle(Changes changes) throws IOException {
+            rowCount += changes.rowCount;
+            insertCount += changes.inserts.size();
+            patchCount += changes.patches.size();
+            sendRows(sender, changes.inserts, true);
+            sendRows(sender, changes.patches, false);
+          }
+        }, false);
+  }
+
+  /** Returns the segment's new rows and its changed rows, divided into batches. */
+  private Changes parseChanges(CsvSegment segment, MappedCsvReader reader) throws IOException {
+    Changes changes = new Changes();
+    if (segment.start == 0) {
+      // Skip the header row.
+      reader.next();
+    }
+    while (reader.next()) {
+      String key = readKey(reader);
+      long keyHash = FeatureHasher.hashKey(key);
+      long rowHash = FeatureHasher.hashRow(reader.getDouble(latColumn),
+          reader.getDouble(lngColumn), converter.convertValues(reader));
+      switch (index.lookup(keyHash, rowHash)) {
+        case ABSENT:
+          changes.inserts.add(reader, key, keyHash, rowHash);
+          break;
+        case CHANGED:
+          changes.patches.add(reader, key, keyHash, rowHash);
+          break;
+        case REPEATED:
+          throw duplicateKey();
+        default:
+          break;
+      }
+      changes.rowCount++;
+    }
+    changes.inserts.columns.flush();
+    changes.patches.columns.flush();
+    return changes;
+  }
+
+  private String readKey(MappedCsvReader reader) {
+    Object key = keyColumn < reader.getFieldCount() ? keyType.read(reader, keyColumn) : null;
+    if (key == null || "".equals(key)) {
+      throw new IllegalArgumentException("Input CSV has a row without a value in the primary key "
+          + "column '" + primaryKey + "'");
+    }
+    return FeatureHasher.keyString(key);
+  }
+
+  private IllegalArgumentException duplicateKey() {
+    return new IllegalArgumentException("Input CSV has more than one row with the same value in "
+        + "the primary key column '" + primaryKey + "'");
+  }
+
+  /** Sends rows a batch at a time, updating the index as each batch succeeds. */
+  private void sendRows(BatchSink<Mutation> sender, final Rows rows, final boolean insert)
+      throws IOException {
+    int start = 0;
+    for (final FeatureColumns.Batch batch : rows.columns.getBatches()) {
+      final int from = start;
+      start += batch.size();
+      sender.send(new Mutation() {
+        @Override
+        void send() throws IOException {
+          if (insert) {
+            featureClient.batchInsert(tableId, batch);
+          } else {
+            featureClient.batchPatch(tableId, batch);
+          }
+          rows.record(from, from + batch.size());
+        }
+      });
+    }
+  }
+
+  /** Deletes the rows of the index that weren't in the file. */
+  private void sendDeletes(BatchSink<Mutation> sender) throws IOException {
+    int slot = 0;
+    while (slot >= 0) {
+      final List<String> primaryKeys = new ArrayList<String>();
+      slot = index.collectUnseen(slot, primaryKeys, FeatureBatcher.MAX_FEATURES_PER_REQUEST);
+      if (primaryKeys.isEmpty()) {
+        continue;
+      }
+      deleteCount += primaryKeys.size();
+      sender.send(new Mutation() {
+        @Override
+        void send() throws IOException {
+          featureClient.batchDelete(tableId, primaryKeys);
+          for (String key : primaryKeys) {
+            index.remove(FeatureHasher.hashKey(key));
+          }
+        }
+      });
+    }
+  }
+
+  /** The new and changed rows of a segment. */
+  private class Changes {
+    final Rows inserts = new Rows(converter.newColumns(latColumn, lngColumn,
+        FeatureBatcher.MAX_FEATURES_PER_REQUEST, FeatureBatcher.MAX_BYTES_PER_REQUEST));
+    final Rows patches = new Rows(converter.newPatchColumns(latColumn, lngColumn,
+        FeatureBatcher.MAX_FEATURES_PER_REQUEST, FeatureBatcher.MAX_BYTES_PER_REQUEST));
+    int rowCount;
+  }
+
+  /** Rows to send, with their keys and hashes for the index, in the order of their batches. */
+  private class Rows {
+    final FeatureColumns columns;
+    final List<String> keys = new ArrayList<String>();
+    /** The key hash and row hash of each row, one after the other. */
+    long[] hashes = new long[256];
+
+    Rows(FeatureColumns columns) {
+      this.columns = columns;
+    }
+
+    void add(MappedCsvReader reader, String key, long keyHash, long rowHash) {
+      columns.add(reader);
+      int row = keys.size();
+      if (row * 2 == hashes.length) {
+        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+      }
+      keys.add(key);
+      hashes[row * 2] = keyHash;
+      hashes[row * 2 + 1] = rowHash;
+    }
+
+    int size() {
+      return keys.size();
+    }
+
+    /** Updates the index with rows that have been sent. */
+    void record(int from, int to) throws IOException {
+      for (int row = from; row < to; row++) {
+        index.put(hashes[row * 2], hashes[row * 2 + 1], keys.get(row));
+      }
+    }
+  }
+
+  /** One batch request. */
+  private abstract static class Mutation {
+    abstract void send() throws IOException;
+  }
+}
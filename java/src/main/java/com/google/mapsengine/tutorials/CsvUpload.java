@@ -1,12 +1,6 @@
 package com.google.mapsengine.tutorials;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.InputStreamContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.mapsengine.MapsEngine;
 import com.google.api.services.mapsengine.MapsEngineScopes;
 import com.google.api.services.mapsengine.model.Border;
@@ -32,19 +26,23 @@ import com.google.api.services.mapsengine.model.Table;
 import com.google.api.services.mapsengine.model.ValueRange;
 import com.google.api.services.mapsengine.model.VectorStyle;
 import com.google.api.services.mapsengine.model.ZoomLevels;
-import com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer;
-import com.google.maps.clients.HttpRequestInitializerPipeline;
 import com.google.mapsengine.samples.auth.Utils;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.clients.ProcessingWaiter;
+import com.google.mapsengine.samples.clients.ResumableFileUploader;
+import com.google.mapsengine.samples.clients.UploadJournal;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Demonstrate uploading local CSV and VRT files into a new Maps Engine table,
@@ -53,31 +51,69 @@ import java.util.List;
  * To get started, follow the instructions at
  * https://developers.google.com/maps-engine/documentation/oauth/serviceaccount#creating_a_service_account
  * to create a client ID and key. Generate and save a JSON key and save it in res/service_key.json.
+ *
+ * Files are uploaded in parallel, in chunks, using resumable uploads. Progress is recorded in
+ * ~/.credentials/mapsengine-uploads.properties, so if the upload is interrupted, running the same
+ * command again continues with the same table from where it stopped.
  */
 public class CsvUpload {
 
   private static final String APPLICATION_NAME = "Google/MapsEngineCsvUpload-1.0";
   private static final Collection<String> SCOPES = Arrays.asList(MapsEngineScopes.MAPSENGINE);
+  private static final File UPLOAD_JOURNAL = new File(System.getProperty("user.home"),
+      ".credentials/mapsengine-uploads.properties");
+  private static final String CHUNK_SIZE_FLAG = "--chunkSizeMb=";
+  private static final int MEGABYTE = 1024 * 1024;
+  private static final int MAX_PARALLEL_UPLOADS = 4;
 
   private MapsEngine engine;
+  private ProcessingWaiter waiter;
+  private int chunkSize = ResumableFileUploader.DEFAULT_CHUNK_SIZE;
 
-  private final HttpTransport httpTransport = new NetHttpTransport();
-  private final JsonFactory jsonFactory = new GsonFactory();
+  private final MapsEngineClients clients =
+      new MapsEngineClients().setMaxConnections(MAX_PARALLEL_UPLOADS);
 
   public static void main(String[] args) {
-    if (args.length < 3) {
-      System.err.println("Usage: java ...CsvUpload projectId myfile.csv myfile.vrt");
+    CsvUpload upload = new CsvUpload();
+    List<String> positional = new ArrayList<>();
+    boolean validChunkSize = true;
+    for (String arg : args) {
+      if (arg.startsWith(CHUNK_SIZE_FLAG)) {
+        // Checked in megabytes, before multiplying, so that a large value can't overflow.
+        long chunkSizeMb;
+        try {
+          chunkSizeMb = Long.parseLong(arg.substring(CHUNK_SIZE_FLAG.length()));
+        } catch (NumberFormatException e) {
+          chunkSizeMb = 0;
+        }
+        validChunkSize = chunkSizeMb >= 1
+            && chunkSizeMb <= ResumableFileUploader.MAX_CHUNK_SIZE / MEGABYTE;
+        upload.chunkSize = (int) (chunkSizeMb * MEGABYTE);
+      } else if (!upload.clients.parseFlag(arg)) {
+        positional.add(arg);
+      }
+    }
+
+    if (positional.size() < 3 || !validChunkSize) {
+      System.err.println("Usage: java ...CsvUpload [--chunkSizeMb=N] [--transport=net|apache] "
+          + "[--no-gzip] projectId myfile.csv myfile.vrt [otherfiles...]");
       System.err.println(" projectId is the numerical ID of the project in which to create the "
           + "new table");
       System.err.println(" myfile.csv is the path to the CSV file to upload");
       System.err.println(" myfile.vrt is the path to the VRT sidecar file to upload");
       System.err.println("  Check https://support.google.com/mapsengine/answer/3067502?hl=en for "
           + "more information on VRT files in Maps Engine.");
+      System.err.println(" otherfiles are any additional files to upload, such as shapefile "
+          + "components");
+      System.err.println(" --chunkSizeMb sets the size of each upload request, from 1 to "
+          + ResumableFileUploader.MAX_CHUNK_SIZE / MEGABYTE + ", default "
+          + ResumableFileUploader.DEFAULT_CHUNK_SIZE / MEGABYTE);
+      MapsEngineClients.printUsage();
       System.exit(1);
     }
 
     try {
-      new CsvUpload().run(args[0], args[1], args[2]);
+      upload.run(positional.get(0), positional.subList(1, positional.size()));
     } catch (Exception ex) {
       System.err.println("An unexpected error occurred!");
       ex.printStackTrace(System.err);
@@ -85,28 +121,35 @@ public class CsvUpload {
     }
   }
 
-  public void run(String projectId, String csvFileName, String vrtFileName) throws Exception {
+  public void run(String projectId, List<String> fileNames) throws Exception {
     System.out.println("Authorizing.");
-    Credential credential = Utils.authorizeService(httpTransport, jsonFactory, SCOPES);
+    Credential credential =
+        Utils.authorizeService(clients.getTransport(), clients.getJsonFactory(), SCOPES);
     System.out.println("Authorization successful!");
 
-    // Set up the required initializers to 1) authenticate the request and 2) back off if we
-    // start hitting the server too quickly.
-    HttpRequestInitializer requestInitializers = new HttpRequestInitializerPipeline(
-        Arrays.asList(credential, new BackOffWhenRateLimitedRequestInitializer()));
-
-    // The MapsEngine object will be used to perform the requests.
-    engine = new MapsEngine.Builder(httpTransport, jsonFactory, requestInitializers)
-        .setApplicationName(APPLICATION_NAME)
-        .build();
-
-    System.out.println("Creating an empty table in Maps Engine, under project ID " + projectId);
-    Table table = createTable(projectId, Arrays.asList(csvFileName, vrtFileName));
-    System.out.println("Table created, ID is: " + table.getId());
+    // The MapsEngine object will be used to perform the requests. Its requests are authenticated,
+    // back off if we start hitting the server too quickly and slow down when that happens.
+    engine = clients.newClient(credential, APPLICATION_NAME);
+    waiter = new ProcessingWaiter(engine);
+
+    // If a previous run was interrupted, carry on with the table it created.
+    UploadJournal journal = new UploadJournal(UPLOAD_JOURNAL);
+    String jobKey = projectId + ":" + fileNames;
+    Table table;
+    String tableId = journal.getTableId(jobKey);
+    if (tableId == null) {
+      System.out.println("Creating an empty table in Maps Engine, under project ID " + projectId);
+      table = createTable(projectId, fileNames);
+      journal.putTableId(jobKey, table.getId());
+      System.out.println("Table created, ID is: " + table.getId());
+    } else {
+      table = engine.tables().get(tableId).execute();
+      System.out.println("Resuming upload into table ID: " + table.getId());
+    }
 
     System.out.println("Uploading the data files.");
-    uploadFile(table, csvFileName, "text/csv");
-    uploadFile(table, vrtFileName, "text/plain"); // This mime type doesn't matter
+    uploadFiles(table, fileNames, journal);
+    journal.clear(jobKey);
     System.out.println("Done.");
 
     System.out.println("Creating a new layer.");
@@ -131,6 +174,8 @@ public class CsvUpload {
 
     System.out.println("Publishing complete. You can view the map here: "
         + String.format("https://mapsengine.google.com/%s-4/mapview/?authuser=0", map.getId()));
+    waiter.shutdown();
+    clients.shutdown();
 
   }
 
@@ -154,15 +199,40 @@ public class CsvUpload {
     return engine.tables().upload(newTable).execute();
   }
 
-  /** Uploads the file data to the empty table. */
-  private void uploadFile(Table table, String fileName, String contentType) throws IOException {
-    // Load the file into a stream that we can send to the API
-    File file = new File(fileName);
-    InputStream fileInputStream = new BufferedInputStream(new FileInputStream(file));
-    InputStreamContent contentStream = new InputStreamContent(contentType, fileInputStream);
-
-    // Upload!
-    engine.tables().files().insert(table.getId(), fileName, contentStream).execute();
+  /** Uploads the data files to the empty table, in parallel. */
+  private void uploadFiles(final Table table, List<String> fileNames, UploadJournal journal)
+      throws IOException {
+    final ResumableFileUploader uploader = new ResumableFileUploader(engine, journal, chunkSize);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(fileNames.size(), MAX_PARALLEL_UPLOADS));
+    try {
+      List<Future<Void>> uploads = new ArrayList<>(fileNames.size());
+      for (final String fileName : fileNames) {
+        uploads.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            // Only the CSV's mime type matters, the others can be anything.
+            String contentType = fileName.endsWith(".csv") ? "text/csv" : "text/plain";
+            uploader.upload(table.getId(), new File(fileName), contentType);
+            System.out.println("Uploaded " + fileName);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> upload : uploads) {
+        upload.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while uploading.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
   }
 
   /** Creates a layer using the table provided. */
@@ -224,8 +294,9 @@ public class CsvUpload {
         .execute();
   }
 
-  /** Publishes the given Layer */
+  /** Publishes the given Layer, once it has finished processing. */
   private PublishResponse publishLayer(Layer layer) throws IOException {
+    waiter.waitForLayer(layer.getId()).await();
     return engine.layers().publish(layer.getId()).execute();
   }
 
@@ -250,15 +321,10 @@ public class CsvUpload {
 
   /** Marks the provided map as "published", making it visible. */
   private PublishResponse publishMap(Map map) throws IOException {
-    String processingStatus = null;
-
     // Initially the map will be in a 'processing' state and will return '409 Conflict'
-    // while processing is happening. Poll until it's ready.
-    while (!"complete".equals(processingStatus)) {
-      // Note that if you are using the Maps Engine API Wrapper there is no need to sleep between
-      // requests, as it will automatically retry any 'rate limit exceeded' errors.
-      processingStatus = engine.maps().get(map.getId()).execute().getProcessingStatus();
-    }
+    // while processing is happening. Wait until it's ready; the waiter polls with an increasing
+    // delay, rather than hammering the API.
+    waiter.waitForMap(map.getId()).await();
 
     return engine.maps().publish(map.getId()).execute();
   }
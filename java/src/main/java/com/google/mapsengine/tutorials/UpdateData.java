@@ -1,18 +1,10 @@
 package com.google.mapsengine.tutorials;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.mapsengine.MapsEngine;
 import com.google.api.services.mapsengine.MapsEngineScopes;
 import com.google.api.services.mapsengine.model.DisplayRule;
 import com.google.api.services.mapsengine.model.Feature;
-import com.google.api.services.mapsengine.model.FeaturesBatchDeleteRequest;
-import com.google.api.services.mapsengine.model.FeaturesBatchInsertRequest;
-import com.google.api.services.mapsengine.model.FeaturesBatchPatchRequest;
 import com.google.api.services.mapsengine.model.Filter;
 import com.google.api.services.mapsengine.model.IconStyle;
 import com.google.api.services.mapsengine.model.Layer;
@@ -22,12 +14,17 @@ import com.google.api.services.mapsengine.model.PublishResponse;
 import com.google.api.services.mapsengine.model.Table;
 import com.google.api.services.mapsengine.model.VectorStyle;
 import com.google.api.services.mapsengine.model.ZoomLevels;
-import com.google.maps.clients.BackOffWhenRateLimitedRequestInitializer;
-import com.google.maps.clients.HttpRequestInitializerPipeline;
 import com.google.maps.clients.mapsengine.geojson.Point;
 import com.google.mapsengine.samples.auth.Utils;
+import com.google.mapsengine.samples.batch.MutationBuffer;
+import com.google.mapsengine.samples.batch.MutationJournal;
+import com.google.mapsengine.samples.clients.MapsEngineClients;
+import com.google.mapsengine.samples.sync.MappedRowHashIndex;
+import com.google.mapsengine.samples.sync.TableSync;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -42,27 +39,42 @@ import java.util.Map;
  * You'll need the same credentials set up as the {@link CsvUpload} tutorial. You'll also need
  * the ID of the layer you created when running that tutorial. You can find any IDs through the
  * Maps Engine UI at https://mapsengine.google.com/admin/
+ *
+ * Feature edits are recorded in a journal under ~/.credentials before they are sent, so if a run
+ * stops before its edits reach the table, the next run sends them first. If the table is kept in
+ * step with a CSV file by the CsvSync sample, the edits update its index as they are sent.
  */
 public class UpdateData {
 
   private static final String APPLICATION_NAME = "Google/MapsEngineUpdateData-1.0";
   private static final Collection<String> SCOPES = Arrays.asList(MapsEngineScopes.MAPSENGINE);
   private static final String NOWHERE_COUNTRY_CODE = "NWH";
+  private static final File JOURNAL_DIR = new File(System.getProperty("user.home"),
+      ".credentials");
 
   private MapsEngine engine;
+  private MutationBuffer buffer;
 
-  private final HttpTransport httpTransport = new NetHttpTransport();
-  private final JsonFactory jsonFactory = new GsonFactory();
+  private final MapsEngineClients clients = new MapsEngineClients();
 
   public static void main(String[] args) {
-    if (args.length < 1) {
-      System.err.println("Usage: java ...UpdateData layerId");
+    UpdateData updateData = new UpdateData();
+    List<String> positional = new ArrayList<>();
+    for (String arg : args) {
+      if (!updateData.clients.parseFlag(arg)) {
+        positional.add(arg);
+      }
+    }
+
+    if (positional.size() < 1) {
+      System.err.println("Usage: java ...UpdateData [--transport=net|apache] [--no-gzip] layerId");
       System.err.println(" tableId is the layer ID that you created in the CsvUpload tutorial.");
+      MapsEngineClients.printUsage();
       System.exit(1);
     }
 
     try {
-      new UpdateData().run(args[0]);
+      updateData.run(positional.get(0));
     } catch (Exception ex) {
       System.err.println("An unexpected error occurred!");
       ex.printStackTrace(System.err);
@@ -72,18 +84,13 @@ public class UpdateData {
 
   private void run(String layerId) throws IOException {
     System.out.println("Authorizing.");
-    Credential credential = Utils.authorizeService(httpTransport, jsonFactory, SCOPES);
+    Credential credential =
+        Utils.authorizeService(clients.getTransport(), clients.getJsonFactory(), SCOPES);
     System.out.println("Authorization successful!");
 
-    // Set up the required initializers to 1) authenticate the request and 2) back off if we
-    // start hitting the server too quickly.
-    HttpRequestInitializer requestInitializers = new HttpRequestInitializerPipeline(
-        Arrays.asList(credential, new BackOffWhenRateLimitedRequestInitializer()));
-
-    // The MapsEngine object will be used to perform the requests.
-    engine = new MapsEngine.Builder(httpTransport, jsonFactory, requestInitializers)
-        .setApplicationName(APPLICATION_NAME)
-        .build();
+    // The MapsEngine object will be used to perform the requests. Its requests are authenticated,
+    // back off if we start hitting the server too quickly and slow down when that happens.
+    engine = clients.newClient(credential, APPLICATION_NAME);
 
     System.out.println("Looking up layer.");
     Layer layer = engine.layers().get(layerId).execute();
@@ -93,6 +100,30 @@ public class UpdateData {
     Table table = engine.tables().get(layer.getDatasources().get(0).getId()).execute();
     System.out.println("Done.");
 
+    // Feature edits are collected in a buffer, which merges edits to the same feature and sends
+    // them in as few batch requests as it can.
+    buffer = new MutationBuffer(engine, table);
+
+    // Keep CsvSync's index of the table, if it has one, in step with the edits.
+    File indexFile = TableSync.defaultIndexFile(table.getId());
+    MappedRowHashIndex index = null;
+    if (indexFile.exists()) {
+      index = MappedRowHashIndex.open(indexFile);
+      buffer.setIndex(index);
+    }
+
+    // The buffer journals the edits, and takes over any that an earlier run didn't get to send.
+    MutationJournal journal = new MutationJournal(
+        new File(JOURNAL_DIR, "mapsengine-edits-" + table.getId() + ".journal"),
+        clients.getJsonFactory());
+    int unsent = journal.getUnacknowledged().size();
+    buffer.setJournal(journal);
+    if (unsent > 0) {
+      System.out.println("Replaying " + unsent + " edits from an earlier run.");
+      buffer.flush();
+      System.out.println("Done.");
+    }
+
     // This is not part of the tutorial, but by clearing out any data from previous executions we
     // can run this tutorial multiple times on the same table. If it doesn't exist,
     // then the batchDelete call will still return successfully.
@@ -108,6 +139,10 @@ public class UpdateData {
     updateFeature(table);
     System.out.println("Done.");
 
+    System.out.println("Sending feature edits.");
+    buffer.flush();
+    System.out.println("Done.");
+
     System.out.println("Updating layer style.");
     updateLayerStyle(layer);
     System.out.println("Done.");
@@ -123,15 +158,18 @@ public class UpdateData {
     System.out.println("Deleting a feature.");
     // See the tutorial for discussion on why we are deleting China's data.
     deleteFeature(table, "CHN");
+    buffer.close();
+    journal.close();
+    if (index != null) {
+      index.close();
+    }
     System.out.println("Done.");
+    clients.shutdown();
   }
 
   /** Deletes the specified country code from the table along with its data. */
   private void deleteFeature(Table table, String country) throws IOException {
-    FeaturesBatchDeleteRequest request = new FeaturesBatchDeleteRequest()
-        .setPrimaryKeys(Arrays.asList(country));
-
-    engine.tables().features().batchDelete(table.getId(), request).execute();
+    buffer.delete(country);
   }
 
   /** Adds a new feature to a table. */
@@ -147,10 +185,7 @@ public class UpdateData {
     // Build the feature by attaching properties
     Feature newFeature = point.asFeature(properties);
 
-    FeaturesBatchInsertRequest insertRequest = new FeaturesBatchInsertRequest()
-        .setFeatures(Arrays.asList(newFeature));
-
-    engine.tables().features().batchInsert(table.getId(), insertRequest).execute();
+    buffer.insert(newFeature);
   }
 
   /** Updates a feature. */
@@ -164,10 +199,7 @@ public class UpdateData {
     Feature updateFeature = new Feature()
         .setProperties(properties);
 
-    FeaturesBatchPatchRequest patchRequest = new FeaturesBatchPatchRequest()
-        .setFeatures(Arrays.asList(updateFeature));
-
-    engine.tables().features().batchPatch(table.getId(), patchRequest).execute();
+    buffer.patch(updateFeature);
   }
 
   /** Updates the style of the layer to include an icon for zero population growth. */